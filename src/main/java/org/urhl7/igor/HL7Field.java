@@ -59,6 +59,28 @@ public class HL7Field implements DataField, DelimitedStructure {
         setParent(parent);
     }
 
+    /**
+     * Makes a copy of this field and its children attached to the provided parent. The data Strings are shared,
+     * not copied.
+     * @param newParent the parent of the copy
+     * @param retainData false to leave the copy empty, but with the same shape
+     * @return a copy of this field
+     */
+    HL7Field copy(HL7RepeatingField newParent, boolean retainData) {
+        HL7Field f = new HL7Field(delims);
+        f.parent = newParent;
+        f.data = retainData ? data : "";
+        f.baseField = baseField;
+        f.isMSHDelimiterField = isMSHDelimiterField;
+        if (!baseField) {
+            f.components = new ArrayList<HL7FieldComponent>(components.size());
+            for(HL7FieldComponent comp : components) {
+                f.components.add(comp.copy(f, retainData));
+            }
+        }
+        return f;
+    }
+
     /**
      * Returns a reference to the parent HL7RepeatingField for this HL7Field
      * @return the parent
@@ -84,16 +106,72 @@ public class HL7Field implements DataField, DelimitedStructure {
         if (isBaseField()) {
             return data;
         } else {
-            ArrayList<String> tmpfields = new ArrayList<String>();
+            StringBuilder sb = new StringBuilder();
+            marshal(sb, delims, false, false);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Appends this field to the StringBuilder, using the target delimiter set.
+     * @param sb the StringBuilder to append to
+     * @param to the delimiter set to marshal with
+     * @param raw true if the data should be written as is (MSH-2)
+     * @param compact true to leave out trailing empty components and subcomponents
+     */
+    void marshal(StringBuilder sb, char[] to, boolean raw, boolean compact) {
+        if (isBaseField()) {
+            if (raw || isMSHDelimiterField) {
+                sb.append(data);
+            } else {
+                HL7Escape.transcode(delims, to, data, sb);
+            }
+        } else {
+            int end = components.size();
+            if (compact) {
+                while (end > 0 && components.get(end-1).isEmpty()) { end--; }
+            }
+            for(int i=0; i<end; i++) {
+                if (i != 0) { sb.append(to[1]); }
+                components.get(i).marshal(sb, to, raw, compact);
+            }
+        }
+    }
 
-            for(HL7FieldComponent inField : components) {
-                String field = inField.marshal();
-                tmpfields.add(field);
+    /**
+     * Returns true if this field holds no data, meaning it is an empty base field, or every component is
+     * empty. This check does not marshal or allocate.
+     * @return true if there is no data in this field
+     */
+    public boolean isEmpty() {
+        if (isBaseField()) {
+            return data == null || data.length() == 0;
+        }
+        for(int i=0; i<components.size(); i++) {
+            if (!components.get(i).isEmpty()) {
+                return false;
             }
+        }
+        return true;
+    }
 
-            String[] sFields = tmpfields.toArray(new String[tmpfields.size()]);
-            return StringHelper.implode(sFields, delims[1]+"");
+    /**
+     * Converts this field and its children to the target delimiter set in place, without walking back up
+     * the tree.
+     * @param to the delimiter set to convert to
+     * @param raw true if the data should be left as is (MSH-2)
+     */
+    void recode(char[] to, boolean raw) {
+        if (isBaseField()) {
+            if (!raw && !isMSHDelimiterField) {
+                data = HL7Escape.transcode(delims, to, data);
+            }
+        } else {
+            for(HL7FieldComponent comp : components) {
+                comp.recode(to, raw);
+            }
         }
+        delims = to;
     }
 
     /**
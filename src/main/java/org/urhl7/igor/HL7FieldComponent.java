@@ -65,6 +65,27 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
         setDirty();
     }
 
+    /**
+     * Makes a copy of this component and its subcomponents attached to the provided parent. The data Strings are
+     * shared, not copied.
+     * @param newParent the parent of the copy
+     * @param retainData false to leave the copy empty, but with the same shape
+     * @return a copy of this component
+     */
+    HL7FieldComponent copy(HL7Field newParent, boolean retainData) {
+        HL7FieldComponent comp = new HL7FieldComponent(delims);
+        comp.parent = newParent;
+        comp.data = retainData ? data : "";
+        comp.baseField = baseField;
+        if (!baseField) {
+            comp.subcomponents = new ArrayList<HL7FieldSubcomponent>(subcomponents.size());
+            for(HL7FieldSubcomponent subcomp : subcomponents) {
+                comp.subcomponents.add(subcomp.copy(comp, retainData));
+            }
+        }
+        return comp;
+    }
+
     /**
      * Returns a reference to the parent HL7Field for this HL7FieldComponent
      * @return the parent
@@ -149,16 +170,72 @@ public class HL7FieldComponent implements DataField, DelimitedStructure {
         if (isBaseField()) {
             return data;
         } else {
-            ArrayList<String> tmpfields = new ArrayList<String>();
+            StringBuilder sb = new StringBuilder();
+            marshal(sb, delims, false, false);
+            return sb.toString();
+        }
+    }
 
-            for(HL7FieldSubcomponent inField : subcomponents) {
-                String field = inField.marshal();
-                tmpfields.add(field);
+    /**
+     * Appends this component to the StringBuilder, using the target delimiter set.
+     * @param sb the StringBuilder to append to
+     * @param to the delimiter set to marshal with
+     * @param raw true if the data should be written as is (MSH-2)
+     * @param compact true to leave out trailing empty subcomponents
+     */
+    void marshal(StringBuilder sb, char[] to, boolean raw, boolean compact) {
+        if (isBaseField()) {
+            if (raw) {
+                sb.append(data);
+            } else {
+                HL7Escape.transcode(delims, to, data, sb);
             }
+        } else {
+            int end = subcomponents.size();
+            if (compact) {
+                while (end > 0 && subcomponents.get(end-1).isEmpty()) { end--; }
+            }
+            for(int i=0; i<end; i++) {
+                if (i != 0) { sb.append(to[4]); }
+                subcomponents.get(i).marshal(sb, to, raw, compact);
+            }
+        }
+    }
+
+    /**
+     * Returns true if this component holds no data, meaning it is an empty base field, or every subcomponent is
+     * empty. This check does not marshal or allocate.
+     * @return true if there is no data in this component
+     */
+    public boolean isEmpty() {
+        if (isBaseField()) {
+            return data == null || data.length() == 0;
+        }
+        for(int i=0; i<subcomponents.size(); i++) {
+            if (!subcomponents.get(i).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-            String[] sFields = tmpfields.toArray(new String[tmpfields.size()]);
-            return StringHelper.implode(sFields, delims[4]+"");
+    /**
+     * Converts this component and its subcomponents to the target delimiter set in place, without walking back up
+     * the tree.
+     * @param to the delimiter set to convert to
+     * @param raw true if the data should be left as is (MSH-2)
+     */
+    void recode(char[] to, boolean raw) {
+        if (isBaseField()) {
+            if (!raw) {
+                data = HL7Escape.transcode(delims, to, data);
+            }
+        } else {
+            for(HL7FieldSubcomponent subcomp : subcomponents) {
+                subcomp.recode(to, raw);
+            }
         }
+        delims = to;
     }
 
     /**
@@ -61,6 +61,20 @@ public class HL7FieldSubcomponent implements DataField, DelimitedStructure {
         this.parent = parent;
     }
 
+    /**
+     * Makes a copy of this subcomponent attached to the provided parent. The data String is shared, not copied.
+     * @param newParent the parent of the copy
+     * @param retainData false to leave the copy empty
+     * @return a copy of this subcomponent
+     */
+    HL7FieldSubcomponent copy(HL7FieldComponent newParent, boolean retainData) {
+        HL7FieldSubcomponent sc = new HL7FieldSubcomponent(delims);
+        sc.parent = newParent;
+        sc.data = retainData ? data : "";
+        sc.baseField = baseField;
+        return sc;
+    }
+
     /**
      * Returns a reference to the parent HL7FieldComponent for this HL7FieldSubcomponent
      * @return the parent
@@ -116,6 +130,33 @@ public class HL7FieldSubcomponent implements DataField, DelimitedStructure {
         return data;
     }
 
+    /**
+     * Appends this subcomponent to the StringBuilder, escaped for the target delimiter set.
+     * @param sb the StringBuilder to append to
+     * @param to the delimiter set to marshal with
+     * @param raw true if the data should be written as is (MSH-2)
+     * @param compact unused for subcomponents, present for symmetry with the other nodes
+     */
+    void marshal(StringBuilder sb, char[] to, boolean raw, boolean compact) {
+        if (raw) {
+            sb.append(data);
+        } else {
+            HL7Escape.transcode(delims, to, data, sb);
+        }
+    }
+
+    /**
+     * Converts this subcomponent to the target delimiter set in place, without walking back up the tree.
+     * @param to the delimiter set to convert to
+     * @param raw true if the data should be left as is (MSH-2)
+     */
+    void recode(char[] to, boolean raw) {
+        if (!raw) {
+            data = HL7Escape.transcode(delims, to, data);
+        }
+        delims = to;
+    }
+
     /**
      * Set the underlying data for this data object.
      * @param data a String representation of the data
@@ -142,6 +183,14 @@ public class HL7FieldSubcomponent implements DataField, DelimitedStructure {
         return marshal();
     }
 
+    /**
+     * Returns true if this subcomponent holds no data. This check does not marshal or allocate.
+     * @return true if the data is empty
+     */
+    public boolean isEmpty() {
+        return data == null || data.length() == 0;
+    }
+
     /**
      * Returns if this field is the base field, or if it has subfields included.
      * @return the baseField
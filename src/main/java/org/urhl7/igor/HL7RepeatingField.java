@@ -55,6 +55,23 @@ public class HL7RepeatingField implements GenericStructure, DelimitedStructure {
         setParent(parent);
     }
 
+    /**
+     * Makes a copy of this repeating field and its children attached to the provided parent. The data Strings are
+     * shared, not copied.
+     * @param newParent the parent of the copy
+     * @param retainData false to leave the copy empty, but with the same shape
+     * @return a copy of this repeating field
+     */
+    HL7RepeatingField copy(HL7Segment newParent, boolean retainData) {
+        HL7RepeatingField rf = new HL7RepeatingField(delims);
+        rf.parent = newParent;
+        rf.fields = new ArrayList<HL7Field>(fields.size());
+        for(HL7Field field : fields) {
+            rf.fields.add(field.copy(rf, retainData));
+        }
+        return rf;
+    }
+
     /**
      * Returns the underlying array list containing all HL7Fields for this structure
      * @return list of HL7Fields
@@ -198,15 +215,53 @@ public class HL7RepeatingField implements GenericStructure, DelimitedStructure {
      * @return a String representation of this structure
      */
     public String marshal() {
-        ArrayList<String> tfields = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+        marshal(sb, delims, false, false);
+        return sb.toString();
+    }
 
-        for(HL7Field inField : fields) {
-            String field = inField.marshal();
-            tfields.add(field);
+    /**
+     * Appends this repeating field to the StringBuilder, using the target delimiter set.
+     * @param sb the StringBuilder to append to
+     * @param to the delimiter set to marshal with
+     * @param raw true if the data should be written as is (MSH-2)
+     * @param compact true to leave out trailing empty repetitions, components and subcomponents
+     */
+    void marshal(StringBuilder sb, char[] to, boolean raw, boolean compact) {
+        int end = fields.size();
+        if (compact) {
+            while (end > 0 && fields.get(end-1).isEmpty()) { end--; }
         }
+        for(int i=0; i<end; i++) {
+            if (i != 0) { sb.append(to[2]); }
+            fields.get(i).marshal(sb, to, raw, compact);
+        }
+    }
 
-        String[] sFields = tfields.toArray(new String[tfields.size()]);
-        return StringHelper.implode(sFields, delims[2]+"");
+    /**
+     * Returns true if none of the repetitions in this repeating field hold any data. This check does not
+     * marshal or allocate.
+     * @return true if there is no data in this repeating field
+     */
+    public boolean isEmpty() {
+        for(int i=0; i<fields.size(); i++) {
+            if (!fields.get(i).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts this repeating field and its children to the target delimiter set in place.
+     * @param to the delimiter set to convert to
+     * @param raw true if the data should be left as is (MSH-2)
+     */
+    void recode(char[] to, boolean raw) {
+        for(HL7Field field : fields) {
+            field.recode(to, raw);
+        }
+        delims = to;
     }
 
     /**
@@ -239,10 +294,7 @@ public class HL7RepeatingField implements GenericStructure, DelimitedStructure {
      * @param delims the delimiter set to use
      */
     public void changeDelims(char[] delims) {
-        this.delims = delims;
-        for(HL7Field field : fields) {
-            field.changeDelims(delims);
-        }
+        recode(delims, parent != null && parent.isMSHDelimiterField(this));
     }
 
     /**
@@ -67,9 +67,38 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * fields that have components.
      */
     public void compress() {
-        while(getRepeatingFields().get(getRepeatingFields().size()-1).marshal().equals("")) {
-            getRepeatingFields().remove(getRepeatingFields().size()-1);
+        while(fields.size() > 1 && marshalsEmpty(fields.get(fields.size()-1))) {
+            fields.remove(fields.size()-1);
         }
+        setDirty();
+    }
+
+    //true if the repeating field would marshal to an empty string. A field that has components never does.
+    private static boolean marshalsEmpty(HL7RepeatingField rf) {
+        List<HL7Field> rfFields = rf.getFields();
+        if (rfFields.size() > 1) {
+            return false;
+        }
+        if (rfFields.isEmpty()) {
+            return true;
+        }
+        HL7Field f = rfFields.get(0);
+        if (f.isBaseField()) {
+            return "".equals(f.marshal());
+        }
+        List<HL7FieldComponent> comps = f.getFieldComponents();
+        if (comps.size() > 1) {
+            return false;
+        }
+        if (comps.isEmpty()) {
+            return true;
+        }
+        HL7FieldComponent c = comps.get(0);
+        if (c.isBaseField()) {
+            return "".equals(c.marshal());
+        }
+        List<HL7FieldSubcomponent> subs = c.getFieldSubcomponents();
+        return subs.isEmpty() || (subs.size() == 1 && "".equals(subs.get(0).marshal()));
     }
 
     /**
@@ -77,8 +106,28 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * @return a copy of this HL7Segment
      */
     public HL7Segment copy() {
-        HL7Segment seg = new HL7Segment(getDelims());
-        seg.unmarshal(marshal());
+        return copy(null, true);
+    }
+
+    /**
+     * Makes a copy of this segment attached to the provided parent, by copying the node lists directly. The data
+     * Strings are shared, not copied. If retainData is false, everything but the segment name and the MSH-2
+     * encoding characters is left empty.
+     * @param newParent the parent of the copy
+     * @param retainData false to leave the copy empty, but with the same shape
+     * @return a copy of this segment
+     */
+    HL7Segment copy(HL7Structure newParent, boolean retainData) {
+        HL7Segment seg = new HL7Segment(delims);
+        seg.parent = newParent;
+        seg.fields.ensureCapacity(fields.size());
+        boolean msh = isMSH();
+        for(int i=0; i<fields.size(); i++) {
+            seg.fields.add(fields.get(i).copy(seg, retainData || i == 0 || (msh && i == 1)));
+        }
+        if (!seg.fields.isEmpty() && !seg.fields.get(0).getFields().isEmpty()) {
+            seg.segmentNameDataField = seg.fields.get(0).getField(0);
+        }
         return seg;
     }
 
@@ -105,15 +154,38 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * @return a String representation of this data.
      */
     public String marshal() {
-        ArrayList<String> segfields = new ArrayList<String>();
-        
-        for(HL7RepeatingField inField : fields) {
-            String field = inField.marshal();
-            segfields.add(field);
+        return marshal(false);
+    }
+
+    /**
+     * Marshals all underlying data in this structure as a String. If compact is true, trailing empty fields,
+     * repetitions, components and subcomponents are left out as the segment is written, without modifying it.
+     * @param compact true to leave out trailing empty values
+     * @return a String representation of this data.
+     */
+    public String marshal(boolean compact) {
+        StringBuilder sb = new StringBuilder();
+        marshal(sb, delims, compact);
+        return sb.toString();
+    }
+
+    /**
+     * Appends this segment to the StringBuilder, using the target delimiter set. The MSH-2 field is written as is.
+     * @param sb the StringBuilder to append to
+     * @param to the delimiter set to marshal with
+     * @param compact true to leave out trailing empty values
+     */
+    void marshal(StringBuilder sb, char[] to, boolean compact) {
+        boolean msh = isMSH();
+        int end = fields.size();
+        if (compact) {
+            while (end > 1 && fields.get(end-1).isEmpty()) { end--; }
+        }
+        for(int i=0; i<end; i++) {
+            if (i != 0) { sb.append(to[0]); }
+            boolean raw = msh && i == 1;
+            fields.get(i).marshal(sb, to, raw, compact && !raw);
         }
-        
-        String[] sFields = segfields.toArray(new String[segfields.size()]);
-        return StringHelper.implode(sFields, delims[0]+"");
     }
     
     /**
@@ -255,11 +327,25 @@ public class HL7Segment implements GenericStructure, DelimitedStructure {
      * @param chars the delimiters
      */
     public void changeDelims(char[] chars) {
-        delims = chars;
-        List<HL7RepeatingField> locFields = getRepeatingFields();
-        for(HL7RepeatingField field : locFields) {
-            field.changeDelims(chars);
+        boolean msh = isMSH();
+        for(int i=0; i<fields.size(); i++) {
+            fields.get(i).recode(chars, msh && i == 1);
         }
+        delims = chars;
+    }
+
+    /**
+     * Determines if the provided repeating field is the MSH-2 field of this segment, which holds the encoding
+     * characters and must never be escaped.
+     * @param rf the repeating field to check
+     * @return true if rf is MSH-2
+     */
+    boolean isMSHDelimiterField(HL7RepeatingField rf) {
+        return isMSH() && fields.size() > 1 && fields.get(1) == rf;
+    }
+
+    private boolean isMSH() {
+        return segmentNameDataField != null && "MSH".equals(segmentNameDataField.marshal());
     }
     
     /**
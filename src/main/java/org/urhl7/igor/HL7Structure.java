@@ -26,7 +26,6 @@ package org.urhl7.igor;
 
 import java.util.ArrayList;
 import java.util.List;
-import org.urhl7.utils.StringHelper;
 
 /**
  * This data object is a representation of an HL7 message. 
@@ -43,6 +42,22 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
      */
     protected boolean needsRecache = true;
 
+    /**
+     * Set when changeDelims has been called, but the segments still hold data escaped with their old delimiters.
+     */
+    private boolean delimsPending = false;
+
+    /**
+     * Set on structures created by copyOnWrite(). Segments whose parent is not this structure are shared with the
+     * structure this was copied from, and are copied before anything is handed out that could change them.
+     */
+    private boolean copyOnWrite = false;
+
+    /**
+     * The number of shared segments copied into this structure so far, so that a field handed out from a shared segment
+     * can tell when it may have been copied.
+     */
+    int copiedSegments = 0;
 
     private HL7StructureHelper helper = null;
     
@@ -175,42 +190,86 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
 
     /**
      * Makes an exact copy of this HL7Structure and returns it. If retainData is false, it will
-     * also remove the data, but leave the structure intact.
+     * also remove the data, but leave the structure intact. The copy is made by walking the tree once and
+     * copying the node lists, sharing the (immutable) data Strings rather than marshalling and reparsing.
      * @param retainData flag to retain the data inside the structure
      * @return a copy of this structure
      */
     public HL7Structure copy(boolean retainData) {
-        String thisString = this.marshal();
-        HL7Structure newStruct = Igor.structure(thisString);
-        if (!retainData) {
-            for(HL7Segment seg : newStruct.getSegments()) {
-                for(int i=0; i<seg.getRepeatingFields().size(); i++) {
-                    if(i!=0) {
-                        HL7RepeatingField rf = seg.getRepeatingField(i);
-                        for(HL7Field f : rf.getFields()) {
-                            if(!f.isBaseField()) {
-                                for(HL7FieldComponent cd : f.getFieldComponents()) {
-                                    if(!cd.isBaseField()) {
-                                        for(HL7FieldSubcomponent fsc : cd.getFieldSubcomponents()) {
-                                            fsc.setData("");
-                                        }
-                                    } else {
-                                        cd.setData("");
-                                    }
-                                }
-                            } else {
-                                if (!f.marshal().equals( (new String(newStruct.getDelims())).substring(1) )) {
-                                    f.setData("");
-                                }
-                            }
-                        }
-                    }
-                }
+        HL7Structure newStruct = new HL7Structure(delimSet);
+        if (segments != null) {
+            newStruct.segments = new ArrayList<HL7Segment>(segments.size());
+            for(HL7Segment seg : segments) {
+                newStruct.segments.add(seg.copy(newStruct, retainData));
             }
         }
+        newStruct.delimsPending = delimsPending;
         return newStruct;
     }
 
+    /**
+     * Makes a copy-on-write copy of this HL7Structure. The copy starts out sharing every segment with this structure,
+     * so creating it costs one list copy. A segment is only copied into the new structure when something that could
+     * change it is handed out, such as a DataField from get(), or the segment itself from getSegment(). Writes to the
+     * copy never change this structure, and marshalling the copy does not copy anything.
+     * <br />
+     * This is meant for fanning one message out to several routes that each change a few fields. Changes made to this
+     * structure after the copy was taken can show up in segments the copy has not touched yet, so this structure
+     * should not be changed while its copies are in use.
+     * @return a copy-on-write copy of this structure
+     */
+    public HL7Structure copyOnWrite() {
+        HL7Structure view = new HL7Structure(delimSet);
+        if (segments != null) {
+            view.segments = new ArrayList<HL7Segment>(segments);
+        }
+        view.delimsPending = delimsPending;
+        view.copyOnWrite = true;
+        return view;
+    }
+
+    /**
+     * Returns true if this structure was created by copyOnWrite().
+     * @return true if segments may be shared with another structure
+     */
+    public boolean isCopyOnWrite() {
+        return copyOnWrite;
+    }
+
+    /**
+     * Returns the segment at a specific position, first copying it into this structure if it is shared with the
+     * structure this one was copied from.
+     * @param pos the position
+     * @return a segment owned by this structure
+     */
+    HL7Segment ownSegment(int pos) {
+        HL7Segment seg = segments.get(pos);
+        if (copyOnWrite && seg.getParent() != this) {
+            seg = seg.copy(this, true);
+            segments.set(pos, seg);
+            copiedSegments++;
+            needsRecache = true;
+        }
+        return seg;
+    }
+
+    private void ownAllSegments() {
+        if (copyOnWrite) {
+            for(int i=0; i<segments.size(); i++) {
+                ownSegment(i);
+            }
+        }
+    }
+
+    /**
+     * Returns the underlying segment list for read-only use inside this package. Shared segments are not copied.
+     * @return the segment list
+     */
+    List<HL7Segment> segmentList() {
+        applyPendingDelims();
+        return segments;
+    }
+
     /**
      * Tests if the current structure meets the requirements specified by the list of HL7Rules.
      * @param rules list of rules
@@ -267,6 +326,7 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
      * @param seg the segment to add
      */
     public void addSegment(int index, HL7Segment seg) {
+        applyPendingDelims();
         seg.setParent(this);
         seg.changeDelims(getDelims());
         segments.add(index, seg);
@@ -278,6 +338,7 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
      * @return success of adding the segment
      */
     public boolean addSegment(HL7Segment seg) {
+        applyPendingDelims();
         seg.setParent(this);
         seg.changeDelims(getDelims());
         return segments.add(seg);
@@ -298,6 +359,8 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
      * @return the segment that was removed
      */
     public HL7Segment removeSegment(int pos) {
+        applyPendingDelims();
+        ownSegment(pos);
         return segments.remove(pos);
     }
     
@@ -307,7 +370,8 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
      * @return the HL7Segment retrieved
      */
     public HL7Segment getSegment(int pos) {
-        return segments.get(pos);
+        applyPendingDelims();
+        return ownSegment(pos);
     }
 
     /**
@@ -316,26 +380,36 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
      * @return segment position
      */
     public int getSegmentPosition(HL7Segment seg) {
+        applyPendingDelims();
         return segments.indexOf(seg);
     }
 
     /**
-     * Returns a string representation of this and the underlying data structures
+     * Returns a string representation of this and the underlying data structures. If the delimiters have been
+     * changed, data is converted to the new delimiters as it is written.
      * @return a String representation of this structure
      */
     public String marshal() {
-        ArrayList<String> loSegs = new ArrayList<String>();
-        
-        for(HL7Segment segment : segments) {
-            String seg = segment.marshal();
-            loSegs.add(seg);
+        return marshal(false);
+    }
+
+    /**
+     * Returns a string representation of this and the underlying data structures. If compact is true, trailing empty
+     * fields, repetitions, components and subcomponents are left out as the message is written. This gives the same
+     * output as compress() for simple fields, without modifying the structure.
+     * @param compact true to leave out trailing empty values
+     * @return a String representation of this structure
+     */
+    public String marshal(boolean compact) {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0; i<segments.size(); i++) {
+            if (i != 0) { sb.append(SEGMENT_SPLIT_STRING); }
+            segments.get(i).marshal(sb, delimSet, compact);
         }
-        String[] sSegs = loSegs.toArray(new String[loSegs.size()]);
-        String retValue = StringHelper.implode(sSegs, SEGMENT_SPLIT_STRING);
-        if (!retValue.endsWith(SEGMENT_SPLIT_STRING)){
-            retValue = retValue + SEGMENT_SPLIT_STRING;
+        if (sb.length() == 0 || sb.charAt(sb.length()-1) != SEGMENT_SPLIT_STRING.charAt(0)) {
+            sb.append(SEGMENT_SPLIT_STRING);
         }
-        return retValue;
+        return sb.toString();
     }
     
     /**
@@ -346,6 +420,7 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
         this.data = data;
 
         segments = new ArrayList<HL7Segment>();
+        delimsPending = false;
                 
         String[] segmentStrings = data.split(SEGMENT_SPLIT_STRING); // HL7 breaker
 
@@ -360,10 +435,14 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
 
     /**
      * Returns a List of the HL7Segment objects that are maintained in this data structure. This value can be null if no 
-     * data was unmarshalled.
+     * data was unmarshalled. On a copy-on-write structure, this copies every segment that is still shared.
      * @return A list of HL7Segments
      */
     public List<HL7Segment> getSegments() {
+        applyPendingDelims();
+        if (segments != null) {
+            ownAllSegments();
+        }
         return segments;
     }
 
@@ -375,10 +454,11 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
      */
     public List<HL7Segment> getSegments(String segmentName) {
         List<HL7Segment> matchingSegs = new ArrayList<HL7Segment>();
+        applyPendingDelims();
         if(segments != null) {
-            for(HL7Segment possibleMatch : segments) {
-                if (possibleMatch.getSegmentName().equals(segmentName)) {
-                    matchingSegs.add(possibleMatch);
+            for(int i=0; i<segments.size(); i++) {
+                if (segments.get(i).getSegmentName().equals(segmentName)) {
+                    matchingSegs.add(ownSegment(i));
                 }
             }
         }
@@ -415,7 +495,8 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
 
     /**
      * Changes the delimiter set for this HL7Strucutre. Depending on the changeMSHDelims flag, will either automatically change
-     * the data in the MSH segment that specifies the chars, or will not.
+     * the data in the MSH segment that specifies the chars, or will not. The change is only recorded here; the data is converted
+     * to the new delimiters when the structure is marshalled, or when the segments are next accessed.
      * @param chars the characters (including field delimiter, ie '|') to set.
      * @param changeMSHDelims automatically set the MSH field to the new delimiters
      */
@@ -423,7 +504,7 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
         if (changeMSHDelims) {
             try {
                 if (segments.get(0).getSegmentName().equals("MSH")) {
-                    segments.get(0).getRepeatingField(1).getField(0).unmarshal((new String(chars)).substring(1));
+                    ownSegment(0).getRepeatingField(1).getField(0).unmarshal((new String(chars)).substring(1));
                 }
                 //if (helper().has("MSH-2")) {
                 //    HL7Field field = helper().getSegment("MSH").getRepeatingField(1).getField(0);
@@ -433,10 +514,23 @@ public class HL7Structure implements GenericStructure, DelimitedStructure {
         }
         
         delimSet = chars;
+        if (segments != null) {
+            delimsPending = true;
+            needsRecache = true;
+        }
+    }
 
-        List<HL7Segment> locSegments = getSegments();
-        for(HL7Segment seg : locSegments) {
-            seg.changeDelims(chars);
+    /**
+     * Converts all segments to the current delimiter set, if changeDelims has been called since they were last
+     * converted. Each piece of data is converted in a single pass from its old escaping to the new one.
+     */
+    private void applyPendingDelims() {
+        if (delimsPending) {
+            delimsPending = false;
+            ownAllSegments();
+            for(HL7Segment seg : segments) {
+                seg.changeDelims(delimSet);
+            }
         }
     }
     
@@ -66,8 +66,7 @@ public class HL7StructureHelper {
      */
     public boolean has(HL7Location loc) { //this is a very... simple way to do it. could be more efficient.
         if (loc.hasSegment() && !loc.hasField()) {
-            HL7Segment segment = getSegment(loc);
-            if (segment != null) {
+            if (findSegment(loc) >= 0) {
                 return true;
             }
         } else {
@@ -106,16 +105,26 @@ public class HL7StructureHelper {
      * @return the first HL7Segment that matches the LocationSpecification
      */
     public HL7Segment getSegment(HL7Location loc) {
+        int pos = findSegment(loc);
+        if (pos >= 0) {
+            return structure.ownSegment(pos);
+        }
+        return null;
+    }
+
+    //position in the structure's segment list of the first segment matching the location, or -1
+    private int findSegment(HL7Location loc) {
+        List<HL7Segment> segmentList = structure.segmentList();
         int positionCount = -1;
-        for(HL7Segment segment : structure.getSegments()) {
-            if (segment.getSegmentName().equalsIgnoreCase(loc.getSegmentName())) {
+        for(int i=0; i<segmentList.size(); i++) {
+            if (segmentList.get(i).getSegmentName().equalsIgnoreCase(loc.getSegmentName())) {
                 positionCount++;
                 if(loc.getSegmentIndex() == positionCount) {
-                    return segment;
+                    return i;
                 }
             }
         }
-        return null;
+        return -1;
     }
 
     /**
@@ -135,16 +144,13 @@ public class HL7StructureHelper {
      */
     public List<HL7Segment> getAllSegments(HL7Location loc) {
         ArrayList<HL7Segment> segments = new ArrayList<HL7Segment>();
+        List<HL7Segment> segmentList = structure.segmentList();
         int positionCount = -1;
-        for(HL7Segment segment : structure.getSegments()) {
-            if (segment.getSegmentName().equalsIgnoreCase(loc.getSegmentName())) {
+        for(int i=0; i<segmentList.size(); i++) {
+            if (segmentList.get(i).getSegmentName().equalsIgnoreCase(loc.getSegmentName())) {
                 positionCount++;
-                if( loc.isSegmentIndexImplied() ) {
-                    segments.add(segment);
-                } else {
-                    if(loc.getSegmentIndex() == positionCount) {
-                        segments.add(segment);
-                    }
+                if( loc.isSegmentIndexImplied() || loc.getSegmentIndex() == positionCount ) {
+                    segments.add(structure.ownSegment(i));
                 }
             }
         }
@@ -176,13 +182,13 @@ public class HL7StructureHelper {
         if (loc.isFullyQualified()) {
             DataField possible = _CACHE.get(loc);
             if (possible != null) {
-                return possible;
+                return writable(loc, possible);
             }
         }
 
         for (Map.Entry<HL7Location, DataField> entry : _CACHE.entrySet()) {
             if (entry.getKey().matches(loc)) {
-                return entry.getValue();
+                return writable(entry.getKey(), entry.getValue());
             }
         }
         
@@ -213,20 +219,148 @@ public class HL7StructureHelper {
 
         for (Map.Entry<HL7Location, DataField> entry : _CACHE.entrySet()) {
             if (entry.getKey().matches(loc)) {
-                listOfFields.add(entry.getValue());
+                listOfFields.add(writable(entry.getKey(), entry.getValue()));
             }
         }
         
         return listOfFields;
     }
 
+    //on a copy-on-write structure, a field in a shared segment is handed out as a SharedField, so that reading it
+    //copies nothing
+    private DataField writable(HL7Location key, DataField field) {
+        if (structure.isCopyOnWrite()) {
+            HL7Segment segment = segmentOf(field);
+            if (segment != null && segment.getParent() != structure) {
+                return new SharedField(key, field);
+            }
+        }
+        return field;
+    }
+
+    //copies the shared segment holding a field into the structure, and returns the same field in the copy. Only the
+    //cache entries of that segment are replaced.
+    private DataField ownField(HL7Location key, DataField field) {
+        HL7Segment shared = segmentOf(field);
+        List<HL7Segment> segmentList = structure.segmentList();
+        for(int i=0; i<segmentList.size(); i++) {
+            if (segmentList.get(i) == shared) {
+                boolean stale = structure.needsRecache;
+                HL7Segment seg = structure.ownSegment(i);
+                if (!stale) {
+                    cacheSegment(_CACHE, seg, seg.getSegmentName(), key.getSegmentIndex());
+                    structure.needsRecache = false;
+                }
+                return fieldAt(seg, key);
+            }
+        }
+        //copied since, through another field or the segment itself
+        if (structure.needsRecache) {
+            refreshCache();
+        }
+        DataField copied = _CACHE.get(key);
+        if (copied != null && segmentOf(copied).getParent() == structure) {
+            return copied;
+        }
+        //removed from the structure, so a write must not reach the original
+        return fieldAt(shared.copy(), key);
+    }
+
+    private static DataField fieldAt(HL7Segment segment, HL7Location key) {
+        HL7Field field = segment.getRepeatingFields().get(key.getRepeatingFieldIndex()).getFields().get(key.getFieldIndex());
+        if (key.getComponentIndex() < 0) {
+            return field;
+        }
+        HL7FieldComponent component = field.getFieldComponents().get(key.getComponentIndex());
+        if (key.getSubcomponentIndex() < 0) {
+            return component;
+        }
+        return component.getFieldSubcomponents().get(key.getSubcomponentIndex());
+    }
+
+    private static HL7Segment segmentOf(DataField field) {
+        if (field instanceof HL7FieldSubcomponent) {
+            field = ((HL7FieldSubcomponent) field).getParent();
+        }
+        if (field instanceof HL7FieldComponent) {
+            field = ((HL7FieldComponent) field).getParent();
+        }
+        if (field instanceof HL7Field) {
+            HL7RepeatingField rf = ((HL7Field) field).getParent();
+            return (rf == null) ? null : rf.getParent();
+        }
+        return null;
+    }
+
+    /**
+     * A field of a segment that a copy-on-write structure still shares with the structure it was copied from. Reading
+     * it reads the shared field. The first call that could change it copies the segment into the structure, and from
+     * then on it stands for the field in the copy, as it also does once the segment has been copied some other way.
+     */
+    private class SharedField implements DataField {
+        private final HL7Location key;
+        private DataField field;
+        private boolean owned = false;
+        private int copiedSegments;
+
+        SharedField(HL7Location key, DataField field) {
+            this.key = key;
+            this.field = field;
+            this.copiedSegments = structure.copiedSegments;
+        }
+
+        private DataField own() {
+            if (!owned) {
+                field = ownField(key, field);
+                owned = true;
+            }
+            return field;
+        }
+
+        //the field to read: the shared one, unless its segment has been copied since this was handed out
+        private DataField read() {
+            if (!owned && copiedSegments != structure.copiedSegments) {
+                copiedSegments = structure.copiedSegments;
+                if (!structure.segmentList().contains(segmentOf(field))) {
+                    return own();
+                }
+            }
+            return field;
+        }
+
+        public String getData() {
+            return read().getData();
+        }
+
+        public void setData(String data) {
+            own().setData(data);
+        }
+
+        public String marshal() {
+            return read().marshal();
+        }
+
+        public void unmarshal(String data) {
+            own().unmarshal(data);
+        }
+
+        public Object getParent() {
+            return own().getParent();
+        }
+
+        @Override
+        public String toString() {
+            return read().toString();
+        }
+    }
+
 
     private void refreshCache() {
         cacheingDone++;
         LinkedHashMap<HL7Location, DataField> table = new LinkedHashMap<HL7Location, DataField>();
 
         //for(HL7Segment segment : structure.getSegments()) {
-        List<HL7Segment> segmentList = structure.getSegments();
+        List<HL7Segment> segmentList = structure.segmentList();
         HashMap<String, Integer> mappingIndex = new HashMap<String,Integer>();
 
         for(int sIdx=0; sIdx<segmentList.size(); sIdx++) {
@@ -241,45 +375,49 @@ public class HL7StructureHelper {
                 mappingIndex.put(segmentName, segmentIndex);
             }
 
+            cacheSegment(table, segment, segmentName, segmentIndex);
+        }
 
-            List<HL7RepeatingField> repeatingFieldList = segment.getRepeatingFields();
-            for(int rfIdx=0; rfIdx<repeatingFieldList.size(); rfIdx++) {
-                HL7RepeatingField rf = repeatingFieldList.get(rfIdx);
-                    List<HL7Field> fieldList = rf.getFields();
-                    for(int fIdx=0; fIdx<fieldList.size(); fIdx++){
-                        HL7Field field = fieldList.get(fIdx);
-
-                        //if (field.isBaseField() ){
-                            HL7Location loc = new HL7Location(segmentName, segmentIndex, rfIdx, fIdx, -1, -1);
-                            table.put(loc, field);
-                        //} else {
-                        if (!field.isBaseField() ){ //
-                            List<HL7FieldComponent> fieldCompList = field.getFieldComponents();
-                            for(int fcIdx=0; fcIdx<fieldCompList.size(); fcIdx++) {
-                                HL7FieldComponent fieldcomp = fieldCompList.get(fcIdx);
-                                //if(fieldcomp.isBaseField() ){
-                                    HL7Location locfc = new HL7Location(segmentName, segmentIndex, rfIdx, fIdx, fcIdx, -1);
-                                    table.put(locfc, fieldcomp);
-                                //} else {
-                                if(!fieldcomp.isBaseField() ){ //
-                                    List<HL7FieldSubcomponent> fieldSubcompList = fieldcomp.getFieldSubcomponents();
-                                    for(int fscIdx=0; fscIdx<fieldSubcompList.size(); fscIdx++) {
-                                        HL7FieldSubcomponent fieldsub = fieldSubcompList.get(fscIdx);
-                                        if(fieldsub.isBaseField() ){ 
-                                            HL7Location locsc = new HL7Location(segmentName, segmentIndex, rfIdx, fIdx, fcIdx, fscIdx);
-                                            table.put(locsc, fieldsub);
-                                        }
+        _CACHE = table;
+        structure.needsRecache = false;
+    }
+
+    //puts the locations of every field, component and subcomponent of a segment into a cache
+    private static void cacheSegment(Map<HL7Location, DataField> table, HL7Segment segment, String segmentName, int segmentIndex) {
+        List<HL7RepeatingField> repeatingFieldList = segment.getRepeatingFields();
+        for(int rfIdx=0; rfIdx<repeatingFieldList.size(); rfIdx++) {
+            HL7RepeatingField rf = repeatingFieldList.get(rfIdx);
+                List<HL7Field> fieldList = rf.getFields();
+                for(int fIdx=0; fIdx<fieldList.size(); fIdx++){
+                    HL7Field field = fieldList.get(fIdx);
+
+                    //if (field.isBaseField() ){
+                        HL7Location loc = new HL7Location(segmentName, segmentIndex, rfIdx, fIdx, -1, -1);
+                        table.put(loc, field);
+                    //} else {
+                    if (!field.isBaseField() ){ //
+                        List<HL7FieldComponent> fieldCompList = field.getFieldComponents();
+                        for(int fcIdx=0; fcIdx<fieldCompList.size(); fcIdx++) {
+                            HL7FieldComponent fieldcomp = fieldCompList.get(fcIdx);
+                            //if(fieldcomp.isBaseField() ){
+                                HL7Location locfc = new HL7Location(segmentName, segmentIndex, rfIdx, fIdx, fcIdx, -1);
+                                table.put(locfc, fieldcomp);
+                            //} else {
+                            if(!fieldcomp.isBaseField() ){ //
+                                List<HL7FieldSubcomponent> fieldSubcompList = fieldcomp.getFieldSubcomponents();
+                                for(int fscIdx=0; fscIdx<fieldSubcompList.size(); fscIdx++) {
+                                    HL7FieldSubcomponent fieldsub = fieldSubcompList.get(fscIdx);
+                                    if(fieldsub.isBaseField() ){ 
+                                        HL7Location locsc = new HL7Location(segmentName, segmentIndex, rfIdx, fIdx, fcIdx, fscIdx);
+                                        table.put(locsc, fieldsub);
                                     }
                                 }
                             }
                         }
                     }
-                //}
-            }
+                }
+            //}
         }
-
-        _CACHE = table;
-        structure.needsRecache = false;
     }
 
     //public void printCacheUsage() {
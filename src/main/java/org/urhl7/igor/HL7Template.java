@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.igor;
+
+import java.util.List;
+
+/**
+ * A HL7Template is the blank shape of a message: the same segments, fields, repetitions, components and subcomponents,
+ * with every value empty except the segment names and the MSH-2 encoding characters. It is compiled once from an
+ * example message, and then stamps out new blank HL7Structures with a single walk of the compiled shape. Use this in
+ * place of copy(false) when building many reply or skeleton messages of the same kind.
+ * @author dmorgan
+ * @see HL7TemplateCache
+ */
+public class HL7Template {
+    private final String key;
+    private final HL7Structure prototype;
+
+    private HL7Template(String key, HL7Structure prototype) {
+        this.key = key;
+        this.prototype = prototype;
+    }
+
+    /**
+     * Compiles the shape of the provided message into a HL7Template. The message is not changed.
+     * @param structure the message to take the shape from
+     * @return a HL7Template with the shape of the message
+     */
+    public static HL7Template compile(HL7Structure structure) {
+        HL7Structure prototype = structure.copy(false);
+        prototype.segmentList(); //apply any pending delimiter change now, so the prototype is never written again
+        return new HL7Template(keyOf(structure), prototype);
+    }
+
+    /**
+     * Creates a new blank HL7Structure with the shape of this template. Every call returns a new, independent structure.
+     * @return a blank HL7Structure
+     */
+    public HL7Structure newStructure() {
+        return prototype.copy(true);
+    }
+
+    /**
+     * Returns the key this template was compiled for, made of the message type and the shape of every segment.
+     * @return the template key
+     * @see #keyOf(HL7Structure)
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the delimiter set the template's structures use.
+     * @return delimiter array
+     */
+    public char[] getDelims() {
+        return prototype.getDelims();
+    }
+
+    /**
+     * Builds the key used to match messages to templates. The key is made of the delimiters, the message type (MSH-9),
+     * and the full shape of every segment, in order: its name, and the number of repetitions, components and
+     * subcomponents in each field. Two messages with the same key have blank copies that are identical, so the key can be
+     * used to share one template between them. Building the key walks the message, but does not marshal it.
+     * @param structure the message to build a key for
+     * @return the template key
+     */
+    public static String keyOf(HL7Structure structure) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(structure.getDelims());
+        List<HL7Segment> segments = structure.segmentList();
+        if (segments != null) {
+            if (!segments.isEmpty() && segments.get(0).getRepeatingFields().size() > 8) {
+                sb.append(segments.get(0).getRepeatingField(8).marshal());
+            }
+            for(HL7Segment seg : segments) {
+                sb.append('\r').append(seg.getSegmentName());
+                List<HL7RepeatingField> fields = seg.getRepeatingFields();
+                for(int i=1; i<fields.size(); i++) {
+                    sb.append('|');
+                    appendShape(sb, fields.get(i));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    //appends the shape of a repeating field: a '~' per repetition, then for a field with components a '^' per
+    //component, followed by the subcomponent count of a component that has them. A base field or component adds nothing.
+    private static void appendShape(StringBuilder sb, HL7RepeatingField repeating) {
+        for(HL7Field field : repeating.getFields()) {
+            sb.append('~');
+            if (!field.isBaseField()) {
+                for(HL7FieldComponent comp : field.getFieldComponents()) {
+                    sb.append('^');
+                    if (!comp.isBaseField()) {
+                        sb.append(comp.getFieldSubcomponents().size());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a String representation of the blank shape of this template.
+     * @return a String representation
+     */
+    @Override
+    public String toString() {
+        return prototype.marshal();
+    }
+}
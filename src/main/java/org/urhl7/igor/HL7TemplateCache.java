@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.igor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A thread safe cache of HL7Templates, keyed by message type and message shape (see {@link HL7Template#keyOf(HL7Structure)}).
+ * The first message seen for a key is compiled into the template for that key, and every later message with the same key
+ * gets blank structures stamped from it, without marshalling, parsing or setting any data.
+ * @author dmorgan
+ */
+public class HL7TemplateCache {
+    private final ConcurrentMap<String, HL7Template> templates = new ConcurrentHashMap<String, HL7Template>();
+
+    /**
+     * Creates a new, empty HL7TemplateCache.
+     */
+    public HL7TemplateCache() {}
+
+    /**
+     * Returns the template for the message's type and shape, compiling it from this message if there is none yet.
+     * @param structure the message to find a template for
+     * @return the matching HL7Template
+     */
+    public HL7Template get(HL7Structure structure) {
+        String key = HL7Template.keyOf(structure);
+        HL7Template template = templates.get(key);
+        if (template == null) {
+            template = HL7Template.compile(structure);
+            HL7Template existing = templates.putIfAbsent(key, template);
+            if (existing != null) {
+                template = existing;
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Creates a new blank HL7Structure with the shape of the provided message, using the cached template for its type and
+     * shape.
+     * @param structure the message to take the shape from
+     * @return a blank HL7Structure
+     */
+    public HL7Structure blank(HL7Structure structure) {
+        return get(structure).newStructure();
+    }
+
+    /**
+     * Returns the number of templates in the cache.
+     * @return the number of templates
+     */
+    public int size() {
+        return templates.size();
+    }
+
+    /**
+     * Removes all templates from the cache.
+     */
+    public void clear() {
+        templates.clear();
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Splits a channel of bytes into messages on a delimiter. The framer reads into one reusable buffer and looks at
+ * each byte exactly once, remembering how much of the delimiter has been matched between reads. A message that lies
+ * inside the buffer is handed out in place; only a message that straddles two reads is copied, once, into a carry
+ * buffer. Nothing that has not been handed out yet is ever shifted or copied back.
+ * @author dmorgan
+ */
+class ChannelMessageFramer extends MessageFramer {
+    private final ReadableByteChannel channel;
+    private final byte[] buf;
+    private final ByteBuffer readBuffer;
+
+    private int limit = 0;          //number of valid bytes in buf
+    private int pos = 0;            //next byte in buf to scan
+    private int start = 0;          //start in buf of the message being scanned
+    private int matched = 0;        //number of delimiter bytes matched so far
+    private long bufferOffset;      //channel offset of buf[0]
+    private long scanStartOffset;   //channel offset where the message being scanned began
+    private boolean eof = false;
+    private boolean following = false;
+
+    private byte[] carry = new byte[0];
+    private int carryLength = 0;
+
+    private byte[] messageBytes;
+    private int messageStart;
+    private int messageLength;
+    private long messageOffset;
+
+    /**
+     * Creates a framer over a channel.
+     * @param channel the channel to read from, positioned at startOffset
+     * @param delimiter the bytes between messages
+     * @param bufferSize the size of the read buffer
+     * @param startOffset the offset the channel is positioned at, used to report message offsets
+     */
+    ChannelMessageFramer(ReadableByteChannel channel, byte[] delimiter, int bufferSize, long startOffset) {
+        super(delimiter);
+        this.channel = channel;
+        this.buf = new byte[Math.max(bufferSize, delimiter.length)];
+        this.readBuffer = ByteBuffer.wrap(buf);
+        this.bufferOffset = startOffset;
+        this.scanStartOffset = startOffset;
+    }
+
+    boolean frame() throws IOException {
+        while (true) {
+            while (pos < limit) {
+                if (matched == 0) {
+                    //nothing matched yet, so skip straight to the next possible delimiter start
+                    byte first = delimiter[0];
+                    int p = pos;
+                    while (p < limit && buf[p] != first) {
+                        p++;
+                    }
+                    pos = p;
+                    if (pos == limit) {
+                        break;
+                    }
+                }
+                byte b = buf[pos++];
+                while (matched > 0 && b != delimiter[matched]) {
+                    matched = failure[matched-1];
+                }
+                if (b == delimiter[matched]) {
+                    matched++;
+                }
+                if (matched == delimiter.length) {
+                    matched = 0;
+                    long offset = scanStartOffset;
+                    scanStartOffset = bufferOffset + pos;
+                    if (carryLength == 0) {
+                        setMessage(buf, start, pos - start - delimiter.length, offset);
+                    } else {
+                        appendCarry(buf, start, pos - start);
+                        setMessage(carry, 0, carryLength - delimiter.length, offset);
+                        carryLength = 0; //the bytes stay valid until the next append, after this message is used
+                    }
+                    start = pos;
+                    return true;
+                }
+            }
+
+            if (eof) {
+                return false;
+            }
+            if (start < limit) {
+                appendCarry(buf, start, limit - start);
+            }
+            bufferOffset += limit;
+            start = 0;
+            pos = 0;
+            limit = fill();
+            if (limit < 0) {
+                limit = 0;
+                if (following) {
+                    //the source may still grow, so keep what has been read of an unfinished message for next time
+                    return false;
+                }
+                eof = true;
+                if (carryLength > 0) {
+                    setMessage(carry, 0, carryLength, scanStartOffset);
+                    carryLength = 0;
+                    scanStartOffset = bufferOffset;
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Sets whether the channel may still grow. While following, running out of bytes is not the end of the source: a
+     * message with no delimiter after it yet is kept, and frame() tries the channel again the next time it is called.
+     * @param following true if the channel may still grow
+     */
+    void setFollowing(boolean following) {
+        this.following = following;
+    }
+
+    private int fill() throws IOException {
+        ((Buffer) readBuffer).clear();
+        int n = channel.read(readBuffer);
+        while (n == 0) {
+            n = channel.read(readBuffer);
+        }
+        return n;
+    }
+
+    private void setMessage(byte[] bytes, int from, int length, long offset) {
+        messageBytes = bytes;
+        messageStart = from;
+        messageLength = length;
+        messageOffset = offset;
+    }
+
+    private void appendCarry(byte[] bytes, int from, int length) {
+        if (carryLength + length > carry.length) {
+            byte[] bigger = new byte[Math.max(carryLength + length, carry.length * 2)];
+            System.arraycopy(carry, 0, bigger, 0, carryLength);
+            carry = bigger;
+        }
+        System.arraycopy(bytes, from, carry, carryLength, length);
+        carryLength += length;
+    }
+
+    boolean isBlank() {
+        for(int i=messageStart; i<messageStart+messageLength; i++) {
+            if ((messageBytes[i] & 0xff) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String getMessage(Charset charset) {
+        return new String(messageBytes, messageStart, messageLength, charset);
+    }
+
+    byte[] getBytes() {
+        byte[] bytes = new byte[messageLength];
+        System.arraycopy(messageBytes, messageStart, bytes, 0, messageLength);
+        return bytes;
+    }
+
+    long getOffset() {
+        return messageOffset;
+    }
+
+    int getLength() {
+        return messageLength;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.IOException;
+
+/**
+ * Keeps the checkpoint of the last message delivered during one parse, and hands it to a checkpoint listener every so
+ * many messages. Deliveries must be reported in order, one at a time.
+ * @author dmorgan
+ */
+class CheckpointTracker {
+    private final MessageFramer framer;
+    private final long firstOrdinal;
+    private final SparkCheckpointListener listener;
+    private final int interval;
+    private volatile SparkCheckpoint last;
+    private int pending = 0;
+
+    /**
+     * Creates a tracker.
+     * @param framer the framer messages are read from, for gzip restart points
+     * @param firstOrdinal the ordinal of the framer's first message in the whole file
+     * @param listener the listener to send checkpoints to, or null
+     * @param interval the number of messages between checkpoints
+     */
+    CheckpointTracker(MessageFramer framer, long firstOrdinal, SparkCheckpointListener listener, int interval) {
+        this.framer = framer;
+        this.firstOrdinal = firstOrdinal;
+        this.listener = listener;
+        this.interval = Math.max(interval, 1);
+    }
+
+    /**
+     * Records that a message has been delivered.
+     * @param ordinal the framer's ordinal of the message
+     * @param offset the offset of the message
+     * @param length the length of the message
+     * @throws IOException if the checkpoint listener fails
+     */
+    void delivered(long ordinal, long offset, int length) throws IOException {
+        last = new SparkCheckpoint(firstOrdinal + ordinal, offset, length, framer.restartPointBefore(offset));
+        if (listener != null && ++pending >= interval) {
+            pending = 0;
+            listener.checkpointReached(last);
+        }
+    }
+
+    /**
+     * Sends the last checkpoint, if it has not been sent yet.
+     * @throws IOException if the checkpoint listener fails
+     */
+    void finish() throws IOException {
+        if (listener != null && pending > 0) {
+            pending = 0;
+            listener.checkpointReached(last);
+        }
+    }
+
+    /**
+     * Returns the checkpoint of the last message delivered.
+     * @return the checkpoint, or null if nothing has been delivered
+     */
+    SparkCheckpoint getLast() {
+        return last;
+    }
+}
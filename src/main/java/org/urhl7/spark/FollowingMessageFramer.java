@@ -0,0 +1,277 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Frames a file that is still being written to, waiting at the end of it for more messages instead of stopping. A
+ * message is only handed out once the delimiter after it has been written. The file is polled, more often while
+ * messages are arriving and less often while it is idle.
+ * <br />
+ * If the file is truncated, or written over from its beginning, reading starts again from its beginning straight away.
+ * Writing over is noticed by the first bytes of the file no longer being those that were read, which is checked after
+ * every read, so it is noticed even when the file is truncated and written past where reading had got to between two
+ * polls. If the file is replaced, as when a log is rotated by renaming it and creating a new one, whatever is left of
+ * the old file is read first, and then the new file from its beginning. A replacement is noticed by the file at the
+ * path being shorter than what has been read, or by its first bytes differing from those of the file being read.
+ * @author dmorgan
+ */
+class FollowingMessageFramer extends MessageFramer {
+    private static final int FINGERPRINT_SIZE = 512;
+
+    private final File file;
+    private final int bufferSize;
+    private final long minPollInterval;
+    private final long maxPollInterval;
+    private final Object lock = new Object();
+    private volatile boolean stopped = false;
+
+    private FileInputStream stream;
+    private ChannelMessageFramer current;
+    private boolean skipFirst;
+    private boolean draining = false;
+    //the first bytes read of the file, up to FINGERPRINT_SIZE
+    private byte[] fingerprint = new byte[0];
+    private boolean writtenOver = false;
+
+    /**
+     * Creates a framer that follows a file.
+     * @param file the file to follow
+     * @param delimiter the bytes between messages
+     * @param bufferSize the size of the read buffer
+     * @param start the offset to start at; reading begins at the first message boundary at or after it, or at the
+     * beginning of the file if it is shorter than that
+     * @param minPollInterval the shortest time in milliseconds to wait for the file to grow
+     * @param maxPollInterval the longest time in milliseconds to wait for the file to grow
+     * @throws IOException
+     */
+    FollowingMessageFramer(File file, byte[] delimiter, int bufferSize, long start, long minPollInterval, long maxPollInterval) throws IOException {
+        super(delimiter);
+        this.file = file;
+        this.bufferSize = bufferSize;
+        this.minPollInterval = Math.max(minPollInterval, 1);
+        this.maxPollInterval = Math.max(maxPollInterval, this.minPollInterval);
+        this.stream = new FileInputStream(file);
+        if (start > stream.getChannel().size()) {
+            start = 0;
+        }
+        //as with a range, open a delimiter's length early and drop whatever is framed first
+        skipFirst = start > 0;
+        open(Math.max(0, start - delimiter.length));
+    }
+
+    private void open(long offset) throws IOException {
+        stream.getChannel().position(offset);
+        current = new ChannelMessageFramer(new CheckedChannel(), delimiter, bufferSize, offset);
+        current.setFollowing(true);
+    }
+
+    boolean frame() throws IOException {
+        long idle = minPollInterval;
+        while (!stopped) {
+            if (current.frame()) {
+                remember();
+                if (skipFirst) {
+                    skipFirst = false;
+                    continue;
+                }
+                return true;
+            }
+            if (draining) {
+                //everything left in the replaced file has been read, so move on to the new one
+                stream.close();
+                stream = new FileInputStream(file);
+                draining = false;
+                restart();
+                continue;
+            }
+            if (checkReplaced()) {
+                continue;
+            }
+            synchronized(lock) {
+                if (stopped) {
+                    break;
+                }
+                try {
+                    lock.wait(idle);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while following " + file);
+                }
+            }
+            idle = Math.min(idle * 2, maxPollInterval);
+        }
+        return false;
+    }
+
+    //reads the file being followed from its beginning
+    private void restart() throws IOException {
+        skipFirst = false;
+        fingerprint = new byte[0];
+        writtenOver = false;
+        open(0);
+    }
+
+    //remembers the first bytes of the file as they were when read, so writing over them can be noticed
+    private void remember() throws IOException {
+        long read = current.getOffset() + current.getLength();
+        if (fingerprint.length < FINGERPRINT_SIZE && read > fingerprint.length) {
+            byte[] bytes = new byte[(int) Math.min(FINGERPRINT_SIZE, read)];
+            readFully(stream.getChannel(), bytes);
+            fingerprint = bytes;
+        }
+    }
+
+    //called at the end of what can be read. Returns true if the file was truncated, written over or replaced.
+    private boolean checkReplaced() throws IOException {
+        FileChannel channel = stream.getChannel();
+        long position = channel.position();
+        if (writtenOver || channel.size() < position || startChanged(channel)) {
+            //truncated or written over in place; what was left to read of the old contents is gone with them
+            restart();
+            return true;
+        }
+        if (!file.exists()) {
+            //renamed away, and not created again yet
+            return false;
+        }
+        long length = file.length();
+        if (length < position || channel.size() < length || !sameStart(channel, position)) {
+            //replaced, so finish the old file, including a last message with no delimiter after it
+            current.setFollowing(false);
+            draining = true;
+            return true;
+        }
+        return false;
+    }
+
+    //compares the first bytes of the file being read with those it had when they were read
+    private boolean startChanged(FileChannel channel) throws IOException {
+        if (fingerprint.length == 0) {
+            return false;
+        }
+        byte[] now = new byte[fingerprint.length];
+        readFully(channel, now);
+        return !Arrays.equals(now, fingerprint);
+    }
+
+    //compares the first bytes of the file being read with the first bytes of the file at the path
+    private boolean sameStart(FileChannel channel, long position) throws IOException {
+        int size = (int) Math.min(FINGERPRINT_SIZE, position);
+        if (size == 0) {
+            return true;
+        }
+        byte[] ours = new byte[size];
+        readFully(channel, ours);
+        byte[] theirs = new byte[size];
+        FileInputStream other = new FileInputStream(file);
+        try {
+            readFully(other.getChannel(), theirs);
+        } finally {
+            other.close();
+        }
+        return Arrays.equals(ours, theirs);
+    }
+
+    private static void readFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                break;
+            }
+            position += n;
+        }
+    }
+
+    //reads the file being followed, checking after each read that its start is still what was read before, so that
+    //bytes written over the file are never taken for more of it. Once written over, it reads as if at the end.
+    private class CheckedChannel implements ReadableByteChannel {
+        public int read(ByteBuffer dst) throws IOException {
+            if (writtenOver) {
+                return -1;
+            }
+            FileChannel channel = stream.getChannel();
+            int n = channel.read(dst);
+            if (n > 0 && !draining && startChanged(channel)) {
+                writtenOver = true;
+                return -1;
+            }
+            return n;
+        }
+
+        public boolean isOpen() {
+            return stream.getChannel().isOpen();
+        }
+
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    /**
+     * Stops following. A call to frame() that is waiting for the file to grow returns false straight away.
+     */
+    void stop() {
+        synchronized(lock) {
+            stopped = true;
+            lock.notifyAll();
+        }
+    }
+
+    boolean isBlank() {
+        return current.isBlank();
+    }
+
+    String getMessage(Charset charset) {
+        return current.getMessage(charset);
+    }
+
+    byte[] getBytes() {
+        return current.getBytes();
+    }
+
+    long getOffset() {
+        return current.getOffset();
+    }
+
+    int getLength() {
+        return current.getLength();
+    }
+
+    public void close() throws IOException {
+        stream.close();
+    }
+}
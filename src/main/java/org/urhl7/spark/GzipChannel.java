@@ -0,0 +1,49 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+/**
+ * A channel of inflated gzip bytes that knows where gzip members start, so a position in the uncompressed bytes can be
+ * reached again by inflating from the member before it.
+ * @author dmorgan
+ */
+interface GzipChannel extends ReadableByteChannel {
+    /**
+     * Returns the last member found so far that starts at or before an uncompressed offset. This may be called from
+     * another thread while the channel is being read.
+     * @param offset the uncompressed offset
+     * @return the restart point, or null
+     */
+    GzipMemberInputStream.RestartPoint restartPointBefore(long offset);
+
+    /**
+     * Returns the members found so far that reading can start at, in order.
+     * @return the restart points
+     */
+    List<GzipMemberInputStream.RestartPoint> getRestartPoints();
+}
@@ -0,0 +1,319 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates a gzip stream, like GZIPInputStream, but keeps track of where each gzip member begins. A file written as
+ * several concatenated members can be read from the start of any member, so each member start is a restart point:
+ * the offset of the member in the compressed bytes, and the offset of its first byte in the uncompressed bytes.
+ * <br />
+ * The stream is also a channel, and reading it as one inflates straight into the destination buffer.
+ * @author dmorgan
+ */
+class GzipMemberInputStream extends InputStream implements GzipChannel {
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final InputStream in;
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] buf;
+    private int bufPos = 0;
+    private int bufLength = 0;
+    private long bufOffset;         //compressed offset of buf[0]
+    private long uncompressed;      //uncompressed offset of the next byte read
+    private long memberStart;       //uncompressed offset of the first byte of the current member
+    private boolean inMember = false;
+    private boolean eof = false;
+    private boolean strict = false;
+    private boolean open = true;
+    private final List<RestartPoint> restartPoints = new ArrayList<RestartPoint>();
+    private final byte[] single = new byte[1];
+
+    /**
+     * Creates a stream that inflates from the start of a member.
+     * @param in the compressed bytes, positioned at the start of a member
+     * @param bufferSize the size of the compressed read buffer
+     * @param compressedOffset the offset in the compressed bytes that in is positioned at
+     * @param uncompressedOffset the offset in the uncompressed bytes of the first byte of the member
+     */
+    GzipMemberInputStream(InputStream in, int bufferSize, long compressedOffset, long uncompressedOffset) {
+        this.in = in;
+        this.buf = new byte[Math.max(bufferSize, 512)];
+        this.bufOffset = compressedOffset;
+        this.uncompressed = uncompressedOffset;
+    }
+
+    /**
+     * Sets whether anything after the last member is an error. By default, as with GZIPInputStream, it is ignored.
+     * @param strict true to reject anything after the last member
+     */
+    void setStrict(boolean strict) {
+        this.strict = strict;
+    }
+
+    /**
+     * Returns the offset in the compressed bytes of the next byte the inflater will take.
+     * @return the compressed offset
+     */
+    long getCompressedOffset() {
+        return bufOffset + (inMember ? bufLength - inflater.getRemaining() : bufPos);
+    }
+
+    /**
+     * Returns the members that have been started so far, in order.
+     * @return the restart points
+     */
+    public synchronized List<RestartPoint> getRestartPoints() {
+        return new ArrayList<RestartPoint>(restartPoints);
+    }
+
+    /**
+     * Returns the last member started so far that starts at or before an uncompressed offset. This may be called from
+     * another thread while the stream is being read.
+     * @param offset the uncompressed offset
+     * @return the restart point, or null
+     */
+    public synchronized RestartPoint restartPointBefore(long offset) {
+        return before(restartPoints, offset);
+    }
+
+    /**
+     * Returns the last restart point in an ordered list that starts at or before an uncompressed offset.
+     * @param restartPoints the restart points, in order
+     * @param offset the uncompressed offset
+     * @return the restart point, or null
+     */
+    static RestartPoint before(List<RestartPoint> restartPoints, long offset) {
+        RestartPoint found = null;
+        int low = 0;
+        int high = restartPoints.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            RestartPoint point = restartPoints.get(mid);
+            if (point.uncompressedOffset <= offset) {
+                found = point;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasArray()) {
+            byte[] bytes = new byte[dst.remaining()];
+            int n = read(bytes, 0, bytes.length);
+            if (n > 0) {
+                dst.put(bytes, 0, n);
+            }
+            return n;
+        }
+        int n = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+        if (n > 0) {
+            ((Buffer) dst).position(dst.position() + n);
+        }
+        return n;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (!eof) {
+            if (!inMember) {
+                if (!readHeader()) {
+                    eof = true;
+                    break;
+                }
+                continue;
+            }
+            int n;
+            try {
+                n = inflater.inflate(b, off, len);
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage() == null ? "Invalid ZLIB data format" : e.getMessage());
+            }
+            if (n > 0) {
+                crc.update(b, off, n);
+                uncompressed += n;
+                return n;
+            }
+            if (inflater.finished()) {
+                bufPos = bufLength - inflater.getRemaining();
+                readTrailer();
+                inMember = false;
+            } else if (inflater.needsDictionary()) {
+                throw new ZipException("Unexpected preset dictionary in GZIP member");
+            } else if (inflater.needsInput()) {
+                bufPos = bufLength;
+                if (fill() <= 0) {
+                    throw new EOFException("Unexpected end of GZIP input stream");
+                }
+                inflater.setInput(buf, bufPos, bufLength - bufPos);
+            }
+        }
+        return -1;
+    }
+
+    //reads the header of the next member. Anything other than a member after the first is ignored, as GZIPInputStream does.
+    private boolean readHeader() throws IOException {
+        long compressedStart = bufOffset + bufPos;
+        int id1 = readByte();
+        boolean first = restartCount() == 0;
+        if (id1 < 0 && !first) {
+            return false;
+        }
+        int id2 = readByte();
+        if (id1 != 0x1f || id2 != 0x8b) {
+            if (first || strict) {
+                throw new ZipException(first ? "Not in GZIP format" : "Unexpected bytes after GZIP member");
+            }
+            return false;
+        }
+        if (readByte() != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flags = readByte();
+        skipBytes(6);
+        if ((flags & FEXTRA) != 0) {
+            skipBytes(readByte() | (readByte() << 8));
+        }
+        if ((flags & FNAME) != 0) {
+            skipString();
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipString();
+        }
+        if ((flags & FHCRC) != 0) {
+            skipBytes(2);
+        }
+        synchronized(this) {
+            restartPoints.add(new RestartPoint(compressedStart, uncompressed));
+        }
+        memberStart = uncompressed;
+        inflater.reset();
+        crc.reset();
+        inflater.setInput(buf, bufPos, bufLength - bufPos);
+        inMember = true;
+        return true;
+    }
+
+    private synchronized int restartCount() {
+        return restartPoints.size();
+    }
+
+    private void readTrailer() throws IOException {
+        long expectedCrc = readInt();
+        long expectedSize = readInt();
+        if (expectedCrc != crc.getValue() || expectedSize != ((uncompressed - memberStart) & 0xffffffffL)) {
+            throw new ZipException("Corrupt GZIP trailer");
+        }
+    }
+
+    private long readInt() throws IOException {
+        long value = 0;
+        for(int i=0; i<4; i++) {
+            value |= ((long) readRequiredByte()) << (8 * i);
+        }
+        return value;
+    }
+
+    private void skipBytes(int count) throws IOException {
+        for(int i=0; i<count; i++) {
+            readRequiredByte();
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (readRequiredByte() != 0) {
+            //keep skipping
+        }
+    }
+
+    private int readRequiredByte() throws IOException {
+        int b = readByte();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of GZIP input stream");
+        }
+        return b;
+    }
+
+    private int readByte() throws IOException {
+        if (bufPos == bufLength && fill() <= 0) {
+            return -1;
+        }
+        return buf[bufPos++] & 0xff;
+    }
+
+    private int fill() throws IOException {
+        bufOffset += bufLength;
+        bufPos = 0;
+        bufLength = Math.max(in.read(buf), 0);
+        return bufLength;
+    }
+
+    public void close() throws IOException {
+        open = false;
+        inflater.end();
+        in.close();
+    }
+
+    /**
+     * The start of a gzip member, where inflating can begin.
+     */
+    static final class RestartPoint {
+        final long compressedOffset;
+        final long uncompressedOffset;
+
+        RestartPoint(long compressedOffset, long uncompressedOffset) {
+            this.compressedOffset = compressedOffset;
+            this.uncompressedOffset = uncompressedOffset;
+        }
+    }
+}
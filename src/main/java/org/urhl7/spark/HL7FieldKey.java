@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.urhl7.spark;
+
+/**
+ * A partition key read from one field of a raw message, without parsing it, such as the message type or the sending
+ * facility. With a number of buckets, the key is instead a hash of the field modulo the number of buckets, so that,
+ * for example, each patient's messages land in the same one of a fixed number of files.
+ * <pre>
+ * new HL7FieldKey("MSH", HL7HeaderFilter.MESSAGE_TYPE)
+ * new HL7FieldKey("PID", 3, 16)
+ * </pre>
+ * @author dmorgan
+ */
+public class HL7FieldKey implements HL7PartitionKey {
+    private final String segment;
+    private final int field;
+    private final int buckets;
+
+    /**
+     * Creates a key of the value of a field.
+     * @param segment the segment name, such as "MSH"
+     * @param field the field number
+     */
+    public HL7FieldKey(String segment, int field) {
+        this(segment, field, 0);
+    }
+
+    /**
+     * Creates a key of a hash of a field, from 0 to one less than the number of buckets.
+     * @param segment the segment name, such as "PID"
+     * @param field the field number
+     * @param buckets the number of buckets, or 0 to use the value itself
+     */
+    public HL7FieldKey(String segment, int field, int buckets) {
+        this.segment = segment;
+        this.field = field;
+        this.buckets = buckets;
+    }
+
+    public String keyOf(String message) {
+        String value = HL7RawHeader.field(message, segment, field);
+        if (value == null || buckets <= 0) {
+            return value;
+        }
+        //String.hashCode is specified, so a value lands in the same bucket in every run
+        return String.valueOf((value.hashCode() & Integer.MAX_VALUE) % buckets);
+    }
+
+    /**
+     * Returns the segment name the key is read from.
+     * @return the segment
+     */
+    public String getSegment() {
+        return segment;
+    }
+
+    /**
+     * Returns the field number the key is read from.
+     * @return the field
+     */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * Returns the number of buckets.
+     * @return the number of buckets, or 0 if the value is used itself
+     */
+    public int getBuckets() {
+        return buckets;
+    }
+}
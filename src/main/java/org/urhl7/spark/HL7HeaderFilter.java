@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A filter that accepts messages by one field of their MSH segment, read without parsing the message. A value matches
+ * the whole field, or its first component, so "ADT" matches a message type of "ADT^A01", and "ADT^A01" matches only
+ * that.
+ * <pre>
+ * reader.setFilter(new HL7HeaderFilter(HL7HeaderFilter.MESSAGE_TYPE, "ADT^A01", "ADT^A04"));
+ * </pre>
+ * @author dmorgan
+ */
+public class HL7HeaderFilter implements HL7MessageFilter {
+    /**
+     * MSH-3, the sending application.
+     */
+    public static final int SENDING_APPLICATION = 3;
+
+    /**
+     * MSH-4, the sending facility.
+     */
+    public static final int SENDING_FACILITY = 4;
+
+    /**
+     * MSH-9, the message type.
+     */
+    public static final int MESSAGE_TYPE = 9;
+
+    private final int field;
+    private final Set<String> values;
+
+    /**
+     * Creates a filter accepting messages with one of the values in an MSH field.
+     * @param field the MSH field number, such as MESSAGE_TYPE
+     * @param values the values to accept, as they appear in the message
+     */
+    public HL7HeaderFilter(int field, String... values) {
+        this.field = field;
+        this.values = new HashSet<String>(Arrays.asList(values));
+    }
+
+    public boolean accept(String message) {
+        String value = HL7RawHeader.field(message, field);
+        if (value == null) {
+            return false;
+        }
+        if (values.contains(value)) {
+            return true;
+        }
+        int component = value.indexOf(componentSeparator(message));
+        return component >= 0 && values.contains(value.substring(0, component));
+    }
+
+    //the component separator is the first encoding character, MSH-2
+    private static char componentSeparator(String message) {
+        String encoding = HL7RawHeader.field(message, 2);
+        return encoding == null || encoding.length() == 0 ? '^' : encoding.charAt(0);
+    }
+
+    /**
+     * Returns the MSH field number being filtered on.
+     * @return the field
+     */
+    public int getField() {
+        return field;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.urhl7.igor.HL7Structure;
+
+/**
+ * Collects messages into batches for an HL7BatchListener. A batch is closed and delivered when it holds a number of
+ * messages, when the raw messages in it reach a number of bytes, or when its first message has waited a length of time,
+ * whichever comes first. The time limit is kept by a timer thread, so a batch is delivered on time even when no more
+ * messages arrive. Once the batch listener returns false, further messages are dropped and false is returned.
+ * <br />
+ * The batcher is thread safe, and can be used as an HL7MessageListener for any producer; SparkFileReader and
+ * SparkDirectoryReader also use one directly, so that batches can be sized in bytes and checkpoints only cover
+ * messages whose batch has been delivered.
+ * @author dmorgan
+ */
+public class HL7MessageBatcher implements HL7MessageListener {
+    private final HL7BatchListener listener;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long maxDelay;
+
+    private List<HL7Structure> batch = new ArrayList<HL7Structure>();
+    private long bytes = 0;
+    private boolean success = true;
+    private Timer timer;
+    private TimerTask due;
+    private RuntimeException timerFailure;
+
+    //the last message added or filtered out, so a checkpoint can be taken once its batch is delivered
+    private CheckpointTracker tracker;
+    private boolean positioned = false;
+    private long lastOrdinal;
+    private long lastOffset;
+    private int lastLength;
+    private IOException checkpointFailure;
+
+    /**
+     * Creates a batcher.
+     * @param listener the batch listener to deliver to
+     * @param maxMessages the most messages in a batch
+     * @param maxBytes the most bytes of raw messages in a batch, or 0 for no limit
+     * @param maxDelay the longest time in milliseconds the first message in a batch waits, or 0 for no limit
+     */
+    public HL7MessageBatcher(HL7BatchListener listener, int maxMessages, long maxBytes, long maxDelay) {
+        this.listener = listener;
+        this.maxMessages = Math.max(maxMessages, 1);
+        this.maxBytes = maxBytes;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Adds a message, whose size is not known, to the current batch.
+     * @param message the message
+     * @return false if a batch listener has returned false
+     */
+    public boolean messageReceived(HL7Structure message) {
+        return add(message, 0);
+    }
+
+    /**
+     * Adds a message to the current batch, delivering the batch if it is full.
+     * @param message the message
+     * @param size the size in bytes of the raw message
+     * @return false if a batch listener has returned false
+     */
+    public synchronized boolean add(HL7Structure message, int size) {
+        rethrow();
+        if (!success) {
+            return false;
+        }
+        if (batch.isEmpty()) {
+            scheduleDelivery();
+        }
+        batch.add(message);
+        bytes += size;
+        if (batch.size() >= maxMessages || (maxBytes > 0 && bytes >= maxBytes)) {
+            flush();
+        }
+        return success;
+    }
+
+    //adds a message read at a known position
+    synchronized boolean add(HL7Structure message, int size, long ordinal, long offset) {
+        position(ordinal, offset, size);
+        return add(message, size);
+    }
+
+    //records a message that was read but not added, such as one filtered out
+    synchronized void handled(long ordinal, long offset, int size) {
+        position(ordinal, offset, size);
+        if (batch.isEmpty()) {
+            checkpoint();
+        }
+    }
+
+    private void position(long ordinal, long offset, int size) {
+        positioned = true;
+        lastOrdinal = ordinal;
+        lastOffset = offset;
+        lastLength = size;
+    }
+
+    /**
+     * Delivers the current batch now, if it has any messages.
+     * @return false if a batch listener has returned false
+     */
+    public synchronized boolean flush() {
+        rethrow();
+        if (due != null) {
+            due.cancel();
+            due = null;
+        }
+        if (!batch.isEmpty()) {
+            List<HL7Structure> full = batch;
+            batch = new ArrayList<HL7Structure>();
+            bytes = 0;
+            if (success && !listener.batchReceived(full)) {
+                success = false;
+            }
+        }
+        checkpoint();
+        return success;
+    }
+
+    private void checkpoint() {
+        if (tracker != null && positioned && checkpointFailure == null) {
+            positioned = false;
+            try {
+                tracker.delivered(lastOrdinal, lastOffset, lastLength);
+            } catch (IOException e) {
+                checkpointFailure = e;
+            }
+        }
+    }
+
+    /**
+     * Delivers the current batch, and stops the timer.
+     * @return true if every batch listener call returned true
+     */
+    public synchronized boolean close() {
+        try {
+            return flush();
+        } finally {
+            cancel();
+        }
+    }
+
+    //delivers the current batch and stops the timer, throwing anything that went wrong on the timer or taking a checkpoint
+    synchronized boolean finish() throws IOException {
+        boolean result = close();
+        if (checkpointFailure != null) {
+            IOException e = checkpointFailure;
+            checkpointFailure = null;
+            throw e;
+        }
+        return result;
+    }
+
+    //stops the timer without delivering
+    synchronized void cancel() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        due = null;
+    }
+
+    synchronized void setTracker(CheckpointTracker tracker) {
+        this.tracker = tracker;
+        this.positioned = false;
+    }
+
+    /**
+     * Returns true if every batch listener call so far returned true.
+     * @return the success so far
+     */
+    public synchronized boolean isSuccess() {
+        return success;
+    }
+
+    private void rethrow() {
+        if (timerFailure != null) {
+            RuntimeException e = timerFailure;
+            timerFailure = null;
+            throw e;
+        }
+    }
+
+    //delivers the batch that has just opened when its first message has waited maxDelay, unless it is delivered sooner
+    private void scheduleDelivery() {
+        if (maxDelay <= 0) {
+            return;
+        }
+        if (timer == null) {
+            timer = new Timer("spark-batcher", true);
+        }
+        due = new TimerTask() {
+            public void run() {
+                synchronized(HL7MessageBatcher.this) {
+                    if (due == this && !batch.isEmpty()) {
+                        try {
+                            flush();
+                        } catch (RuntimeException e) {
+                            timerFailure = e;
+                        }
+                    }
+                }
+            }
+        };
+        timer.schedule(due, maxDelay);
+    }
+
+    /**
+     * Returns the batch listener being delivered to.
+     * @return the batch listener
+     */
+    public HL7BatchListener getListener() {
+        return listener;
+    }
+}
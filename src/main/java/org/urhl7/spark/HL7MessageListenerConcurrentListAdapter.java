@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.urhl7.spark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.urhl7.igor.HL7Structure;
+
+/**
+ * A version of HL7MessageListenerListAdapter that can be called from many threads at once, such as by a SparkFileReader
+ * with worker threads or a SparkDirectoryReader with a thread safe listener. Messages are appended to a lock-free queue,
+ * so producers never wait on each other. Messages from one thread keep their order, but those from different threads
+ * interleave. Like HL7MessageListenerListAdapter, it holds every message, so should only be used for small files.
+ * @author dmorgan
+ */
+public class HL7MessageListenerConcurrentListAdapter implements HL7MessageListener {
+    private final ConcurrentLinkedQueue<HL7Structure> messages = new ConcurrentLinkedQueue<HL7Structure>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Called whenever a message is parsed completely. This method appends the HL7Structure to the collected messages.
+     * @param message the message recieved
+     * @return always returns true (as per general collection contract)
+     */
+    public boolean messageReceived(HL7Structure message) {
+        messages.add(message);
+        count.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns a copy of the messages collected so far.
+     * @return the list
+     */
+    public List<HL7Structure> getList() {
+        return new ArrayList<HL7Structure>(messages);
+    }
+
+    /**
+     * Returns the number of messages collected so far.
+     * @return the number of messages
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * Removes all collected messages. Messages added at the same time may or may not be kept.
+     */
+    public void clearList() {
+        for(HL7Structure message = messages.poll(); message != null; message = messages.poll()) {
+            count.decrementAndGet();
+        }
+    }
+}
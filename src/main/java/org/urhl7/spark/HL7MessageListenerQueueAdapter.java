@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.urhl7.spark;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.urhl7.igor.HL7Structure;
+
+/**
+ * An adapter that hands messages from a producer, such as a SparkFileReader, to consumer threads through a bounded
+ * queue. The producer waits while the queue is full, so memory stays bounded however large the file. Once the producer
+ * is done, end() lets the consumers drain the queue and then see that there are no more messages.
+ * <pre>
+ * final HL7MessageListenerQueueAdapter queue = new HL7MessageListenerQueueAdapter(1000);
+ * //on the consumer threads
+ * for(HL7Structure message = queue.take(); message != null; message = queue.take()) { ... }
+ * //on the reading thread
+ * try { reader.parse(); } finally { queue.end(); }
+ * </pre>
+ * @author dmorgan
+ */
+public class HL7MessageListenerQueueAdapter implements HL7MessageListener {
+    //put once per waiting consumer, and again by each consumer that takes it, so every consumer sees the end
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue;
+    private volatile boolean ended = false;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Creates a queue adapter.
+     * @param capacity the most messages waiting at once
+     */
+    public HL7MessageListenerQueueAdapter(int capacity) {
+        this.queue = new ArrayBlockingQueue<Object>(Math.max(capacity, 1));
+    }
+
+    /**
+     * Puts a message on the queue, waiting while it is full.
+     * @param message the message recieved
+     * @return false if the adapter has been cancelled or the thread was interrupted, which stops the producer
+     */
+    public boolean messageReceived(HL7Structure message) {
+        if (cancelled) {
+            return false;
+        }
+        try {
+            queue.put(message);
+            return !cancelled;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Marks the end of the messages. Consumers take what is left on the queue, and then null.
+     * <br />
+     * The end goes on the queue behind the messages, so this waits while the queue is full. If the consumers may have
+     * stopped taking, call cancel() instead, which does not wait.
+     */
+    public void end() {
+        if (!ended) {
+            ended = true;
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stops the producer at its next message, and ends the messages. Messages already on the queue are discarded, and
+     * consumers take null from then on. This does not wait, whether or not end() has been called.
+     */
+    public void cancel() {
+        cancelled = true;
+        ended = true;
+        endNow();
+    }
+
+    //clears the queue until the end fits; a producer caught putting as it was cancelled puts at most once more
+    private void endNow() {
+        do {
+            queue.clear();
+        } while (!queue.offer(END));
+    }
+
+    /**
+     * Takes the next message, waiting for one if need be.
+     * @return the message, or null once end() has been called and every message has been taken
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public HL7Structure take() throws InterruptedException {
+        return unwrap(queue.take());
+    }
+
+    /**
+     * Takes the next message, waiting at most a length of time for one.
+     * @param timeout how long to wait
+     * @param unit the unit of the timeout
+     * @return the message, or null if none came in time, or once end() has been called and every message has been taken
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public HL7Structure poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Object next = queue.poll(timeout, unit);
+        return next == null ? null : unwrap(next);
+    }
+
+    private HL7Structure unwrap(Object next) throws InterruptedException {
+        if (next == END) {
+            //leave the end for the other consumers; only a cancelled queue can be full after the end
+            if (!queue.offer(END)) {
+                if (cancelled) {
+                    endNow();
+                } else {
+                    queue.put(END);
+                }
+            }
+            return null;
+        }
+        return cancelled ? null : (HL7Structure) next;
+    }
+
+    /**
+     * Returns true once end() has been called and every message has been taken.
+     * @return true if there are no more messages
+     */
+    public boolean isDrained() {
+        return ended && queue.peek() == END;
+    }
+
+    /**
+     * Returns the number of messages waiting.
+     * @return the queue depth
+     */
+    public int size() {
+        int size = queue.size();
+        return queue.contains(END) ? size - 1 : size;
+    }
+}
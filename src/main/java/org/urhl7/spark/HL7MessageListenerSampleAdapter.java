@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.urhl7.spark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.urhl7.igor.HL7Structure;
+
+/**
+ * An adapter that keeps a uniform random sample of at most a number of messages, however many it receives, by
+ * reservoir sampling: the first messages fill the sample, and after that the nth message replaces a random one with a
+ * chance of size / n. Memory is bounded by the sample size, so this suits files of any size, such as for picking test
+ * data out of a production feed. It can be called from many threads at once without locking.
+ * @author dmorgan
+ */
+public class HL7MessageListenerSampleAdapter implements HL7MessageListener {
+    private final AtomicReferenceArray<HL7Structure> sample;
+    private final AtomicLong seen = new AtomicLong();
+    private final long seed;
+    private final ThreadLocal<Random> random;
+
+    /**
+     * Creates a sampling adapter.
+     * @param size the most messages to keep
+     */
+    public HL7MessageListenerSampleAdapter(int size) {
+        this(size, System.nanoTime());
+    }
+
+    /**
+     * Creates a sampling adapter with a random seed, so that a sample taken on one thread can be repeated.
+     * @param size the most messages to keep
+     * @param seed the random seed
+     */
+    public HL7MessageListenerSampleAdapter(int size, long seed) {
+        this.sample = new AtomicReferenceArray<HL7Structure>(Math.max(size, 1));
+        this.seed = seed;
+        this.random = new ThreadLocal<Random>() {
+            private final AtomicLong threads = new AtomicLong();
+
+            @Override
+            protected Random initialValue() {
+                return new Random(HL7MessageListenerSampleAdapter.this.seed + threads.getAndIncrement());
+            }
+        };
+    }
+
+    /**
+     * Offers a message to the sample.
+     * @param message the message recieved
+     * @return always returns true
+     */
+    public boolean messageReceived(HL7Structure message) {
+        long n = seen.getAndIncrement();
+        if (n < sample.length()) {
+            sample.set((int) n, message);
+        } else {
+            long slot = (long) (random.get().nextDouble() * (n + 1));
+            if (slot < sample.length()) {
+                sample.set((int) slot, message);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a copy of the sample.
+     * @return the sampled messages
+     */
+    public List<HL7Structure> getSample() {
+        List<HL7Structure> list = new ArrayList<HL7Structure>(sample.length());
+        for(int i=0; i<sample.length(); i++) {
+            HL7Structure message = sample.get(i);
+            if (message != null) {
+                list.add(message);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the number of messages received.
+     * @return the number of messages seen
+     */
+    public long getSeen() {
+        return seen.get();
+    }
+
+    /**
+     * Returns the most messages kept.
+     * @return the sample size
+     */
+    public int getSize() {
+        return sample.length();
+    }
+}
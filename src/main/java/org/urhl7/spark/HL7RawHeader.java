@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+/**
+ * Reads fields of the MSH segment straight from a raw message, without parsing it, by scanning only as far into the
+ * first segment as the field asked for. Fields of other segments are found the same way, a segment at a time. This is
+ * much cheaper than Igor.structure, for deciding whether a message is worth parsing at all, or where it should go.
+ * Values are returned as they appear in the message, still escaped.
+ * @author dmorgan
+ */
+public final class HL7RawHeader {
+    private HL7RawHeader() {
+    }
+
+    /**
+     * Returns a field of the MSH segment of a raw message, numbered as in HL7, so field 10 is MSH-10, the message control
+     * id.
+     * @param message the raw message
+     * @param field the field number, 2 or more
+     * @return the raw field, or null if the message does not start with an MSH segment or the field is not there
+     */
+    public static String field(String message, int field) {
+        int start = 0;
+        while (start < message.length() && message.charAt(start) <= ' ') {
+            start++;
+        }
+        if (!message.startsWith("MSH", start) || message.length() < start + 4) {
+            return null;
+        }
+        char separator = message.charAt(start + 3);
+        int pos = start + 4;
+        for(int i=2; i<field; i++) {
+            int next = endOf(message, pos, separator);
+            if (next >= message.length() || message.charAt(next) != separator) {
+                return null;
+            }
+            pos = next + 1;
+        }
+        return message.substring(pos, endOf(message, pos, separator));
+    }
+
+    /**
+     * Returns a field of the first segment of a raw message with a name, such as PID-3, the patient identifier list.
+     * Fields of MSH are numbered as by field(message, field).
+     * @param message the raw message
+     * @param segment the segment name, such as "PID"
+     * @param field the field number, 1 or more
+     * @return the raw field, or null if the message has no such segment or the field is not there
+     */
+    public static String field(String message, String segment, int field) {
+        if (segment.equals("MSH")) {
+            return field(message, field);
+        }
+        String encoding = field(message, 2);
+        if (encoding == null) {
+            return null;
+        }
+        char separator = message.charAt(message.indexOf("MSH") + 3);
+        int pos = 0;
+        while (pos < message.length()) {
+            while (pos < message.length() && message.charAt(pos) <= ' ') {
+                pos++;
+            }
+            if (message.startsWith(segment, pos) && pos + segment.length() < message.length()
+                    && message.charAt(pos + segment.length()) == separator) {
+                pos += segment.length() + 1;
+                for(int i=1; i<field; i++) {
+                    int next = endOf(message, pos, separator);
+                    if (next >= message.length() || message.charAt(next) != separator) {
+                        return null;
+                    }
+                    pos = next + 1;
+                }
+                return message.substring(pos, endOf(message, pos, separator));
+            }
+            //on to the next segment
+            while (pos < message.length() && message.charAt(pos) != '\r' && message.charAt(pos) != '\n') {
+                pos++;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the sending application, MSH-3, of a raw message.
+     * @param message the raw message
+     * @return the raw field, or null if it is not there
+     */
+    public static String getSendingApplication(String message) {
+        return field(message, 3);
+    }
+
+    /**
+     * Returns the sending facility, MSH-4, of a raw message.
+     * @param message the raw message
+     * @return the raw field, or null if it is not there
+     */
+    public static String getSendingFacility(String message) {
+        return field(message, 4);
+    }
+
+    /**
+     * Returns the message type, MSH-9, of a raw message, such as "ADT^A01".
+     * @param message the raw message
+     * @return the raw field, or null if it is not there
+     */
+    public static String getMessageType(String message) {
+        return field(message, 9);
+    }
+
+    /**
+     * Returns the message control id, MSH-10, of a raw message.
+     * @param message the raw message
+     * @return the raw field, or null if it is not there
+     */
+    public static String getControlId(String message) {
+        return field(message, 10);
+    }
+
+    private static int endOf(String message, int pos, char separator) {
+        while (pos < message.length()) {
+            char c = message.charAt(pos);
+            if (c == separator || c == '\r' || c == '\n') {
+                return pos;
+            }
+            pos++;
+        }
+        return pos;
+    }
+}
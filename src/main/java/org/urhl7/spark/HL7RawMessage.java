@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.urhl7.spark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import org.urhl7.igor.HL7Structure;
+import org.urhl7.igor.Igor;
+
+/**
+ * A message as it was read from a file, kept as bytes and not parsed. Jobs that only copy, split or forward messages
+ * can carry them this way end to end, and pay for decoding and parsing only for the messages they look inside. The
+ * text and the parsed structure are each made the first time they are asked for, and kept.
+ * @author dmorgan
+ */
+public class HL7RawMessage {
+    private final byte[] bytes;
+    private final Charset charset;
+    private final long ordinal;
+    private final long offset;
+    private String text;
+    private HL7Structure structure;
+
+    /**
+     * Creates a raw message from the bytes of a message.
+     * @param bytes the bytes of the message, not including any delimiter; the array is kept, not copied
+     * @param charset the character set the bytes are encoded in
+     */
+    public HL7RawMessage(byte[] bytes, Charset charset) {
+        this(bytes, charset, -1, -1);
+    }
+
+    /**
+     * Creates a raw message from the text of a message.
+     * @param text the text of the message
+     * @param charset the character set to encode the text in
+     */
+    public HL7RawMessage(String text, Charset charset) {
+        this(text.getBytes(charset), charset, -1, -1);
+        this.text = text;
+    }
+
+    //a message read from a file, at a known position
+    HL7RawMessage(byte[] bytes, Charset charset, long ordinal, long offset) {
+        this.bytes = bytes;
+        this.charset = charset;
+        this.ordinal = ordinal;
+        this.offset = offset;
+    }
+
+    /**
+     * Returns the bytes of the message. The array is not copied, and must not be changed.
+     * @return the bytes
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the length of the message in bytes.
+     * @return the length
+     */
+    public int getLength() {
+        return bytes.length;
+    }
+
+    /**
+     * Returns the character set the bytes are encoded in.
+     * @return the charset
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Returns the zero based ordinal of the message in the file it was read from.
+     * @return the ordinal, or -1 if the message was not read from a file
+     */
+    public long getOrdinal() {
+        return ordinal;
+    }
+
+    /**
+     * Returns the offset in the (decompressed) file of the first byte of the message.
+     * @return the offset, or -1 if the message was not read from a file
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the text of the message, decoding it the first time.
+     * @return the text
+     */
+    public synchronized String getText() {
+        if (text == null) {
+            text = new String(bytes, charset);
+        }
+        return text;
+    }
+
+    /**
+     * Returns the message parsed into an HL7Structure, parsing it the first time. Changes made to the structure are not
+     * reflected in the bytes or text of this message.
+     * @return the parsed message
+     */
+    public synchronized HL7Structure toStructure() {
+        if (structure == null) {
+            structure = Igor.structure(getText());
+        }
+        return structure;
+    }
+
+    /**
+     * Returns true if the message has been parsed.
+     * @return true if toStructure has been called
+     */
+    public synchronized boolean isParsed() {
+        return structure != null;
+    }
+
+    /**
+     * Writes the bytes of the message, unchanged.
+     * @param out the stream to write to
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return getText();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Splits a file into messages by memory mapping it one window at a time and scanning the mapped bytes directly. The raw
+ * file is never read onto the heap; only each message being decoded is bulk copied into one reusable scratch array on its
+ * way to a String. When a message runs past the end of a window, the next window is mapped starting at that message, so
+ * every message is always whole inside one window. A message bigger than the window gets a bigger window.
+ * @author dmorgan
+ */
+class MappedMessageFramer extends MessageFramer {
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int windowLength;
+
+    private int pos = 0;        //next byte in the window to scan
+    private int start = 0;      //start in the window of the message being scanned
+    private int matched = 0;    //number of delimiter bytes matched so far
+    private boolean eof = false;
+
+    private int messageStart;
+    private int messageLength;
+
+    private byte[] scratch = new byte[0];
+
+    /**
+     * Creates a framer over a file channel.
+     * @param channel the file to read
+     * @param delimiter the bytes between messages
+     * @param windowSize the number of bytes to map at once
+     * @param startOffset the offset in the file to start at
+     * @throws IOException
+     */
+    MappedMessageFramer(FileChannel channel, byte[] delimiter, long windowSize, long startOffset) throws IOException {
+        super(delimiter);
+        this.channel = channel;
+        this.fileSize = channel.size();
+        this.windowSize = Math.max(Math.min(windowSize, Integer.MAX_VALUE), delimiter.length);
+        map(Math.min(startOffset, fileSize), this.windowSize);
+    }
+
+    private void map(long offset, long length) throws IOException {
+        windowStart = offset;
+        windowLength = (int) Math.min(length, fileSize - offset);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+    }
+
+    boolean frame() throws IOException {
+        while (true) {
+            while (pos < windowLength) {
+                if (matched == 0) {
+                    byte first = delimiter[0];
+                    int p = pos;
+                    while (p < windowLength && window.get(p) != first) {
+                        p++;
+                    }
+                    pos = p;
+                    if (pos == windowLength) {
+                        break;
+                    }
+                }
+                byte b = window.get(pos++);
+                while (matched > 0 && b != delimiter[matched]) {
+                    matched = failure[matched-1];
+                }
+                if (b == delimiter[matched]) {
+                    matched++;
+                }
+                if (matched == delimiter.length) {
+                    matched = 0;
+                    messageStart = start;
+                    messageLength = pos - start - delimiter.length;
+                    start = pos;
+                    return true;
+                }
+            }
+
+            if (windowStart + windowLength >= fileSize) {
+                if (eof) {
+                    return false;
+                }
+                eof = true;
+                if (start < windowLength) {
+                    messageStart = start;
+                    messageLength = windowLength - start;
+                    start = windowLength;
+                    return true;
+                }
+                return false;
+            }
+
+            //the message runs past this window. map the next one starting at the message, keeping the scan state.
+            long length = windowSize;
+            if (start == 0) {
+                length = Math.min((long) windowLength * 2, Integer.MAX_VALUE - 8);
+            }
+            int scanned = pos - start;
+            map(windowStart + start, length);
+            pos = scanned;
+            start = 0;
+        }
+    }
+
+    boolean isBlank() {
+        for(int i=messageStart; i<messageStart+messageLength; i++) {
+            if ((window.get(i) & 0xff) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String getMessage(Charset charset) {
+        //a bulk copy into a reusable array, then String's own decoding, is much faster than a CharsetDecoder over
+        //the mapped buffer, and copies no more: the decoder fills a CharBuffer that toString() copies again.
+        if (scratch.length < messageLength) {
+            scratch = new byte[Math.max(messageLength, scratch.length * 2)];
+        }
+        ByteBuffer slice = window.duplicate();
+        ((Buffer) slice).position(messageStart);
+        slice.get(scratch, 0, messageLength);
+        return new String(scratch, 0, messageLength, charset);
+    }
+
+    byte[] getBytes() {
+        byte[] bytes = new byte[messageLength];
+        ByteBuffer slice = window.duplicate();
+        ((Buffer) slice).position(messageStart);
+        slice.get(bytes);
+        return bytes;
+    }
+
+    long getOffset() {
+        return windowStart + messageStart;
+    }
+
+    int getLength() {
+        return messageLength;
+    }
+
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
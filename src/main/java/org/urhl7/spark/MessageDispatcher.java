@@ -0,0 +1,279 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.urhl7.igor.HL7Structure;
+import org.urhl7.igor.Igor;
+
+/**
+ * Parses raw messages and hands them to a listener on a pool of worker threads. The number of messages that have been
+ * dispatched but not yet delivered is bounded, so a fast reader blocks instead of filling memory. In ordered mode,
+ * parsed messages wait in a reorder buffer and are delivered one at a time in ordinal order; otherwise each worker
+ * delivers as soon as it has parsed, and the listener must be thread safe.
+ * <br />
+ * With virtual threads, every message is parsed and delivered on a thread of its own instead of on a fixed pool, and
+ * the thread count is the most messages in flight at once. Unordered delivery is still reported to the tracker in
+ * ordinal order, so a checkpoint never passes a message that has not finished; messages are only counted out of flight
+ * once those before them have finished too.
+ * <br />
+ * As with a sequential parse, once the listener returns false it is not called again, and the result is false.
+ * @author dmorgan
+ */
+class MessageDispatcher {
+    private final HL7MessageListener listener;
+    private final HL7MessageFilter filter;
+    private final HL7MessageBatcher batcher;
+    private final boolean ordered;
+    private final ExecutorService workers;
+    private final Semaphore inFlight;
+    private final CheckpointTracker tracker;
+
+    private final AtomicBoolean success = new AtomicBoolean(true);
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    //reorder buffer, guarded by this
+    private final Map<Long, Parsed> ready = new HashMap<Long, Parsed>();
+    private long nextOrdinal = 0;
+    private boolean draining = false;
+
+    /**
+     * Creates a dispatcher and starts its worker threads.
+     * @param listener the listener to deliver to
+     * @param filter the filter raw messages must pass to be parsed, or null
+     * @param batcher the batcher to add messages to instead of calling the listener, or null
+     * @param threads the number of worker threads, or with virtual threads, the most messages in flight
+     * @param ordered true to deliver in ordinal order
+     * @param capacity the number of messages that may wait for a worker
+     * @param firstOrdinal the ordinal of the first message that will be dispatched
+     * @param tracker the tracker to report deliveries to, in order, or null; only used when delivery is ordered or on
+     * virtual threads, and not needed with a batcher, which reports deliveries itself
+     * @param virtual true to run each message on a thread of its own, virtual where the JVM has them
+     */
+    MessageDispatcher(HL7MessageListener listener, HL7MessageFilter filter, HL7MessageBatcher batcher, int threads, boolean ordered, int capacity, long firstOrdinal, CheckpointTracker tracker, boolean virtual) {
+        this.listener = listener;
+        this.filter = filter;
+        this.batcher = batcher;
+        this.ordered = ordered;
+        this.tracker = tracker;
+        this.nextOrdinal = firstOrdinal;
+        if (virtual) {
+            this.inFlight = new Semaphore(Math.max(threads, 1));
+            this.workers = VirtualThreads.newExecutor();
+        } else {
+            this.inFlight = new Semaphore(Math.max(capacity, 1) + threads);
+            this.workers = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+        }
+    }
+
+    /**
+     * Hands a raw message to the workers, blocking while too many messages are in flight.
+     * @param ordinal the ordinal of the message; ordinals must be dispatched without gaps
+     * @param message the raw message
+     * @param offset the offset of the message in the file
+     * @param length the length of the message in bytes
+     * @return false if a worker has failed, and no more messages should be dispatched
+     * @throws InterruptedException
+     */
+    boolean dispatch(final long ordinal, final String message, final long offset, final int length) throws InterruptedException {
+        if (failure.get() != null) {
+            return false;
+        }
+        inFlight.acquire();
+        workers.execute(new Runnable() {
+            public void run() {
+                HL7Structure structure = null;
+                boolean accepted = false;
+                try {
+                    accepted = filter == null || filter.accept(message);
+                    if (accepted) {
+                        structure = Igor.structure(message);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+                if (ordered) {
+                    complete(ordinal, new Parsed(structure, accepted, offset, length));
+                } else if (tracker != null) {
+                    //delivered now, but reported to the tracker in order
+                    boolean handled = accepted ? deliver(structure, ordinal, offset, length) : success.get() && failure.get() == null;
+                    complete(ordinal, new Parsed(handled, offset, length));
+                } else {
+                    deliver(structure, ordinal, offset, length);
+                    inFlight.release();
+                }
+            }
+        });
+        return true;
+    }
+
+    //adds a parsed message to the reorder buffer, and delivers whatever is next in order, unless another worker is
+    //already doing so. A message that was already delivered is only reported to the tracker. The listener is called
+    //outside the lock, so other workers can keep adding while it runs.
+    private void complete(long ordinal, Parsed parsed) {
+        synchronized(this) {
+            ready.put(ordinal, parsed);
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        while (true) {
+            Parsed next;
+            long delivering;
+            synchronized(this) {
+                next = ready.remove(nextOrdinal);
+                if (next == null) {
+                    draining = false;
+                    return;
+                }
+                delivering = nextOrdinal++;
+            }
+            //a filtered message counts as handled, so checkpoints move past it
+            boolean handled;
+            if (next.delivered) {
+                handled = next.handled;
+            } else if (next.accepted) {
+                handled = deliver(next.structure, delivering, next.offset, next.length);
+            } else {
+                handled = success.get() && failure.get() == null;
+                if (handled && batcher != null) {
+                    batcher.handled(delivering, next.offset, next.length);
+                }
+            }
+            if (handled && tracker != null) {
+                try {
+                    tracker.delivered(delivering, next.offset, next.length);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+            inFlight.release();
+        }
+    }
+
+    //returns true if the listener was called and returned normally
+    private boolean deliver(HL7Structure structure, long ordinal, long offset, int length) {
+        if (structure == null || !success.get() || failure.get() != null) {
+            return false;
+        }
+        try {
+            boolean received = batcher != null ? batcher.add(structure, length, ordinal, offset) : listener.messageReceived(structure);
+            if (!received) {
+                success.set(false);
+            }
+            return true;
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+            return false;
+        }
+    }
+
+    /**
+     * Waits for every dispatched message to be delivered, and stops the workers. If a worker failed, the failure is
+     * thrown here.
+     * @return the AND of every listener result
+     * @throws InterruptedException
+     * @throws IOException if the checkpoint listener failed
+     */
+    boolean finish() throws InterruptedException, IOException {
+        workers.shutdown();
+        while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+            //keep waiting
+        }
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+        return success.get();
+    }
+
+    /**
+     * Stops the workers without waiting for messages in flight.
+     */
+    void abort() {
+        workers.shutdownNow();
+    }
+
+    //a parsed message waiting in the reorder buffer. A message that was filtered out or failed to parse waits with a
+    //null structure, and one that was delivered out of order waits only to be reported.
+    private static class Parsed {
+        final HL7Structure structure;
+        final boolean accepted;
+        final boolean delivered;
+        final boolean handled;
+        final long offset;
+        final int length;
+
+        Parsed(HL7Structure structure, boolean accepted, long offset, int length) {
+            this.structure = structure;
+            this.accepted = accepted;
+            this.delivered = false;
+            this.handled = false;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        Parsed(boolean handled, long offset, int length) {
+            this.structure = null;
+            this.accepted = true;
+            this.delivered = true;
+            this.handled = handled;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Names worker threads, and makes them daemons so an abandoned parse does not keep the JVM alive.
+     */
+    static class WorkerThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL = new AtomicInteger();
+        private final int pool = POOL.incrementAndGet();
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "spark-" + pool + "-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
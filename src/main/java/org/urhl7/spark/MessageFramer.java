@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Splits a source of bytes into messages on a delimiter. Implementations look at each byte once, and hand out the
+ * current message in place until next() is called again. Messages that are only whitespace are skipped.
+ * @author dmorgan
+ */
+abstract class MessageFramer implements Closeable {
+    /**
+     * The bytes between messages.
+     */
+    protected final byte[] delimiter;
+
+    /**
+     * Knuth-Morris-Pratt failure table for the delimiter, so a partial match never has to look back at earlier bytes.
+     */
+    protected final int[] failure;
+
+    private long ordinal = -1;
+    private GzipChannel gzipSource;
+
+    /**
+     * Creates a framer that splits on the provided delimiter.
+     * @param delimiter the bytes between messages
+     */
+    protected MessageFramer(byte[] delimiter) {
+        if (delimiter.length == 0) {
+            throw new IllegalArgumentException("The message delimiter can not be empty");
+        }
+        this.delimiter = delimiter;
+        this.failure = failureTable(delimiter);
+    }
+
+    /**
+     * Moves to the next message that is not blank.
+     * @return true if there is a message, false at the end of the source
+     * @throws IOException
+     */
+    boolean next() throws IOException {
+        while (frame()) {
+            if (!isBlank()) {
+                ordinal++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves to the next message, blank or not.
+     * @return true if there is a message, false at the end of the source
+     * @throws IOException
+     */
+    abstract boolean frame() throws IOException;
+
+    /**
+     * Returns true if the current message is only whitespace.
+     * @return true if blank
+     */
+    abstract boolean isBlank();
+
+    /**
+     * Decodes the current message.
+     * @param charset the character set of the source
+     * @return the current message as a String
+     */
+    abstract String getMessage(Charset charset);
+
+    /**
+     * Copies out the bytes of the current message, without decoding them.
+     * @return a new array holding the current message
+     */
+    abstract byte[] getBytes();
+
+    /**
+     * Returns the offset in the source of the first byte of the current message.
+     * @return the offset
+     */
+    abstract long getOffset();
+
+    /**
+     * Returns the length in bytes of the current message, not including the delimiter.
+     * @return the length
+     */
+    abstract int getLength();
+
+    /**
+     * Returns the zero based ordinal of the current message, counting non-blank messages only.
+     * @return the ordinal
+     */
+    long getOrdinal() {
+        return ordinal;
+    }
+
+    /**
+     * Sets the gzip source the framer's bytes are inflated from, so restart points can be found for message offsets.
+     * @param gzipSource the gzip source
+     */
+    void setGzipSource(GzipChannel gzipSource) {
+        this.gzipSource = gzipSource;
+    }
+
+    /**
+     * Returns the gzip source the framer's bytes are inflated from.
+     * @return the gzip source, or null if the source is not gzipped
+     */
+    GzipChannel getGzipSource() {
+        return gzipSource;
+    }
+
+    /**
+     * Returns the gzip member that a message offset lies in. This may be called from another thread while framing.
+     * @param offset the offset of a message
+     * @return the restart point of the member, or null if the source is not gzipped
+     */
+    GzipMemberInputStream.RestartPoint restartPointBefore(long offset) {
+        return gzipSource == null ? null : gzipSource.restartPointBefore(offset);
+    }
+
+    private static int[] failureTable(byte[] pattern) {
+        int[] table = new int[pattern.length];
+        int k = 0;
+        for(int i=1; i<pattern.length; i++) {
+            while (k > 0 && pattern[i] != pattern[k]) {
+                k = table[k-1];
+            }
+            if (pattern[i] == pattern[k]) {
+                k++;
+            }
+            table[i] = k;
+        }
+        return table;
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Inflates a gzip file written as many members on several threads at once, and reads the result back in order.
+ * <br />
+ * A scanning thread cuts the compressed file into chunks of whole members, about chunkSize compressed bytes each, and
+ * the workers inflate the chunks. In a BGZF file, every member header holds the member's size, so the cuts are exact.
+ * Otherwise a cut is made at the next place that looks like a member header, and a little is inflated from it to make
+ * sure. A chunk is only used if it inflates to whole, valid members that end exactly where the next chunk begins, so a
+ * wrong cut is caught when its chunk is reached; from there the rest of the file is inflated on the reading thread, as
+ * it is for a file that could not be cut at all, such as one with a single member.
+ * @author dmorgan
+ */
+class ParallelGzipChannel implements GzipChannel {
+    private static final Chunk END = new Chunk(-1, null, 0);
+
+    private final File file;
+    private final FileChannel channel;
+    private final long fileLength;
+    private final int chunkSize;
+    private final int bufferSize;
+    private final ExecutorService workers;
+    private final BlockingQueue<Future<Chunk>> chunks;
+    private final Thread scanner;
+    private volatile boolean closed = false;
+    private volatile int ratio = 8;     //inflated size over compressed size of the last chunk, to size the next
+    private final BlockingQueue<byte[]> spare;
+
+    private final List<GzipMemberInputStream.RestartPoint> restartPoints = new ArrayList<GzipMemberInputStream.RestartPoint>();
+    private Chunk current;
+    private int currentPos = 0;
+    private long uncompressed;
+    private GzipMemberInputStream serial;
+    private boolean eof = false;
+
+    /**
+     * Starts inflating a gzip file from the start of a member.
+     * @param file the gzip file
+     * @param threads the number of inflating threads
+     * @param chunkSize the number of compressed bytes to inflate at a time on each thread
+     * @param bufferSize the size of the read buffer used when inflating on the reading thread
+     * @param compressedOffset the offset in the file of the member to start at
+     * @param uncompressedOffset the offset in the uncompressed bytes of the first byte of that member
+     * @throws IOException
+     */
+    ParallelGzipChannel(File file, int threads, int chunkSize, int bufferSize, final long compressedOffset, long uncompressedOffset) throws IOException {
+        this.file = file;
+        this.channel = new FileInputStream(file).getChannel();
+        this.fileLength = channel.size();
+        this.chunkSize = Math.max(chunkSize, 1 << 10);
+        this.bufferSize = bufferSize;
+        this.uncompressed = uncompressedOffset;
+        this.workers = Executors.newFixedThreadPool(threads, new MessageDispatcher.WorkerThreadFactory());
+        this.chunks = new ArrayBlockingQueue<Future<Chunk>>(threads);
+        this.spare = new ArrayBlockingQueue<byte[]>(threads * 2 + 2);
+        this.scanner = new MessageDispatcher.WorkerThreadFactory().newThread(new Runnable() {
+            public void run() {
+                scan(compressedOffset);
+            }
+        });
+        scanner.start();
+    }
+
+    //cuts the file into chunks, and queues them to be inflated, in order
+    private void scan(long pos) {
+        try {
+            boolean bgzf = blockSize(pos) > 0;
+            while (pos < fileLength && !closed) {
+                long next = bgzf ? nextBlocks(pos) : -1;
+                if (next < 0) {
+                    bgzf = false;
+                    next = nextCandidate(pos);
+                }
+                if (next < 0) {
+                    //nowhere to cut, so the rest is inflated on the reading thread
+                    queue(new Chunk(pos, null, 0));
+                    return;
+                }
+                final byte[] bytes = new byte[(int) (next - pos)];
+                readFully(ByteBuffer.wrap(bytes), pos);
+                final long start = pos;
+                chunks.put(workers.submit(new Callable<Chunk>() {
+                    public Chunk call() {
+                        return inflate(start, bytes);
+                    }
+                }));
+                pos = next;
+            }
+            queue(END);
+        } catch (final Exception e) {
+            FutureTask<Chunk> failed = new FutureTask<Chunk>(new Callable<Chunk>() {
+                public Chunk call() throws Exception {
+                    throw e;
+                }
+            });
+            failed.run();
+            chunks.offer(failed);
+        }
+    }
+
+    private void queue(final Chunk chunk) throws InterruptedException {
+        FutureTask<Chunk> done = new FutureTask<Chunk>(new Callable<Chunk>() {
+            public Chunk call() {
+                return chunk;
+            }
+        });
+        done.run();
+        chunks.put(done);
+    }
+
+    //inflates a chunk of whole members, or returns a chunk with no data if it is not one
+    private Chunk inflate(long start, byte[] bytes) {
+        GzipMemberInputStream in = new GzipMemberInputStream(new ByteArrayInputStream(bytes), Math.min(bytes.length, 1 << 16), 0, 0);
+        in.setStrict(true);
+        try {
+            int expected = (int) Math.min((long) bytes.length * (ratio + 1), Integer.MAX_VALUE - 8);
+            byte[] out = spare.poll();
+            if (out == null || out.length < expected) {
+                out = new byte[Math.max(expected, 1 << 16)];
+            }
+            int length = 0;
+            while (true) {
+                if (length == out.length) {
+                    byte[] bigger = new byte[out.length * 2];
+                    System.arraycopy(out, 0, bigger, 0, length);
+                    out = bigger;
+                }
+                int n = in.read(out, length, out.length - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+            }
+            if (in.getCompressedOffset() != bytes.length) {
+                return new Chunk(start, null, 0);
+            }
+            ratio = length / Math.max(bytes.length, 1) + 1;
+            return new Chunk(start, out, length);
+        } catch (IOException e) {
+            return new Chunk(start, null, 0);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) { }
+        }
+    }
+
+    //the end of the BGZF blocks from pos that make up about a chunk, or -1 if a block is not BGZF
+    private long nextBlocks(long pos) throws IOException {
+        long target = pos + chunkSize;
+        while (pos < target && pos < fileLength) {
+            int size = blockSize(pos);
+            if (size <= 0) {
+                return -1;
+            }
+            pos += size;
+        }
+        return Math.min(pos, fileLength);
+    }
+
+    //the size of the BGZF block at pos, from the BC field of its header, or -1 if it has none
+    private int blockSize(long pos) throws IOException {
+        byte[] header = new byte[18];
+        if (readFully(ByteBuffer.wrap(header), pos) < header.length) {
+            return -1;
+        }
+        if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[2] != 8 || (header[3] & 4) == 0
+                || header[12] != 'B' || header[13] != 'C' || header[14] != 2 || header[15] != 0) {
+            return -1;
+        }
+        return ((header[16] & 0xff) | ((header[17] & 0xff) << 8)) + 1;
+    }
+
+    //the first member header found after about a chunk, the end of the file if it comes first, or -1 if there is none
+    private long nextCandidate(long pos) throws IOException {
+        long target = pos + chunkSize;
+        if (target >= fileLength) {
+            return fileLength;
+        }
+        long limit = Math.min(target + 4L * chunkSize, fileLength);
+        byte[] window = new byte[1 << 16];
+        for(long from = target; from < limit; from += window.length - 16) {
+            int n = readFully(ByteBuffer.wrap(window), from);
+            for(int i=0; i + 10 <= n; i++) {
+                if ((window[i] & 0xff) == 0x1f && looksLikeHeader(window, i) && inflatesFrom(from + i)) {
+                    return from + i;
+                }
+            }
+        }
+        return limit == fileLength ? fileLength : -1;
+    }
+
+    private static boolean looksLikeHeader(byte[] b, int i) {
+        int xfl = b[i+8] & 0xff;
+        int os = b[i+9] & 0xff;
+        return (b[i+1] & 0xff) == 0x8b && b[i+2] == 8 && (b[i+3] & 0xe0) == 0
+                && (xfl == 0 || xfl == 2 || xfl == 4) && (os <= 13 || os == 255);
+    }
+
+    //inflates a little from what looks like a member header, to rule out a chance match inside compressed data
+    private boolean inflatesFrom(long pos) throws IOException {
+        byte[] bytes = new byte[1 << 16];
+        int n = readFully(ByteBuffer.wrap(bytes), pos);
+        GzipMemberInputStream in = new GzipMemberInputStream(new ByteArrayInputStream(bytes, 0, n), n, 0, 0);
+        try {
+            byte[] out = new byte[1 << 16];
+            in.read(out, 0, out.length);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    private int readFully(ByteBuffer buffer, long pos) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, pos + total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        while (true) {
+            if (serial != null) {
+                int n = serial.read(dst);
+                if (n > 0) {
+                    uncompressed += n;
+                }
+                return n;
+            }
+            if (current != null && currentPos < current.length) {
+                int n = Math.min(dst.remaining(), current.length - currentPos);
+                dst.put(current.data, currentPos, n);
+                currentPos += n;
+                uncompressed += n;
+                return n;
+            }
+            if (eof) {
+                return -1;
+            }
+            if (current != null) {
+                //a used chunk's array can hold the next chunk a worker inflates
+                spare.offer(current.data);
+                current = null;
+            }
+            Chunk next = take();
+            if (next == END) {
+                eof = true;
+            } else if (next.data == null) {
+                inflateRest(next.start);
+            } else {
+                synchronized(this) {
+                    restartPoints.add(new GzipMemberInputStream.RestartPoint(next.start, uncompressed));
+                }
+                current = next;
+                currentPos = 0;
+            }
+        }
+    }
+
+    private Chunk take() throws IOException {
+        try {
+            return chunks.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while inflating " + file);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            throw new IOException("Could not inflate " + file + ": " + t);
+        }
+    }
+
+    //stops the workers, and inflates the rest of the file here, from a member start
+    private void inflateRest(long pos) throws IOException {
+        stop();
+        current = null;
+        FileInputStream in = new FileInputStream(file);
+        in.getChannel().position(pos);
+        GzipMemberInputStream rest = new GzipMemberInputStream(in, bufferSize, pos, uncompressed);
+        synchronized(this) {
+            serial = rest;
+        }
+    }
+
+    private void stop() {
+        closed = true;
+        scanner.interrupt();
+        workers.shutdownNow();
+        chunks.clear();
+    }
+
+    public synchronized List<GzipMemberInputStream.RestartPoint> getRestartPoints() {
+        List<GzipMemberInputStream.RestartPoint> all = new ArrayList<GzipMemberInputStream.RestartPoint>(restartPoints);
+        if (serial != null) {
+            all.addAll(serial.getRestartPoints());
+        }
+        return all;
+    }
+
+    public synchronized GzipMemberInputStream.RestartPoint restartPointBefore(long offset) {
+        GzipMemberInputStream.RestartPoint found = GzipMemberInputStream.before(restartPoints, offset);
+        GzipMemberInputStream.RestartPoint inflated = serial == null ? null : serial.restartPointBefore(offset);
+        return inflated != null && (found == null || inflated.uncompressedOffset >= found.uncompressedOffset) ? inflated : found;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        stop();
+        channel.close();
+        if (serial != null) {
+            serial.close();
+        }
+    }
+
+    //a run of whole members, inflated, or with no data if it must be inflated on the reading thread
+    private static final class Chunk {
+        final long start;
+        final byte[] data;
+        final int length;
+
+        Chunk(long start, byte[] data, int length) {
+            this.start = start;
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
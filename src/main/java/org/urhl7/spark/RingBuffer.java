@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.urhl7.spark;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for many producers and one consumer. Producers claim a slot by moving the tail with a
+ * compare and set, then publish their element into it; the consumer takes elements in claim order, and frees each slot
+ * before moving the head past it. Each element carries a time stamp, set by its producer, for measuring how long it
+ * waited.
+ * @author dmorgan
+ */
+class RingBuffer<E> {
+    private final AtomicReferenceArray<E> slots;
+    private final long[] stamps;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+    private long stamp;
+
+    /**
+     * Creates a ring buffer.
+     * @param capacity the least number of elements it holds; rounded up to a power of two
+     */
+    RingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<E>(size);
+        this.stamps = new long[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds an element, if there is room. Safe to call from any thread.
+     * @param element the element, not null
+     * @param stamp the time stamp to carry with it
+     * @return false if the buffer is full
+     */
+    boolean offer(E element, long stamp) {
+        while (true) {
+            long claim = tail.get();
+            if (claim - head >= stamps.length) {
+                return false;
+            }
+            if (tail.compareAndSet(claim, claim + 1)) {
+                int slot = (int) claim & mask;
+                stamps[slot] = stamp;
+                //publishes the stamp with the element
+                slots.lazySet(slot, element);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes the next element. Only the consumer thread may call this.
+     * @return the element, or null if there is none yet
+     */
+    E poll() {
+        int slot = (int) head & mask;
+        E element = slots.get(slot);
+        if (element == null) {
+            return null;
+        }
+        stamp = stamps[slot];
+        slots.lazySet(slot, null);
+        head = head + 1;
+        return element;
+    }
+
+    /**
+     * Returns the time stamp of the element last taken by poll. Only the consumer thread may call this.
+     * @return the time stamp
+     */
+    long getStamp() {
+        return stamp;
+    }
+
+    /**
+     * Returns the number of elements ever claimed. An element claimed may not be published yet.
+     * @return the tail
+     */
+    long getTail() {
+        return tail.get();
+    }
+
+    /**
+     * Returns the number of elements ever taken.
+     * @return the head
+     */
+    long getHead() {
+        return head;
+    }
+
+    /**
+     * Returns the number of elements waiting, which may already be out of date.
+     * @return the size
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    /**
+     * Returns the number of elements the buffer holds.
+     * @return the capacity
+     */
+    int capacity() {
+        return stamps.length;
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.urhl7.spark;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.urhl7.igor.HL7Structure;
+
+/**
+ * Writes messages to a SparkFileWriter on a thread of its own, so that producers do not wait on the disk. Messages,
+ * parsed or raw, are put in a bounded ring buffer, and the writer thread takes whatever is waiting, marshals and writes
+ * it, and flushes the file writer once per batch. Under load, batches grow, and many messages share one flush. The
+ * file writer's own flush policy is turned off, so that the batches are the only flushes.
+ * <br />
+ * When the buffer is full, a write blocks, drops the message, or fails, as set by the backpressure policy. flush()
+ * waits until every message queued before it has been written and flushed, and close() also closes the file writer.
+ * A failure on the writer thread is thrown by the next call to write, flush or close, and messages still queued are
+ * discarded.
+ * <br />
+ * The writer can also be given to a SparkFileReader as its listener or raw listener, so that a file is copied with
+ * reading and writing on separate threads.
+ * @author dmorgan
+ */
+public class SparkAsyncFileWriter implements HL7MessageListener, HL7RawMessageListener {
+    /**
+     * What a write does when the buffer is full.
+     */
+    public enum Backpressure {
+        /**
+         * Waits for room.
+         */
+        BLOCK,
+        /**
+         * Drops the message, and counts it.
+         */
+        DROP,
+        /**
+         * Throws an IOException.
+         */
+        FAIL
+    }
+
+    private static final long PARK_NANOS = 100000000L;
+    private static final long BACKOFF_NANOS = 50000L;
+
+    private final SparkFileWriter writer;
+    private final RingBuffer<Object> ring;
+    private final Backpressure backpressure;
+    private final Thread thread;
+    private final Object progress = new Object();
+
+    private volatile boolean sleeping = false;
+    private volatile boolean closing = false;
+    private volatile IOException failure;
+    private volatile long flushed = 0;
+    private volatile long written = 0;
+    private volatile long batches = 0;
+    private volatile long totalLatency = 0;
+    private volatile long maxLatency = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    //producers between checking closing and finishing their offer; the writer thread outlives them
+    private final AtomicInteger producing = new AtomicInteger();
+
+    /**
+     * Creates an asynchronous writer in front of a file writer, blocking when full.
+     * @param writer the file writer to write to; only the writer thread uses it until close
+     * @param capacity the number of messages that can wait; rounded up to a power of two
+     */
+    public SparkAsyncFileWriter(SparkFileWriter writer, int capacity) {
+        this(writer, capacity, Backpressure.BLOCK);
+    }
+
+    /**
+     * Creates an asynchronous writer in front of a file writer.
+     * @param writer the file writer to write to; only the writer thread uses it until close, and its flush every and
+     * flush interval are set to 0
+     * @param capacity the number of messages that can wait; rounded up to a power of two
+     * @param backpressure what a write does when the buffer is full
+     */
+    public SparkAsyncFileWriter(SparkFileWriter writer, int capacity, Backpressure backpressure) {
+        this.writer = writer;
+        //flushed once per batch instead
+        writer.setFlushEvery(0);
+        writer.setFlushInterval(0);
+        this.ring = new RingBuffer<Object>(Math.max(capacity, 1));
+        this.backpressure = backpressure;
+        this.thread = new MessageDispatcher.WorkerThreadFactory().newThread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * Queues a message to be marshalled and written.
+     * @param message the message
+     * @return false if the message was dropped because the buffer was full
+     * @throws IOException if the writer has failed, or the buffer is full and the policy is FAIL
+     */
+    public boolean write(HL7Structure message) throws IOException {
+        return enqueue(message);
+    }
+
+    /**
+     * Queues a raw message to be written.
+     * @param message the message
+     * @return false if the message was dropped because the buffer was full
+     * @throws IOException if the writer has failed, or the buffer is full and the policy is FAIL
+     */
+    public boolean write(HL7RawMessage message) throws IOException {
+        return enqueue(message);
+    }
+
+    /**
+     * Queues a message, as a listener.
+     * @param message the message
+     * @return false if the message could not be queued, or the writer has failed
+     */
+    public boolean messageReceived(HL7Structure message) {
+        try {
+            return enqueue(message);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Queues a raw message, as a raw listener.
+     * @param message the message
+     * @return false if the message could not be queued, or the writer has failed
+     */
+    public boolean rawMessageReceived(HL7RawMessage message) {
+        try {
+            return enqueue(message);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    //a producer counts itself in before it checks closing, and the writer thread only stops once closing is set and no
+    //producer is counted in, so a message is either refused or queued ahead of the writer thread stopping
+    private boolean enqueue(Object message) throws IOException {
+        producing.incrementAndGet();
+        try {
+            return offer(message);
+        } finally {
+            producing.decrementAndGet();
+        }
+    }
+
+    private boolean offer(Object message) throws IOException {
+        rethrow();
+        if (closing) {
+            throw new IOException("The writer is closed");
+        }
+        int waits = 0;
+        while (!ring.offer(message, System.nanoTime())) {
+            if (backpressure == Backpressure.DROP) {
+                dropped.incrementAndGet();
+                return false;
+            } else if (backpressure == Backpressure.FAIL) {
+                throw new IOException("The write buffer is full");
+            }
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+            //give the writer thread the processor first, and only then back off
+            if (++waits < 16) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(this, BACKOFF_NANOS);
+            }
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for room in the write buffer");
+            }
+            rethrow();
+        }
+        if (sleeping) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until every message queued before this call has been written and the file writer flushed.
+     * @throws IOException if the writer has failed
+     */
+    public void flush() throws IOException {
+        long until = ring.getTail();
+        LockSupport.unpark(thread);
+        try {
+            synchronized(progress) {
+                while (flushed < until && failure == null && thread.isAlive()) {
+                    progress.wait(100);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the writer to flush");
+        }
+        rethrow();
+    }
+
+    /**
+     * Writes everything queued, stops the writer thread, and closes the file writer.
+     * @throws IOException if the writer has failed
+     */
+    public void close() throws IOException {
+        closing = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the writer to close");
+        }
+        try {
+            rethrow();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void rethrow() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    //the writer thread: writes what is waiting, and flushes when it runs out
+    private void drain() {
+        int batch = 0;
+        long stamps = 0;
+        long oldest = 0;
+        while (true) {
+            Object message = ring.poll();
+            if (message != null) {
+                if (failure != null) {
+                    continue;
+                }
+                if (batch == 0) {
+                    oldest = ring.getStamp();
+                }
+                batch++;
+                stamps += ring.getStamp();
+                try {
+                    if (message instanceof HL7RawMessage) {
+                        writer.write((HL7RawMessage) message);
+                    } else {
+                        writer.write((HL7Structure) message);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = new IOException("Could not write a message", e);
+                }
+                continue;
+            }
+            if (batch > 0) {
+                finishBatch(batch, stamps, oldest);
+                batch = 0;
+                stamps = 0;
+            }
+            if (ring.getHead() == ring.getTail()) {
+                if (closing) {
+                    if (producing.get() == 0 && ring.getHead() == ring.getTail()) {
+                        return;
+                    }
+                    //a producer may still be offering
+                    Thread.yield();
+                    continue;
+                }
+                sleeping = true;
+                if (ring.getHead() == ring.getTail() && !closing) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                sleeping = false;
+            } else {
+                //claimed, but not published yet
+                Thread.yield();
+            }
+        }
+    }
+
+    private void finishBatch(int batch, long stamps, long oldest) {
+        if (failure == null) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        long now = System.nanoTime();
+        written += batch;
+        batches++;
+        totalLatency += batch * now - stamps;
+        maxLatency = Math.max(maxLatency, now - oldest);
+        flushed = ring.getHead();
+        synchronized(progress) {
+            progress.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the file writer being written to.
+     * @return the file writer
+     */
+    public SparkFileWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Returns what a write does when the buffer is full.
+     * @return the backpressure policy
+     */
+    public Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    /**
+     * Returns the number of messages the buffer holds.
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return ring.capacity();
+    }
+
+    /**
+     * Returns the number of messages waiting to be written.
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return ring.size();
+    }
+
+    /**
+     * Returns the number of messages written and flushed.
+     * @return the written count
+     */
+    public long getWrittenCount() {
+        return written;
+    }
+
+    /**
+     * Returns the number of messages dropped because the buffer was full.
+     * @return the dropped count
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of batches written, each with one flush of the file writer.
+     * @return the batch count
+     */
+    public long getBatchCount() {
+        return batches;
+    }
+
+    /**
+     * Returns the average time in nanoseconds from a message being queued to it being written and flushed.
+     * @return the average latency, or 0 if nothing has been written
+     */
+    public long getAverageLatency() {
+        long count = written;
+        return count == 0 ? 0 : totalLatency / count;
+    }
+
+    /**
+     * Returns the longest time in nanoseconds from a message being queued to it being written and flushed.
+     * @return the longest latency
+     */
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+}
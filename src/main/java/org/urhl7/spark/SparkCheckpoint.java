@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * The position of the last message a SparkFileReader delivered: its ordinal, and its byte offset and length in the
+ * file. Parsing can resume just after it with SparkFileReader.resume, without reading anything before it. For a gzipped
+ * file, the checkpoint also holds the start of the gzip member the message is in, so that inflating can begin there.
+ * <br />
+ * Checkpoints can be saved as a small sidecar file next to the message file, with ".checkpoint" added to its name.
+ * @author dmorgan
+ */
+public class SparkCheckpoint {
+    /**
+     * The extension added to a message file's name for its sidecar checkpoint.
+     */
+    public static final String SIDECAR_EXTENSION = ".checkpoint";
+
+    private final long ordinal;
+    private final long offset;
+    private final int length;
+    private final long restartCompressedOffset;
+    private final long restartUncompressedOffset;
+
+    /**
+     * Creates a checkpoint.
+     * @param ordinal the zero based ordinal of the last delivered message
+     * @param offset the byte offset of the last delivered message
+     * @param length the length in bytes of the last delivered message
+     */
+    public SparkCheckpoint(long ordinal, long offset, int length) {
+        this(ordinal, offset, length, null);
+    }
+
+    SparkCheckpoint(long ordinal, long offset, int length, GzipMemberInputStream.RestartPoint restart) {
+        this(ordinal, offset, length, restart == null ? -1 : restart.compressedOffset, restart == null ? -1 : restart.uncompressedOffset);
+    }
+
+    private SparkCheckpoint(long ordinal, long offset, int length, long restartCompressedOffset, long restartUncompressedOffset) {
+        this.ordinal = ordinal;
+        this.offset = offset;
+        this.length = length;
+        this.restartCompressedOffset = restartCompressedOffset;
+        this.restartUncompressedOffset = restartUncompressedOffset;
+    }
+
+    /**
+     * Returns the zero based ordinal of the last delivered message.
+     * @return the ordinal
+     */
+    public long getOrdinal() {
+        return ordinal;
+    }
+
+    /**
+     * Returns the byte offset of the last delivered message. For a gzipped file this is an offset in the uncompressed
+     * bytes.
+     * @return the offset
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the length in bytes of the last delivered message, not including the delimiter.
+     * @return the length
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the offset just past the last delivered message, where parsing resumes.
+     * @return the resume offset
+     */
+    public long getResumeOffset() {
+        return offset + length;
+    }
+
+    GzipMemberInputStream.RestartPoint getRestartPoint() {
+        return restartCompressedOffset < 0 ? null : new GzipMemberInputStream.RestartPoint(restartCompressedOffset, restartUncompressedOffset);
+    }
+
+    /**
+     * Writes the checkpoint to a file. The checkpoint is written to a temporary file first, and then renamed, so the
+     * file always holds a whole checkpoint.
+     * @param file the file to write
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("ordinal", Long.toString(ordinal));
+        properties.setProperty("offset", Long.toString(offset));
+        properties.setProperty("length", Integer.toString(length));
+        if (restartCompressedOffset >= 0) {
+            properties.setProperty("restart.compressedOffset", Long.toString(restartCompressedOffset));
+            properties.setProperty("restart.uncompressedOffset", Long.toString(restartUncompressedOffset));
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            properties.store(out, "SparkFileReader checkpoint");
+            out.flush();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            //some platforms will not rename over an existing file
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not write checkpoint " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads a checkpoint from a file written by write(File).
+     * @param file the checkpoint file
+     * @return the checkpoint
+     * @throws IOException if the file can not be read or is not a checkpoint
+     */
+    public static SparkCheckpoint read(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        try {
+            return new SparkCheckpoint(Long.parseLong(properties.getProperty("ordinal")),
+                    Long.parseLong(properties.getProperty("offset")),
+                    Integer.parseInt(properties.getProperty("length")),
+                    Long.parseLong(properties.getProperty("restart.compressedOffset", "-1")),
+                    Long.parseLong(properties.getProperty("restart.uncompressedOffset", "-1")));
+        } catch (NumberFormatException e) {
+            throw new IOException(file + " is not a checkpoint");
+        }
+    }
+
+    /**
+     * Returns the sidecar checkpoint file for a message file.
+     * @param messageFile the message file
+     * @return the sidecar file, which may not exist
+     */
+    public static File sidecarFor(File messageFile) {
+        return new File(messageFile.getPath() + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * Returns a listener that saves each checkpoint to the sidecar file of a message file.
+     * @param messageFile the message file
+     * @return the listener
+     */
+    public static SparkCheckpointListener sidecarListener(File messageFile) {
+        final File sidecar = sidecarFor(messageFile);
+        return new SparkCheckpointListener() {
+            public void checkpointReached(SparkCheckpoint checkpoint) throws IOException {
+                checkpoint.write(sidecar);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "message " + ordinal + " at " + offset + " (" + length + " bytes)";
+    }
+}
@@ -0,0 +1,530 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.urhl7.igor.HL7Structure;
+
+/**
+ * Reads every message file in a directory, several files at a time, delivering all of their messages to one listener.
+ * Files may be gzipped or not. The largest files are started first, so that one big file started last does not keep
+ * the rest of the pool waiting. Each file is read by its own SparkFileReader, and its result is kept, so one file that
+ * fails or is rejected by the listener does not stop the others.
+ * <br />
+ * The listener is called from several threads. Unless it is marked as thread safe, calls to it are made one at a time.
+ * @author dmorgan
+ */
+public class SparkDirectoryReader {
+    //how many times larger than its compressed length a gzipped file of many members is taken to be
+    private static final int ASSUMED_GZIP_RATIO = 5;
+
+    private File directory;
+    private Pattern pattern;
+    private boolean recursive = false;
+    private HL7MessageListener listener;
+    private HL7MessageFilter filter;
+    private HL7BatchListener batchListener;
+    private int batchSize = 1000;
+    private long batchBytes = 1 << 22;
+    private long batchDelay = 0;
+    private boolean listenerThreadSafe = false;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private String delimiter = SparkFileReader.DELIMITER_DEFAULT;
+    private Charset charset = Charset.defaultCharset();
+    private int internalBufferSize = 1 << 16;
+
+    private final Map<File, Boolean> results = Collections.synchronizedMap(new LinkedHashMap<File, Boolean>());
+    private final Map<File, Exception> failures = new ConcurrentHashMap<File, Exception>();
+
+    /**
+     * Creates a SparkDirectoryReader reading every file in a directory.
+     * @param directory the directory to read
+     * @param listener the listener to use
+     */
+    public SparkDirectoryReader(File directory, HL7MessageListener listener) {
+        this(directory, "*", listener);
+    }
+
+    /**
+     * Creates a SparkDirectoryReader reading the files in a directory whose names match a glob, such as "*.hl7" or
+     * "ADT_2012*.{hl7,hl7.gz}". A glob may use *, ?, [abc] and {a,b}.
+     * @param directory the directory to read
+     * @param glob the glob file names must match
+     * @param listener the listener to use
+     */
+    public SparkDirectoryReader(File directory, String glob, HL7MessageListener listener) {
+        this.directory = directory;
+        this.pattern = globToPattern(glob);
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the files that will be read, largest first. Hidden files and the sidecar files of SparkFileIndex and
+     * SparkCheckpoint are left out. A gzipped file is ordered by its uncompressed size, which is exact when it has a
+     * sidecar index or a single gzip member, and estimated from its compressed length when it has many members.
+     * @return the files
+     */
+    public List<File> getFiles() {
+        List<File> files = new ArrayList<File>();
+        collect(directory, files);
+        final Map<File, Long> sizes = new HashMap<File, Long>();
+        for(File f : files) {
+            sizes.put(f, estimatedSize(f));
+        }
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long difference = sizes.get(b) - sizes.get(a);
+                return difference > 0 ? 1 : difference < 0 ? -1 : a.compareTo(b);
+            }
+        });
+        return files;
+    }
+
+    private void collect(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for(File child : children) {
+            String name = child.getName();
+            if (name.startsWith(".")) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                if (recursive) {
+                    collect(child, files);
+                }
+            } else if (pattern.matcher(name).matches() && !name.endsWith(SparkFileIndex.SIDECAR_EXTENSION)
+                    && !name.endsWith(SparkCheckpoint.SIDECAR_EXTENSION)) {
+                files.add(child);
+            }
+        }
+    }
+
+    //the uncompressed size of a gzipped file, for ordering only. A sidecar index gives the size of the whole file. Without
+    //one, the gzip trailer gives the size of the last member only, modulo 4 GB; that is taken as the size of the file when
+    //it is at least the compressed length, as one member of messages always is. Otherwise the file most likely has many
+    //members, and its size is estimated from the compressed length at an assumed ratio.
+    private static long estimatedSize(File f) {
+        long length = f.length();
+        if (length < 18 || !SparkFileReader.isGZipped(f)) {
+            return length;
+        }
+        try {
+            SparkFileIndex index = SparkFileIndex.load(f);
+            if (index != null && index.size() > 0) {
+                int last = index.size() - 1;
+                return index.getOffset(last) + index.getLength(last);
+            }
+        } catch (IOException e) {
+            //estimate without it
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                raf.seek(length - 4);
+                long size = raf.read() | (raf.read() << 8) | (raf.read() << 16) | ((long) raf.read() << 24);
+                return size >= length ? size : length * ASSUMED_GZIP_RATIO;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return length;
+        }
+    }
+
+    /**
+     * Reads every file, and waits for them all to finish. Files that fail to be read are recorded in getFailures(),
+     * and do not stop the others.
+     * @return true if every file was read and the listener returned true for every message
+     * @throws IOException if interrupted while waiting
+     */
+    public boolean parse() throws IOException {
+        results.clear();
+        failures.clear();
+        final HL7MessageListener shared = listenerThreadSafe ? listener : new SynchronizedListener(listener);
+        //one batcher for every file, so batches fill up across small files
+        final HL7MessageBatcher batcher = batchListener == null ? null
+                : new HL7MessageBatcher(batchListener, batchSize, batchBytes, batchDelay);
+        List<File> files = getFiles();
+        for(File f : files) {
+            results.put(f, Boolean.FALSE);
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(parallelism, 1), new MessageDispatcher.WorkerThreadFactory());
+        try {
+            for(final File f : files) {
+                workers.execute(new Runnable() {
+                    public void run() {
+                        SparkFileReader reader = new SparkFileReader(f, shared, delimiter);
+                        reader.setCharset(charset);
+                        reader.setFilter(filter);
+                        reader.setInternalBufferSize(internalBufferSize);
+                        reader.setSharedBatcher(batcher);
+                        try {
+                            results.put(f, reader.parse());
+                        } catch (Exception e) {
+                            failures.put(f, e);
+                        }
+                    }
+                });
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                //keep waiting
+            }
+            if (batcher != null && !batcher.finish()) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + directory);
+        } finally {
+            if (batcher != null) {
+                batcher.cancel();
+            }
+            workers.shutdownNow();
+        }
+        return !results.containsValue(Boolean.FALSE);
+    }
+
+    /**
+     * Returns the result of each file from the last parse, largest file first: true if the file was read and the
+     * listener returned true for every message in it.
+     * @return the results by file
+     */
+    public Map<File, Boolean> getResults() {
+        synchronized(results) {
+            return new LinkedHashMap<File, Boolean>(results);
+        }
+    }
+
+    /**
+     * Returns the exceptions that stopped files from being read in the last parse.
+     * @return the failures by file
+     */
+    public Map<File, Exception> getFailures() {
+        return new HashMap<File, Exception>(failures);
+    }
+
+    /**
+     * Converts a glob to a regular expression matching whole file names.
+     * @param glob the glob
+     * @return the pattern
+     */
+    static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+        boolean inClass = false;
+        for(int i=0; i<glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                } else if (c == '\\') {
+                    regex.append('\\');
+                }
+                regex.append(c == '!' && glob.charAt(i-1) == '[' ? '^' : c);
+                continue;
+            }
+            switch (c) {
+                case '*':
+                    regex.append(".*");
+                    break;
+                case '?':
+                    regex.append('.');
+                    break;
+                case '[':
+                    inClass = true;
+                    regex.append('[');
+                    break;
+                case '{':
+                    inGroup = true;
+                    regex.append("(?:");
+                    break;
+                case '}':
+                    if (inGroup) {
+                        inGroup = false;
+                        regex.append(')');
+                    } else {
+                        regex.append("\\}");
+                    }
+                    break;
+                case ',':
+                    regex.append(inGroup ? "|" : ",");
+                    break;
+                default:
+                    if ("\\.^$+()|".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Returns the directory being read.
+     * @return the directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets the directory to read.
+     * @param directory the directory to set
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Sets the glob file names must match.
+     * @param glob the glob to set
+     */
+    public void setGlob(String glob) {
+        this.pattern = globToPattern(glob);
+    }
+
+    /**
+     * Returns true if files in subdirectories are read too.
+     * @return the recursive flag
+     */
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    /**
+     * Sets whether files in subdirectories are read too. The glob is matched against file names only.
+     * @param recursive true to read subdirectories
+     */
+    public void setRecursive(boolean recursive) {
+        this.recursive = recursive;
+    }
+
+    /**
+     * Returns the listener all messages are delivered to.
+     * @return the listener
+     */
+    public HL7MessageListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the listener all messages are delivered to.
+     * @param listener the listener to set
+     */
+    public void setListener(HL7MessageListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the filter raw messages must pass to be parsed.
+     * @return the filter
+     */
+    public HL7MessageFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Sets a filter raw messages must pass to be parsed and delivered. The filter is called from several threads at
+     * once, and must be thread safe.
+     * @param filter the filter to set, or null to parse every message
+     */
+    public void setFilter(HL7MessageFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Returns the batch listener messages are delivered to in batches, if one has been set.
+     * @return the batch listener
+     */
+    public HL7BatchListener getBatchListener() {
+        return batchListener;
+    }
+
+    /**
+     * Sets a batch listener to deliver messages to in batches, instead of calling the listener once per message. One
+     * set of batches is shared by every file, so a batch may hold messages from several files, and the batch listener
+     * is only ever called by one thread at a time. The last batch is delivered once every file has been read.
+     * @param batchListener the batch listener to set, or null to use the listener
+     */
+    public void setBatchListener(HL7BatchListener batchListener) {
+        this.batchListener = batchListener;
+    }
+
+    /**
+     * Returns the most messages in a batch.
+     * @return the batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the most messages in a batch. The default is 1000.
+     * @param batchSize the batch size to set
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the most bytes of raw messages in a batch.
+     * @return the batch byte budget
+     */
+    public long getBatchBytes() {
+        return batchBytes;
+    }
+
+    /**
+     * Sets the most bytes of raw messages in a batch, or 0 for no limit. The default is 4 MB.
+     * @param batchBytes the batch byte budget to set
+     */
+    public void setBatchBytes(long batchBytes) {
+        this.batchBytes = batchBytes;
+    }
+
+    /**
+     * Returns the longest time in milliseconds the first message in a batch waits before the batch is delivered.
+     * @return the batch delay
+     */
+    public long getBatchDelay() {
+        return batchDelay;
+    }
+
+    /**
+     * Sets the longest time in milliseconds the first message in a batch waits before the batch is delivered, or 0 for
+     * no limit. The default is 0.
+     * @param batchDelay the batch delay to set
+     */
+    public void setBatchDelay(long batchDelay) {
+        this.batchDelay = batchDelay;
+    }
+
+    /**
+     * Returns true if the listener may be called from several threads at once.
+     * @return the listenerThreadSafe flag
+     */
+    public boolean isListenerThreadSafe() {
+        return listenerThreadSafe;
+    }
+
+    /**
+     * Sets whether the listener may be called from several threads at once. By default calls are made one at a time,
+     * which is safe for any listener, but means a slow listener is a bottleneck.
+     * @param listenerThreadSafe true if the listener is thread safe
+     */
+    public void setListenerThreadSafe(boolean listenerThreadSafe) {
+        this.listenerThreadSafe = listenerThreadSafe;
+    }
+
+    /**
+     * Returns the number of files read at once.
+     * @return the parallelism
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of files read at once. The default is the number of processors.
+     * @param parallelism the parallelism to set
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Returns the delimiter between messages in each file.
+     * @return the delimiter
+     */
+    public String getDelimiter() {
+        return delimiter;
+    }
+
+    /**
+     * Sets the delimiter between messages in each file.
+     * @param delimiter the delimiter to set
+     */
+    public void setDelimiter(String delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Returns the character set the files are read with.
+     * @return the charset
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the character set the files are read with.
+     * @param charset the charset to set
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Gets the size in bytes of each file's read buffer.
+     * @return the internal buffer size
+     */
+    public int getInternalBufferSize() {
+        return internalBufferSize;
+    }
+
+    /**
+     * Sets the size in bytes of each file's read buffer.
+     * @param internalBufferSize the internal buffer size to set
+     */
+    public void setInternalBufferSize(int internalBufferSize) {
+        this.internalBufferSize = internalBufferSize;
+    }
+
+    //calls a listener that is not thread safe one message at a time
+    private static class SynchronizedListener implements HL7MessageListener {
+        private final HL7MessageListener listener;
+
+        SynchronizedListener(HL7MessageListener listener) {
+            this.listener = listener;
+        }
+
+        public synchronized boolean messageReceived(HL7Structure message) {
+            return listener.messageReceived(message);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of the messages in a message file: the byte offset and length of every message, by ordinal, and optionally
+ * the message control id (MSH-10) of each. With an index, a SparkFileReader can seek straight to any message or range
+ * of messages instead of reading the file from the start. For a gzipped file, the index also holds the start of each
+ * gzip member, so reading can begin at the member before a message rather than at the start of the file.
+ * <br />
+ * An index is built in one pass with SparkFileReader.buildIndex, and is usually kept next to the message file, as a
+ * sidecar with ".idx" added to its name.
+ * @author dmorgan
+ */
+public class SparkFileIndex {
+    private static final int MAGIC = 0x53504b49; //SPKI
+    private static final int VERSION = 1;
+
+    /**
+     * The extension added to a message file's name for its sidecar index.
+     */
+    public static final String SIDECAR_EXTENSION = ".idx";
+
+    private final long fileLength;
+    private int count = 0;
+    private long[] offsets = new long[1024];
+    private int[] lengths = new int[1024];
+    private String[] controlIds;
+    private Map<String, Integer> ordinals;
+    private List<GzipMemberInputStream.RestartPoint> restartPoints = new ArrayList<GzipMemberInputStream.RestartPoint>();
+
+    SparkFileIndex(long fileLength, boolean withControlIds) {
+        this.fileLength = fileLength;
+        if (withControlIds) {
+            controlIds = new String[1024];
+        }
+    }
+
+    void add(long offset, int length, String controlId) {
+        if (count == offsets.length) {
+            offsets = grow(offsets);
+            int[] biggerLengths = new int[count * 2];
+            System.arraycopy(lengths, 0, biggerLengths, 0, count);
+            lengths = biggerLengths;
+            if (controlIds != null) {
+                String[] biggerIds = new String[count * 2];
+                System.arraycopy(controlIds, 0, biggerIds, 0, count);
+                controlIds = biggerIds;
+            }
+        }
+        offsets[count] = offset;
+        lengths[count] = length;
+        if (controlIds != null) {
+            controlIds[count] = controlId;
+        }
+        count++;
+    }
+
+    private static long[] grow(long[] array) {
+        long[] bigger = new long[array.length * 2];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+
+    void setRestartPoints(List<GzipMemberInputStream.RestartPoint> restartPoints) {
+        this.restartPoints = new ArrayList<GzipMemberInputStream.RestartPoint>(restartPoints);
+    }
+
+    //the last gzip member that starts at or before the uncompressed offset, or null
+    GzipMemberInputStream.RestartPoint restartPointBefore(long offset) {
+        return GzipMemberInputStream.before(restartPoints, offset);
+    }
+
+    /**
+     * Returns the number of messages in the file.
+     * @return the message count
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the length of the message file the index was built from.
+     * @return the file length
+     */
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * Returns the byte offset of a message. For a gzipped file this is an offset in the uncompressed bytes.
+     * @param ordinal the zero based ordinal of the message
+     * @return the offset
+     */
+    public long getOffset(int ordinal) {
+        checkOrdinal(ordinal);
+        return offsets[ordinal];
+    }
+
+    /**
+     * Returns the length in bytes of a message, not including the delimiter.
+     * @param ordinal the zero based ordinal of the message
+     * @return the length
+     */
+    public int getLength(int ordinal) {
+        checkOrdinal(ordinal);
+        return lengths[ordinal];
+    }
+
+    /**
+     * Returns true if the index holds the message control id of each message.
+     * @return true if control ids are indexed
+     */
+    public boolean hasControlIds() {
+        return controlIds != null;
+    }
+
+    /**
+     * Returns the message control id (MSH-10) of a message, as it appears in the file.
+     * @param ordinal the zero based ordinal of the message
+     * @return the control id, or null if the message has none or control ids are not indexed
+     */
+    public String getControlId(int ordinal) {
+        checkOrdinal(ordinal);
+        return controlIds == null ? null : controlIds[ordinal];
+    }
+
+    /**
+     * Finds the first message with a message control id (MSH-10).
+     * @param controlId the control id, as it appears in the file
+     * @return the ordinal of the message, or -1 if there is none or control ids are not indexed
+     */
+    public synchronized int ordinalOf(String controlId) {
+        if (controlIds == null) {
+            return -1;
+        }
+        if (ordinals == null) {
+            ordinals = new HashMap<String, Integer>(count * 2);
+            for(int i=count-1; i>=0; i--) {
+                if (controlIds[i] != null) {
+                    ordinals.put(controlIds[i], i);
+                }
+            }
+        }
+        Integer ordinal = ordinals.get(controlId);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    private void checkOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= count) {
+            throw new IndexOutOfBoundsException("Message " + ordinal + " is not in the index of " + count + " messages");
+        }
+    }
+
+    /**
+     * Writes the index to a file.
+     * @param file the file to write
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fileLength);
+            out.writeInt(count);
+            out.writeBoolean(controlIds != null);
+            for(int i=0; i<count; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+                if (controlIds != null) {
+                    out.writeUTF(controlIds[i] == null ? "" : controlIds[i]);
+                }
+            }
+            out.writeInt(restartPoints.size());
+            for(GzipMemberInputStream.RestartPoint point : restartPoints) {
+                out.writeLong(point.compressedOffset);
+                out.writeLong(point.uncompressedOffset);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads an index from a file written by write(File).
+     * @param file the index file
+     * @return the index
+     * @throws IOException if the file can not be read or is not an index
+     */
+    public static SparkFileIndex read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a message index");
+            }
+            long fileLength = in.readLong();
+            int count = in.readInt();
+            SparkFileIndex index = new SparkFileIndex(fileLength, in.readBoolean());
+            for(int i=0; i<count; i++) {
+                long offset = in.readLong();
+                int length = in.readInt();
+                String controlId = null;
+                if (index.hasControlIds()) {
+                    controlId = in.readUTF();
+                    if (controlId.length() == 0) {
+                        controlId = null;
+                    }
+                }
+                index.add(offset, length, controlId);
+            }
+            int restarts = in.readInt();
+            for(int i=0; i<restarts; i++) {
+                long compressedOffset = in.readLong();
+                index.restartPoints.add(new GzipMemberInputStream.RestartPoint(compressedOffset, in.readLong()));
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the sidecar index file for a message file.
+     * @param messageFile the message file
+     * @return the sidecar file, which may not exist
+     */
+    public static File sidecarFor(File messageFile) {
+        return new File(messageFile.getPath() + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * Reads the sidecar index of a message file, if there is one and it still matches the file.
+     * @param messageFile the message file
+     * @return the index, or null if there is no sidecar or the file has changed length since it was built
+     * @throws IOException if the sidecar can not be read
+     */
+    public static SparkFileIndex load(File messageFile) throws IOException {
+        File sidecar = sidecarFor(messageFile);
+        if (!sidecar.isFile()) {
+            return null;
+        }
+        SparkFileIndex index = read(sidecar);
+        return index.getFileLength() == messageFile.length() ? index : null;
+    }
+
+    /**
+     * Builds the sidecar index of a message file.
+     * <br />
+     * Usage: SparkFileIndex file [delimiter] [-controlIds]
+     * @param args the file, an optional delimiter with \r and \n escaped, and -controlIds to index MSH-10
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: SparkFileIndex file [delimiter] [-controlIds]");
+            System.exit(1);
+        }
+        File file = new File(args[0]);
+        SparkFileReader reader = new SparkFileReader(file);
+        boolean withControlIds = false;
+        for(int i=1; i<args.length; i++) {
+            if (args[i].equals("-controlIds")) {
+                withControlIds = true;
+            } else {
+                reader.setDelimiter(args[i].replace("\\r", "\r").replace("\\n", "\n"));
+            }
+        }
+        SparkFileIndex index = reader.buildIndex(withControlIds);
+        index.write(sidecarFor(file));
+        System.out.println("Indexed " + index.size() + " messages in " + sidecarFor(file));
+    }
+}
@@ -25,6 +25,22 @@
 package org.urhl7.spark;
 
 import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.urhl7.igor.HL7Structure;
 import org.urhl7.igor.Igor;
 import java.util.zip.*;
 
@@ -36,7 +52,31 @@ public class SparkFileReader {
     private File inputFile;
     private String delimiter;
     private HL7MessageListener listener;
-    private int INTERNAL_BUFFER_SIZE = 500;
+    private HL7MessageFilter filter;
+    private HL7BatchListener batchListener;
+    private HL7RawMessageListener rawListener;
+    private int batchSize = 1000;
+    private long batchBytes = 1 << 22;
+    private long batchDelay = 0;
+    private HL7MessageBatcher sharedBatcher;
+    private Charset charset = Charset.defaultCharset();
+    private int INTERNAL_BUFFER_SIZE = 1 << 16;
+    private boolean memoryMapped = false;
+    private long mappedWindowSize = 1L << 28;
+    private int workerThreads = 1;
+    private boolean ordered = true;
+    private int queueCapacity = 1024;
+    private boolean virtualThreads = false;
+    private int maxConcurrency = 256;
+    private SparkFileIndex index;
+    private SparkCheckpointListener checkpointListener;
+    private int checkpointInterval = 10000;
+    private volatile CheckpointTracker tracker;
+    private long minPollInterval = 10;
+    private long maxPollInterval = 1000;
+    private volatile FollowingMessageFramer follower;
+    private int gzipThreads = 1;
+    private int gzipChunkSize = 1 << 17;
 
     /**
      * The default delimiter between messages. The default value is "\r\n"
@@ -102,7 +142,7 @@ public class SparkFileReader {
      * @param delimiter the delimiter between messages
      */
     public SparkFileReader(String filePath, HL7MessageListener listener, String delimiter) {
-        this(new File(filePath));
+        this(new File(filePath), listener, delimiter);
     }
 
     /**
@@ -133,6 +173,23 @@ public class SparkFileReader {
         this.delimiter = delimiter;
     }
 
+    /**
+     * Returns the character set the file is read with. Defaults to the platform character set.
+     * @return the charset
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the character set the file is read with. Messages are split on the delimiter before they are decoded, so
+     * this must be a character set where the delimiter is encoded the same way everywhere, such as UTF-8 or ISO-8859-1.
+     * @param charset the charset to set
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
     /**
      * Returned the HL7MessageListener that is being triggered for this SparkFileReader.
      * @return the listener
@@ -149,11 +206,121 @@ public class SparkFileReader {
         this.listener = listener;
     }
 
+    /**
+     * Returns the filter raw messages must pass to be parsed.
+     * @return the filter
+     */
+    public HL7MessageFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Sets a filter raw messages must pass to be parsed and delivered. A rejected message is never built into an
+     * HL7Structure, so a job that only wants a few kinds of message skips most of the parsing work. With worker threads,
+     * the filter runs on the workers too.
+     * @param filter the filter to set, or null to parse every message
+     */
+    public void setFilter(HL7MessageFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Returns the raw listener messages are delivered to unparsed, if one has been set.
+     * @return the raw listener
+     */
+    public HL7RawMessageListener getRawListener() {
+        return rawListener;
+    }
+
+    /**
+     * Sets a raw listener to deliver messages to as they were read, without parsing them, instead of the listener.
+     * Messages are delivered on the reading thread, in order; the worker threads and batch listener are not used, as
+     * there is no parsing to spread out. The filter and checkpoints apply as usual, though a filter has each message
+     * decoded to text.
+     * @param rawListener the raw listener to set, or null to parse messages for the listener
+     */
+    public void setRawListener(HL7RawMessageListener rawListener) {
+        this.rawListener = rawListener;
+    }
+
+    /**
+     * Returns the batch listener messages are delivered to in batches, if one has been set.
+     * @return the batch listener
+     */
+    public HL7BatchListener getBatchListener() {
+        return batchListener;
+    }
+
+    /**
+     * Sets a batch listener to deliver messages to in batches, instead of calling the listener once per message. A
+     * batch is delivered when it reaches the batch size, the batch byte budget, or the batch delay, and the last batch
+     * when parsing finishes. Parsing stops once the batch listener returns false, and parse returns the AND of every
+     * batch result. Checkpoints are only taken for messages whose batch has been delivered.
+     * @param batchListener the batch listener to set, or null to use the listener
+     */
+    public void setBatchListener(HL7BatchListener batchListener) {
+        this.batchListener = batchListener;
+    }
+
+    /**
+     * Returns the most messages in a batch.
+     * @return the batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the most messages in a batch. The default is 1000.
+     * @param batchSize the batch size to set
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the most bytes of raw messages in a batch.
+     * @return the batch byte budget
+     */
+    public long getBatchBytes() {
+        return batchBytes;
+    }
+
+    /**
+     * Sets the most bytes of raw messages in a batch, or 0 for no limit. The default is 4 MB.
+     * @param batchBytes the batch byte budget to set
+     */
+    public void setBatchBytes(long batchBytes) {
+        this.batchBytes = batchBytes;
+    }
+
+    /**
+     * Returns the longest time in milliseconds the first message in a batch waits before the batch is delivered.
+     * @return the batch delay
+     */
+    public long getBatchDelay() {
+        return batchDelay;
+    }
+
+    /**
+     * Sets the longest time in milliseconds the first message in a batch waits before the batch is delivered, or 0 for
+     * no limit. The default is 0; a limit matters most when following a file, where messages arrive slowly.
+     * @param batchDelay the batch delay to set
+     */
+    public void setBatchDelay(long batchDelay) {
+        this.batchDelay = batchDelay;
+    }
+
+    //makes this reader add to a batcher shared with other readers, which the caller delivers the last batch of
+    void setSharedBatcher(HL7MessageBatcher sharedBatcher) {
+        this.sharedBatcher = sharedBatcher;
+    }
+
     /*
         Shamelessly taken from http://stackoverflow.com/questions/30507653/how-to-check-whether-file-is-gzip-or-not-in-java
         Thank you kind internet friend
     */
-    private static boolean isGZipped(File f) {
+    static boolean isGZipped(File f) {
         int magic = 0;
         try {
             RandomAccessFile raf = new RandomAccessFile(f, "r");
@@ -166,60 +333,785 @@ public class SparkFileReader {
     /**
      * Begins parsing the messages in the file specified. This may throw an IOException and must be handled. The parse function reads in the file,
      * when it finds a delimiter will attempt to parse the message. This message is then sent to the listener specified.
+     * <br />
+     * The file is read through a FileChannel into one reusable buffer, and split into messages on the delimiter as
+     * bytes, each byte looked at once. Blank messages are skipped. With more than one worker thread, messages are
+     * parsed and delivered on the workers, and this returns once every message has been delivered.
      * @return success of the parsing (if any of the messaceReceived(HL7Structure struct) calls return false, this will as well).
      * @throws java.io.IOException
      */
     public boolean parse() throws java.io.IOException {
-        boolean success  = true;
-        //FileReader fr = new FileReader(inputFile);
-        
-        Reader fr = null;
-        
-        if( SparkFileReader.isGZipped(inputFile) ){
-            InputStream fileStream = new FileInputStream(inputFile);
-            InputStream gzipStream = new GZIPInputStream(fileStream);
-            Reader decoder = new InputStreamReader(gzipStream);
-            fr = new BufferedReader(decoder);
-        } else {
-            fr = new FileReader(inputFile);
+        return parse(0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Parses only the messages that begin in a range of bytes of the file. Reading starts at the first message boundary
+     * at or after start, and every message that begins before end is read whole, even if it ends past end. Splitting a
+     * file into ranges that meet end to start covers each message exactly once, so separate readers, in this JVM or
+     * others, can share one file with no coordination.
+     * <br />
+     * Offsets are in the uncompressed bytes of the file. A gzipped file still has to be inflated from its start.
+     * @param start the offset of the first byte of the range
+     * @param end the offset just past the last byte of the range
+     * @return success of the parsing (if any of the messaceReceived(HL7Structure struct) calls return false, this will as well).
+     * @throws java.io.IOException
+     */
+    public boolean parse(long start, long end) throws java.io.IOException {
+        return parse(start, end, 0, null);
+    }
+
+    /**
+     * Resumes parsing just after the message a checkpoint was taken at, and parses the rest of the file. Nothing before
+     * the checkpoint is read, except that a gzipped file is inflated from the start of the gzip member the checkpoint
+     * is in. Checkpoints taken while resuming carry on the ordinals of the checkpoint.
+     * @param checkpoint the checkpoint to resume from
+     * @return success of the parsing (if any of the messaceReceived(HL7Structure struct) calls return false, this will as well).
+     * @throws java.io.IOException
+     */
+    public boolean resume(SparkCheckpoint checkpoint) throws java.io.IOException {
+        return parse(checkpoint.getResumeOffset(), Long.MAX_VALUE, checkpoint.getOrdinal() + 1, checkpoint.getRestartPoint());
+    }
+
+    /**
+     * Returns an iterator that reads and parses the messages of the file one at a time, as they are asked for, instead
+     * of pushing them to a listener. The filter applies as it does to parse(). The listener, batch listener, worker
+     * threads and checkpoints are not used.
+     * @return an iterator over the messages in the file
+     */
+    public SparkMessageIterator iterator() {
+        return iterator(0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns an iterator over the messages that begin in a range of bytes of the file, as parse(start, end) would
+     * deliver them.
+     * @param start the offset of the first byte of the range
+     * @param end the offset just past the last byte of the range
+     * @return an iterator over the messages in the range
+     */
+    public SparkMessageIterator iterator(long start, long end) {
+        if (SparkFileReader.isGZipped(inputFile)) {
+            return new SparkMessageIterator(this, start, end, false);
+        }
+        return new SparkMessageIterator(this, start, Math.min(end, inputFile.length()), true);
+    }
+
+    /**
+     * Returns a sequential stream over the messages of the file, read and parsed as the stream asks for them, as
+     * iterator() would return them. Close the stream, or use it in a try-with-resources, to close the file if the
+     * stream is not run to the end.
+     * @return a stream of the messages in the file
+     */
+    public Stream<HL7Structure> stream() {
+        return stream(false);
+    }
+
+    /**
+     * Returns a stream over the messages of the file, which may be parallel. A parallel stream over a file that is not
+     * gzipped splits it into byte ranges at message boundaries, each read on its own thread; a gzipped file is read on
+     * one thread whatever is asked for. Closing the stream closes every range it opened.
+     * @param parallel true for a parallel stream
+     * @return a stream of the messages in the file
+     */
+    public Stream<HL7Structure> stream(boolean parallel) {
+        final SparkMessageIterator iterator = iterator();
+        return StreamSupport.stream(iterator, parallel).onClose(new Runnable() {
+            public void run() {
+                try {
+                    iterator.closeAll();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    private boolean parse(long start, long end, long firstOrdinal, GzipMemberInputStream.RestartPoint restart) throws IOException {
+        if (rawListener == null && getWorkerThreads() > 1 && !isOrdered() && checkpointListener == null
+                && !isVirtualThreads() && !SparkFileReader.isGZipped(inputFile)) {
+            return parseSplit(start, end);
+        }
+        return deliver(openRange(start, restart), end, firstOrdinal);
+    }
+
+    //delivers the framer's messages that begin before end, tracking checkpoints, and closes it
+    private boolean deliver(MessageFramer framer, long end, long firstOrdinal) throws IOException {
+        if (rawListener != null) {
+            return deliverRaw(framer, end, firstOrdinal);
+        }
+        HL7MessageBatcher batcher = openBatcher();
+        try {
+            CheckpointTracker tracker = new CheckpointTracker(framer, firstOrdinal, checkpointListener, checkpointInterval);
+            this.tracker = tracker;
+            boolean inOrder = isVirtualThreads() ? batcher != null
+                    : getWorkerThreads() <= 1 || isOrdered() || checkpointListener != null;
+            if (batcher != null && batcher != sharedBatcher && inOrder) {
+                //checkpoints are taken as batches are delivered
+                batcher.setTracker(tracker);
+            }
+            boolean success;
+            if (getWorkerThreads() > 1 || isVirtualThreads()) {
+                success = parseParallel(framer, end, tracker, batcher);
+            } else {
+                success = parseRange(framer, end, new AtomicBoolean(true), tracker, batcher);
+            }
+            success = finishBatcher(batcher) && success;
+            tracker.finish();
+            return success;
+        } finally {
+            cancelBatcher(batcher);
+            framer.close();
+        }
+    }
+
+    //as deliver, but hands the raw listener each message unparsed, on this thread
+    private boolean deliverRaw(MessageFramer framer, long end, long firstOrdinal) throws IOException {
+        try {
+            CheckpointTracker tracker = new CheckpointTracker(framer, firstOrdinal, checkpointListener, checkpointInterval);
+            this.tracker = tracker;
+            boolean success = true;
+            while (success && framer.next() && framer.getOffset() < end) {
+                HL7RawMessage message = new HL7RawMessage(framer.getBytes(), charset, framer.getOrdinal() + firstOrdinal,
+                        framer.getOffset());
+                if (filter == null || filter.accept(message.getText())) {
+                    success = rawListener.rawMessageReceived(message);
+                }
+                tracker.delivered(framer.getOrdinal(), framer.getOffset(), framer.getLength());
+            }
+            tracker.finish();
+            return success;
+        } finally {
+            framer.close();
+        }
+    }
+
+    //the batcher messages are added to instead of calling the listener, if there is a batch listener
+    private HL7MessageBatcher openBatcher() {
+        if (sharedBatcher != null) {
+            return sharedBatcher;
+        }
+        return batchListener == null ? null : new HL7MessageBatcher(batchListener, batchSize, batchBytes, batchDelay);
+    }
+
+    //delivers the last batch, unless the batcher is shared with other readers
+    private boolean finishBatcher(HL7MessageBatcher batcher) throws IOException {
+        if (batcher == null) {
+            return true;
+        }
+        return batcher == sharedBatcher ? batcher.isSuccess() : batcher.finish();
+    }
+
+    private void cancelBatcher(HL7MessageBatcher batcher) {
+        if (batcher != null && batcher != sharedBatcher) {
+            batcher.cancel();
+        }
+    }
+
+    /**
+     * Parses the file from its beginning, and then keeps following it, delivering messages as they are appended, until
+     * stopFollowing() is called, the listener returns false, or the thread is interrupted. A message is delivered once
+     * the delimiter after it has been written. If the file is truncated, or replaced when a log is rotated, following
+     * carries on from the beginning of the file at the path, and no message is delivered twice.
+     * <br />
+     * Gzipped files can not be followed.
+     * @return success of the parsing (if any of the messaceReceived(HL7Structure struct) calls return false, this will as well).
+     * @throws java.io.IOException
+     */
+    public boolean follow() throws java.io.IOException {
+        return follow(0, 0);
+    }
+
+    /**
+     * Follows the file as follow() does, starting at the first message boundary at or after an offset. Following from
+     * the length of the file delivers only messages appended from now on.
+     * @param start the offset to start at
+     * @return success of the parsing (if any of the messaceReceived(HL7Structure struct) calls return false, this will as well).
+     * @throws java.io.IOException
+     */
+    public boolean follow(long start) throws java.io.IOException {
+        return follow(start, 0);
+    }
+
+    /**
+     * Follows the file as follow() does, starting just after the message a checkpoint was taken at.
+     * @param checkpoint the checkpoint to resume from
+     * @return success of the parsing (if any of the messaceReceived(HL7Structure struct) calls return false, this will as well).
+     * @throws java.io.IOException
+     */
+    public boolean follow(SparkCheckpoint checkpoint) throws java.io.IOException {
+        return follow(checkpoint.getResumeOffset(), checkpoint.getOrdinal() + 1);
+    }
+
+    private boolean follow(long start, long firstOrdinal) throws IOException {
+        if (SparkFileReader.isGZipped(inputFile)) {
+            throw new IOException("A gzipped file can not be followed: " + inputFile);
         }
+        FollowingMessageFramer framer = new FollowingMessageFramer(inputFile, delimiterBytes(), getInternalBufferSize(),
+                start, getMinPollInterval(), getMaxPollInterval());
+        follower = framer;
+        try {
+            return deliver(framer, Long.MAX_VALUE, firstOrdinal);
+        } finally {
+            follower = null;
+        }
+    }
 
-        char[] buf = new char[getInternalBufferSize()];
-        StringBuilder sb = new StringBuilder();
-        String message = "";
+    /**
+     * Stops following the file. The follow call returns once the message being delivered, if any, has been delivered.
+     * This may be called from any thread.
+     */
+    public void stopFollowing() {
+        FollowingMessageFramer current = follower;
+        if (current != null) {
+            current.stop();
+        }
+    }
 
-        int byteIn = fr.read(buf) ;
+    /**
+     * Returns the shortest time in milliseconds to wait for a followed file to grow.
+     * @return the min poll interval
+     */
+    public long getMinPollInterval() {
+        return minPollInterval;
+    }
+
+    /**
+     * Sets the shortest time in milliseconds to wait for a followed file to grow. The file is polled this often while
+     * messages are arriving, and the wait doubles each time nothing has arrived, up to the max poll interval. The
+     * default is 10.
+     * @param minPollInterval the min poll interval to set
+     */
+    public void setMinPollInterval(long minPollInterval) {
+        this.minPollInterval = minPollInterval;
+    }
 
-        while(byteIn != -1) {
+    /**
+     * Returns the longest time in milliseconds to wait for a followed file to grow.
+     * @return the max poll interval
+     */
+    public long getMaxPollInterval() {
+        return maxPollInterval;
+    }
 
-            sb.append(buf, 0, byteIn);
+    /**
+     * Sets the longest time in milliseconds to wait for a followed file to grow. The default is 1000.
+     * @param maxPollInterval the max poll interval to set
+     */
+    public void setMaxPollInterval(long maxPollInterval) {
+        this.maxPollInterval = maxPollInterval;
+    }
 
-            while (sb.indexOf(delimiter) != -1) {
-                message = sb.substring(0, sb.indexOf(delimiter)).toString();
-                success = success && listener.messageReceived(Igor.structure(new String(message)));
-                if (message.length()+delimiter.length() <= sb.length()) {
-                    sb.delete(0, message.length()+delimiter.length());
+    private boolean parseRange(MessageFramer framer, long end, AtomicBoolean success, CheckpointTracker tracker,
+            HL7MessageBatcher batcher) throws IOException {
+        while (success.get() && framer.next() && framer.getOffset() < end) {
+            String message = framer.getMessage(charset);
+            //a filtered message is never parsed, but counts as handled, so checkpoints move past it
+            boolean received = true;
+            if (filter == null || filter.accept(message)) {
+                HL7Structure structure = Igor.structure(message);
+                if (batcher != null) {
+                    received = batcher.add(structure, framer.getLength(), framer.getOrdinal(), framer.getOffset());
                 } else {
-                    sb.delete(0, message.length());
+                    received = listener.messageReceived(structure);
                 }
+            } else if (batcher != null) {
+                batcher.handled(framer.getOrdinal(), framer.getOffset(), framer.getLength());
+            }
+            if (tracker != null && batcher == null) {
+                tracker.delivered(framer.getOrdinal(), framer.getOffset(), framer.getLength());
+            }
+            if (!received) {
+                success.set(false);
             }
-            buf = new char[getInternalBufferSize()];
-            byteIn = fr.read(buf);
-            
         }
-        
-        //final cleanup.
-        if (!sb.toString().trim().equals("")) {
-            message = sb.toString();
-            success = success && listener.messageReceived(Igor.structure(new String(message)));
+        return success.get();
+    }
+
+    //splits the range into one range per worker, each framed and parsed on its own thread
+    private boolean parseSplit(long start, long end) throws IOException {
+        //ranges finish out of order, so there is nothing to checkpoint
+        this.tracker = null;
+        long length = Math.min(end, inputFile.length());
+        int threads = getWorkerThreads();
+        long step = Math.max(1, (length - start + threads - 1) / threads);
+        final AtomicBoolean success = new AtomicBoolean(true);
+        final HL7MessageBatcher batcher = openBatcher();
+        List<Future<Boolean>> ranges = new ArrayList<Future<Boolean>>();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, new MessageDispatcher.WorkerThreadFactory());
+        try {
+            for(long from = start; from < length; from += step) {
+                final long rangeStart = from;
+                final long rangeEnd = from + step >= length ? end : from + step;
+                ranges.add(workers.submit(new Callable<Boolean>() {
+                    public Boolean call() throws IOException {
+                        MessageFramer framer = openRange(rangeStart, null);
+                        try {
+                            return parseRange(framer, rangeEnd, success, null, batcher);
+                        } finally {
+                            framer.close();
+                        }
+                    }
+                }));
+            }
+            for(Future<Boolean> range : ranges) {
+                range.get();
+            }
+            return finishBatcher(batcher) && success.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing " + inputFile);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new RuntimeException(t);
+        } finally {
+            cancelBatcher(batcher);
+            workers.shutdownNow();
         }
+    }
+
+    //frames on this thread, and parses and delivers on the workers. Checkpoints need in order delivery, except on
+    //virtual threads, where deliveries are reported in order as they finish; a batcher is still filled in order there,
+    //as it reports deliveries itself once each batch is delivered.
+    private boolean parseParallel(MessageFramer framer, long end, CheckpointTracker tracker, HL7MessageBatcher batcher) throws IOException {
+        boolean virtual = isVirtualThreads();
+        boolean ordered = virtual ? batcher != null : isOrdered() || checkpointListener != null;
+        MessageDispatcher dispatcher = new MessageDispatcher(listener, filter, batcher, virtual ? getMaxConcurrency() : getWorkerThreads(),
+                ordered, getQueueCapacity(), 0, (ordered || virtual) && batcher == null ? tracker : null, virtual);
+        boolean finished = false;
+        try {
+            while (framer.next() && framer.getOffset() < end
+                    && dispatcher.dispatch(framer.getOrdinal(), framer.getMessage(charset), framer.getOffset(), framer.getLength())) {
+                //keep framing
+            }
+            finished = true;
+            return dispatcher.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing " + inputFile);
+        } finally {
+            if (!finished) {
+                dispatcher.abort();
+            }
+        }
+    }
+
+    //opens a framer at the first message boundary at or after start. Opening a delimiter's length early, and dropping
+    //whatever is framed first, lands on start exactly when a delimiter ends there.
+    MessageFramer openRange(long start, GzipMemberInputStream.RestartPoint restart) throws IOException {
+        if (start <= 0) {
+            return openFramer(0, restart);
+        }
+        MessageFramer framer = openFramer(Math.max(0, start - delimiterBytes().length), restart);
+        try {
+            framer.frame();
+        } catch (IOException e) {
+            framer.close();
+            throw e;
+        }
+        return framer;
+    }
+
+    //opens a framer over the file, positioned at the offset of the (decompressed) bytes
+    MessageFramer openFramer(long offset) throws IOException {
+        return openFramer(offset, null);
+    }
+
+    //as openFramer(offset), but a gzipped file may also be inflated from a known restart point
+    private MessageFramer openFramer(long offset, GzipMemberInputStream.RestartPoint restart) throws IOException {
+        FileInputStream fileStream = new FileInputStream(inputFile);
+        try {
+            if (SparkFileReader.isGZipped(inputFile)) {
+                GzipChannel gzip = openGzip(fileStream, offset, restart);
+                MessageFramer framer = new ChannelMessageFramer(gzip, delimiterBytes(), getInternalBufferSize(), offset);
+                framer.setGzipSource(gzip);
+                return framer;
+            }
+            FileChannel channel = fileStream.getChannel();
+            if (isMemoryMapped()) {
+                return new MappedMessageFramer(channel, delimiterBytes(), getMappedWindowSize(), offset);
+            }
+            channel.position(offset);
+            return new ChannelMessageFramer(channel, delimiterBytes(), getInternalBufferSize(), offset);
+        } catch (IOException e) {
+            fileStream.close();
+            throw e;
+        }
+    }
+
+    //inflates from the nearest restart point before the offset, from the index or the one given, or from the start
+    private GzipChannel openGzip(FileInputStream fileStream, long offset, GzipMemberInputStream.RestartPoint restart) throws IOException {
+        GzipMemberInputStream.RestartPoint indexed = index == null ? null : index.restartPointBefore(offset);
+        if (restart == null || restart.uncompressedOffset > offset
+                || (indexed != null && indexed.uncompressedOffset > restart.uncompressedOffset)) {
+            restart = indexed;
+        }
+        long compressedOffset = restart == null ? 0 : restart.compressedOffset;
+        long uncompressedOffset = restart == null ? 0 : restart.uncompressedOffset;
+        GzipChannel gzip;
+        if (getGzipThreads() > 1) {
+            fileStream.close();
+            gzip = new ParallelGzipChannel(inputFile, getGzipThreads(), getGzipChunkSize(), getInternalBufferSize(), compressedOffset, uncompressedOffset);
+        } else {
+            fileStream.getChannel().position(compressedOffset);
+            gzip = new GzipMemberInputStream(fileStream, getInternalBufferSize(), compressedOffset, uncompressedOffset);
+        }
+        try {
+            skipFully(gzip, offset - uncompressedOffset);
+        } catch (IOException e) {
+            gzip.close();
+            throw e;
+        }
+        return gzip;
+    }
+
+    /**
+     * Reads the whole file once and builds an index of its messages. The index is not kept by the reader; set it with
+     * setIndex, or write it out as a sidecar.
+     * @param withControlIds true to index the message control id (MSH-10) of each message
+     * @return the index
+     * @throws IOException
+     */
+    public SparkFileIndex buildIndex(boolean withControlIds) throws IOException {
+        SparkFileIndex built = new SparkFileIndex(inputFile.length(), withControlIds);
+        MessageFramer framer = openFramer(0);
+        try {
+            while (framer.next()) {
+                String controlId = withControlIds ? HL7RawHeader.getControlId(framer.getMessage(charset)) : null;
+                built.add(framer.getOffset(), framer.getLength(), controlId);
+            }
+            if (framer.getGzipSource() != null) {
+                built.setRestartPoints(framer.getGzipSource().getRestartPoints());
+            }
+        } finally {
+            framer.close();
+        }
+        return built;
+    }
+
+    /**
+     * Reads one message, seeking to it with the index.
+     * @param ordinal the zero based ordinal of the message
+     * @return the message
+     * @throws IOException
+     * @throws IllegalStateException if there is no index
+     */
+    public HL7Structure readMessage(int ordinal) throws IOException {
+        long offset = requireIndex().getOffset(ordinal);
+        MessageFramer framer = openFramer(offset);
+        try {
+            return framer.next() ? Igor.structure(framer.getMessage(charset)) : null;
+        } finally {
+            framer.close();
+        }
+    }
+
+    /**
+     * Reads the first message with a message control id (MSH-10), seeking to it with the index.
+     * @param controlId the control id, as it appears in the file
+     * @return the message, or null if the index has no message with that control id
+     * @throws IOException
+     * @throws IllegalStateException if there is no index
+     */
+    public HL7Structure readMessage(String controlId) throws IOException {
+        int ordinal = requireIndex().ordinalOf(controlId);
+        return ordinal < 0 ? null : readMessage(ordinal);
+    }
+
+    /**
+     * Parses a run of messages, seeking to the first with the index. Messages are delivered as by parse().
+     * @param first the zero based ordinal of the first message
+     * @param count the number of messages
+     * @return success of the parsing (if any of the messaceReceived(HL7Structure struct) calls return false, this will as well).
+     * @throws IOException
+     * @throws IllegalStateException if there is no index
+     */
+    public boolean parseMessages(int first, int count) throws IOException {
+        SparkFileIndex required = requireIndex();
+        int last = Math.min(first + count, required.size());
+        if (first >= last) {
+            return true;
+        }
+        long end = last < required.size() ? required.getOffset(last) : Long.MAX_VALUE;
+        return parse(required.getOffset(first), end);
+    }
+
+    private SparkFileIndex requireIndex() {
+        if (index == null) {
+            throw new IllegalStateException("No index has been set for " + inputFile);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the checkpoint of the last message delivered to the listener by the current or last parse. This can be
+     * called from another thread while parsing. A parse that splits the file into byte ranges, with more than one
+     * worker thread, unordered delivery and no checkpoint listener, records no checkpoint.
+     * @return the checkpoint, or null if no message has been delivered, or the parse records no checkpoint
+     */
+    public SparkCheckpoint getLastCheckpoint() {
+        CheckpointTracker current = tracker;
+        return current == null ? null : current.getLast();
+    }
+
+    /**
+     * Returns the listener checkpoints are sent to while parsing.
+     * @return the checkpoint listener
+     */
+    public SparkCheckpointListener getCheckpointListener() {
+        return checkpointListener;
+    }
+
+    /**
+     * Sets a listener to send checkpoints to while parsing, every so many messages and once more at the end. A
+     * checkpoint covers every message up to and including the one it was taken at, so with worker threads, messages are
+     * delivered in order while a checkpoint listener is set. SparkCheckpoint.sidecarListener saves checkpoints next to
+     * the message file.
+     * @param checkpointListener the checkpoint listener to set, or null for none
+     */
+    public void setCheckpointListener(SparkCheckpointListener checkpointListener) {
+        this.checkpointListener = checkpointListener;
+    }
+
+    /**
+     * Returns the number of messages delivered between checkpoints.
+     * @return the checkpoint interval
+     */
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Sets the number of messages delivered between checkpoints. The default is 10000.
+     * @param checkpointInterval the checkpoint interval to set
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Returns the index used to seek to messages, if one has been set.
+     * @return the index
+     */
+    public SparkFileIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Sets the index used to seek to messages. For a gzipped file, the index also lets reading start at the gzip member
+     * before an offset instead of the start of the file.
+     * @param index the index to set
+     */
+    public void setIndex(SparkFileIndex index) {
+        this.index = index;
+    }
 
-        fr.close();
-        return success;
+    private static void skipFully(ReadableByteChannel channel, long count) throws IOException {
+        ByteBuffer scratch = ByteBuffer.allocate((int) Math.min(Math.max(count, 1), 1 << 16));
+        while (count > 0) {
+            ((Buffer) scratch).clear();
+            if (count < scratch.capacity()) {
+                ((Buffer) scratch).limit((int) count);
+            }
+            int n = channel.read(scratch);
+            if (n < 0) {
+                return;
+            }
+            count -= n;
+        }
+    }
+
+    private byte[] delimiterBytes() {
+        return delimiter.getBytes(charset);
+    }
+
+    /**
+     * Returns true if the file is read by memory mapping it, rather than through a read buffer.
+     * @return the memoryMapped flag
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Sets the file to be read by memory mapping it one window at a time. Message boundaries are found in the mapped
+     * bytes, and messages are decoded straight from them, so the raw file is never copied onto the heap. This suits very
+     * large, uncompressed archives. Gzipped files are always read through a buffer.
+     * @param memoryMapped true to memory map the file
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Returns the number of bytes mapped at a time when the file is memory mapped.
+     * @return the mapped window size
+     */
+    public long getMappedWindowSize() {
+        return mappedWindowSize;
+    }
+
+    /**
+     * Sets the number of bytes mapped at a time when the file is memory mapped. The default is 256 MB. A message
+     * bigger than the window is still read whole, with a bigger window.
+     * @param mappedWindowSize the mapped window size to set
+     */
+    public void setMappedWindowSize(long mappedWindowSize) {
+        this.mappedWindowSize = mappedWindowSize;
+    }
+
+    /**
+     * Returns the number of threads messages are parsed and delivered on. The default is 1, which parses on the calling
+     * thread.
+     * @return the worker thread count
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Sets the number of threads messages are parsed and delivered on. With more than one, the calling thread only
+     * splits the file into messages, and a pool of workers parses them, so parsing is no longer bound to one core.
+     * Unless messages are delivered in order, the listener is called from several threads at once and must be thread
+     * safe, and an uncompressed file is instead split into one byte range per worker, so framing is spread out too.
+     * @param workerThreads the worker thread count to set
+     */
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * Returns true if messages parsed on worker threads are delivered to the listener in file order. The default is true.
+     * @return the ordered flag
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Sets whether messages parsed on worker threads are delivered to the listener in file order. Ordered delivery
+     * holds parsed messages until those before them are delivered, and calls the listener one message at a time.
+     * Unordered delivery calls the listener from each worker as soon as it has parsed, which is faster but needs a thread
+     * safe listener.
+     * @param ordered true to deliver in file order
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * Returns the number of framed messages that may wait for a worker before reading blocks.
+     * @return the queue capacity
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets the number of framed messages that may wait for a worker before reading blocks. This bounds the memory used
+     * when the listener or parsing is slower than reading. The default is 1024.
+     * @param queueCapacity the queue capacity to set
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Returns true if each message is parsed and delivered on a thread of its own. The default is false.
+     * @return the virtual threads flag
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Sets whether each message is parsed and delivered on a thread of its own, for listeners that spend most of their
+     * time blocked, on a database or a socket, rather than parsing. On Java 21 and later these are virtual threads, so
+     * thousands may wait at once for the cost of a few carrier threads; on older JVMs they are ordinary daemon threads.
+     * At most getMaxConcurrency() messages are in flight, and the worker thread count and queue capacity are not used.
+     * <br />
+     * The listener is called from many threads at once, whatever the ordered flag, and must be thread safe. Checkpoints
+     * still only move past a message once it and every message before it have been delivered, so resuming never skips
+     * one; as a result, a message that is slow to finish holds up those after it once the limit is reached.
+     * <br />
+     * With a batch listener, messages are parsed on threads of their own but added to batches in file order, so the
+     * batch listener is called one batch at a time, and checkpoints are taken as batches are delivered.
+     * @param virtualThreads true to deliver each message on a thread of its own
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Returns the most messages delivered on threads of their own at once. The default is 256.
+     * @return the most messages in flight
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Sets the most messages delivered on threads of their own at once, when virtual threads are on. Reading blocks
+     * while this many are in flight, which also bounds the load put on whatever the listener calls.
+     * @param maxConcurrency the most messages in flight
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Returns true if this JVM runs messages on virtual threads when virtual threads are on. Virtual threads came in
+     * Java 21; on earlier JVMs, each message runs on an ordinary thread instead.
+     * @return true if virtual threads are available
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return VirtualThreads.isAvailable();
+    }
+
+    /**
+     * Returns the number of threads a gzipped file is inflated on. The default is 1.
+     * @return the gzip thread count
+     */
+    public int getGzipThreads() {
+        return gzipThreads;
+    }
+
+    /**
+     * Sets the number of threads a gzipped file is inflated on. A file written as many gzip members, as many archive
+     * tools and BGZF do, is cut into runs of whole members that are inflated at the same time and read back in order.
+     * A file with a single member is inflated on one thread whatever this is set to.
+     * @param gzipThreads the gzip thread count to set
+     */
+    public void setGzipThreads(int gzipThreads) {
+        this.gzipThreads = gzipThreads;
+    }
+
+    /**
+     * Returns the number of compressed bytes each gzip thread inflates at a time.
+     * @return the gzip chunk size
+     */
+    public int getGzipChunkSize() {
+        return gzipChunkSize;
+    }
+
+    /**
+     * Sets the number of compressed bytes each gzip thread inflates at a time. The default is 128 KB. Each chunk is held
+     * inflated in memory until it is read, and HL7 text inflates to many times its compressed size, so this bounds the
+     * memory used as well.
+     * @param gzipChunkSize the gzip chunk size to set
+     */
+    public void setGzipChunkSize(int gzipChunkSize) {
+        this.gzipChunkSize = gzipChunkSize;
     }
 
     /**
-     * Gets the size of the internal buffer being used.
+     * Gets the size in bytes of the internal read buffer being used.
      * @return the INTERNAL_BUFFER_SIZE
      */
     public int getInternalBufferSize() {
@@ -227,7 +1119,7 @@ public class SparkFileReader {
     }
 
     /**
-     * Sets the size of the internal buffer being used.
+     * Sets the size in bytes of the internal read buffer being used. Larger buffers mean fewer reads.
      * @param internalBufferSize the INTERNAL_BUFFER_SIZE to set
      */
     public void setInternalBufferSize(int internalBufferSize) {
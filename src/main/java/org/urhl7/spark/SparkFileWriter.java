@@ -21,23 +21,63 @@
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
  * THE SOFTWARE.
  */
-
 package org.urhl7.spark;
 
 import java.io.*;
+import java.lang.ref.WeakReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import org.urhl7.igor.*;
 
 /**
  * Allows the writing of HL7Structure messages to a specified file.
+ * <br />
+ * Messages are encoded into one reusable buffer, which is written to the file when it fills and whenever the writer is
+ * flushed. By default the writer flushes after every message, so each message is in the file once write returns. For
+ * bulk writing, flush every number of messages, every number of milliseconds, or only on flush() and close(), so that
+ * many messages go to the file in one system call. With sync set, each flush also forces the file to the disk.
+ * <br />
+ * With gzip set, the file is written gzipped as it goes, and each flush ends a gzip member, so everything flushed can
+ * be read back even if the writer never closes. Flush seldom when writing gzip, as every member starts compression
+ * afresh; SparkFileReader reads files of many members, and can inflate their members in parallel.
  * @author dmorgan
  */
 public class SparkFileWriter {
     private File outputFile;
     private String delimiter;
     private boolean appendToFile;
+    private Charset charset = Charset.defaultCharset();
+    private int bufferSize = 1 << 16;
+    private int flushEvery = 1;
+    private long flushInterval = 0;
+    private boolean sync = false;
+    private boolean gzip = false;
 
-    private FileWriter fw = null;
+    private OpenFile current = null;
+    private ByteBuffer buffer;
+    private CharsetEncoder encoder;
+    private long bytesWritten = 0;
+    private long messagesWritten = 0;
+    private long opened;
+    private ExecutorService finisher;
+    private final List<Future<?>> finishing = new ArrayList<Future<?>>();
+    private int unflushed = 0;
+    private long lastFlush;
+    private Timer timer;
+    private FlushTask due;
+    private IOException failure;
 
     /**
      * The default delimiter between messages. The default value is "\r\n"
@@ -128,14 +168,26 @@ public class SparkFileWriter {
      * @param message
      * @throws java.io.IOException
      */
-    public void write(HL7Structure message) throws IOException {
-        if (fw == null) {
-            prepFileStreams();
-        }
-        
-        fw.write(message.marshal());
-        fw.write(getDelimiter());
-        fw.flush();
+    public synchronized void write(HL7Structure message) throws IOException {
+        beforeWrite();
+        open();
+        encode(message.marshal());
+        encode(getDelimiter());
+        written();
+    }
+
+    /**
+     * Writes a raw message to the file as its bytes, unchanged and unparsed, immediately followed by the delimiter. The
+     * bytes are not re-encoded, so a message read in another character set keeps it.
+     * @param message
+     * @throws java.io.IOException
+     */
+    public synchronized void write(HL7RawMessage message) throws IOException {
+        beforeWrite();
+        open();
+        put(message.getBytes());
+        encode(getDelimiter());
+        written();
     }
 
     /**
@@ -143,20 +195,206 @@ public class SparkFileWriter {
      * @param messages
      * @throws java.io.IOException
      */
-    public void writeAll(List<HL7Structure> messages) throws IOException {
+    public synchronized void writeAll(List<HL7Structure> messages) throws IOException {
         for(HL7Structure message : messages) {
             write(message);
         }
     }
 
     /**
-     * Closes the underlying FileWriter. If you call this method and attempt to write again, you will receive an
-     * IOException. Remember to close() when you are finished with your writing to file to avoid locks.
+     * Writes everything buffered to the file, and forces it to the disk if sync is set.
      * @throws java.io.IOException
      */
-    public void close() throws IOException {
-        if ( fw != null) {
-            fw.close();
+    public synchronized void flush() throws IOException {
+        rethrow();
+        if (current == null) {
+            return;
+        }
+        current.flush(sync);
+        unflushed = 0;
+        lastFlush = System.currentTimeMillis();
+        cancelDue();
+    }
+
+    /**
+     * Flushes and closes the underlying file. If you call this method and attempt to write again, the file is opened
+     * again. Remember to close() when you are finished with your writing to file to avoid locks.
+     * @throws java.io.IOException
+     */
+    public synchronized void close() throws IOException {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        due = null;
+        //the current file is finished before any stored failure is thrown, so what is buffered is not lost
+        if (current != null) {
+            OpenFile open = current;
+            current = null;
+            unflushed = 0;
+            open.close(sync);
+        }
+        awaitFinishing();
+        rethrow();
+    }
+
+    private void open() throws IOException {
+        rethrow();
+        if (current == null) {
+            prepFileStreams();
+        }
+    }
+
+    //called before each message is written; a subclass may roll to another file here, between messages
+    void beforeWrite() throws IOException {
+    }
+
+    //true if a file is open for writing
+    boolean isOpen() {
+        return current != null;
+    }
+
+    /**
+     * Moves writing to another file, without waiting for the current one. The current file keeps its buffer, which is
+     * written out, flushed and closed on another thread; the next message goes to a fresh buffer for the new file.
+     * close() waits for every file being finished this way, and a failure finishing one is thrown by a later write,
+     * flush or close.
+     * @param next the file to write to next
+     */
+    synchronized void roll(File next) {
+        final OpenFile old = current;
+        current = null;
+        buffer = null;
+        this.outputFile = next;
+        if (old == null) {
+            return;
+        }
+        if (finisher == null) {
+            finisher = Executors.newSingleThreadExecutor(new MessageDispatcher.WorkerThreadFactory());
+        }
+        final boolean syncOld = sync;
+        finishing.add(finisher.submit(new Runnable() {
+            public void run() {
+                try {
+                    old.close(syncOld);
+                } catch (IOException e) {
+                    synchronized(SparkFileWriter.this) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+            }
+        }));
+        //forget the files that are done
+        for(Iterator<Future<?>> i = finishing.iterator(); i.hasNext(); ) {
+            if (i.next().isDone()) {
+                i.remove();
+            }
+        }
+    }
+
+    //waits for rolled files to be finished; the lock is released while waiting so the finisher can record a failure
+    private void awaitFinishing() throws IOException {
+        while (!finishing.isEmpty()) {
+            Future<?> next = finishing.remove(0);
+            try {
+                while (!next.isDone()) {
+                    wait(10);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a file to be closed");
+            }
+        }
+        if (finisher != null) {
+            finisher.shutdown();
+            finisher = null;
+        }
+    }
+
+    /**
+     * Returns the number of bytes of messages and delimiters written to the current file by this writer, before any
+     * compression, including those still buffered.
+     * @return the bytes written, or 0 if no file is open
+     */
+    public synchronized long getBytesWritten() {
+        return current == null ? 0 : bytesWritten + buffer.position();
+    }
+
+    /**
+     * Returns the number of messages written to the current file by this writer.
+     * @return the messages written, or 0 if no file is open
+     */
+    public synchronized long getMessagesWritten() {
+        return current == null ? 0 : messagesWritten;
+    }
+
+    //when the current file was opened
+    long getOpened() {
+        return opened;
+    }
+
+    //counts a message, and flushes if the policy says to
+    private void written() throws IOException {
+        unflushed++;
+        messagesWritten++;
+        if ((flushEvery > 0 && unflushed >= flushEvery)
+                || (flushInterval > 0 && System.currentTimeMillis() - lastFlush >= flushInterval)) {
+            flush();
+        } else if (due == null) {
+            scheduleFlush();
+        }
+    }
+
+    //encodes straight into the buffer, writing it out whenever it fills
+    private void encode(String text) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        CoderResult result = encoder.encode(chars, buffer, true);
+        while (result.isOverflow()) {
+            drain();
+            result = encoder.encode(chars, buffer, true);
+        }
+        result = encoder.flush(buffer);
+        while (result.isOverflow()) {
+            drain();
+            result = encoder.flush(buffer);
+        }
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.remaining()) {
+            drain();
+            if (bytes.length > buffer.capacity()) {
+                //too big to buffer, so skip the copy
+                bytesWritten += bytes.length;
+                current.write(ByteBuffer.wrap(bytes));
+                return;
+            }
+        }
+        buffer.put(bytes);
+    }
+
+    private void drain() throws IOException {
+        bytesWritten += buffer.position();
+        current.drain();
+    }
+
+    private void rethrow() throws IOException {
+        if (failure != null) {
+            IOException e = failure;
+            failure = null;
+            throw e;
+        }
+    }
+
+    //closes the current file before the writer moves to another; a failure is thrown by the next call that can throw it
+    private void reopen() {
+        try {
+            close();
+        } catch (IOException e) {
+            failure = e;
         }
     }
 
@@ -169,12 +407,12 @@ public class SparkFileWriter {
     }
 
     /**
-     * Sets the output file to write to
+     * Sets the output file to write to. Anything buffered for the current file is written to it first, and it is closed.
      * @param outputFile the outputFile to set
      */
-    public void setOutputFile(File outputFile) {
+    public synchronized void setOutputFile(File outputFile) {
+        reopen();
         this.outputFile = outputFile;
-        fw = null;
     }
 
     /**
@@ -202,18 +440,309 @@ public class SparkFileWriter {
     }
 
     /**
-     * Appends or Overwrites file. True appends, False means overwrite
+     * Appends or Overwrites file. True appends, False means overwrite. The current file is closed, and this takes
+     * effect when it is next opened.
      * @param appendToFile the appendToFile to set
      */
-    public void setAppendToFile(boolean appendToFile) {
+    public synchronized void setAppendToFile(boolean appendToFile) {
+        reopen();
         this.appendToFile = appendToFile;
-        fw = null;
+    }
 
+    /**
+     * Returns the character set messages are encoded in.
+     * @return the charset
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the character set messages are encoded in. The default is the platform's default character set. Raw messages
+     * are written as they are, whatever this is set to.
+     * @param charset the charset to set
+     */
+    public synchronized void setCharset(Charset charset) {
+        this.charset = charset;
+        if (encoder != null) {
+            encoder = newEncoder();
+        }
+    }
+
+    /**
+     * Returns the size in bytes of the buffer messages are encoded into.
+     * @return the buffer size
+     */
+    public int getBufferSize() {
+        return bufferSize;
     }
 
-    //reassigns the filewriter
+    /**
+     * Sets the size in bytes of the buffer messages are encoded into. The default is 64 KB. This takes effect when the
+     * file is next opened.
+     * @param bufferSize the buffer size to set
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Returns the number of messages written between flushes.
+     * @return the number of messages, or 0 if the writer does not flush by count
+     */
+    public int getFlushEvery() {
+        return flushEvery;
+    }
+
+    /**
+     * Sets the writer to flush after every number of messages. The default is 1, flushing after every message. With 0,
+     * and no flush interval, the writer only flushes when flush() or close() is called, or as the buffer fills. With
+     * gzip set, each flush also ends a gzip member, so flush by larger counts.
+     * @param flushEvery the number of messages, or 0 to not flush by count
+     */
+    public void setFlushEvery(int flushEvery) {
+        this.flushEvery = flushEvery;
+    }
+
+    /**
+     * Returns the longest time in milliseconds a written message waits before it is flushed.
+     * @return the flush interval, or 0 if the writer does not flush by time
+     */
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Sets the longest time in milliseconds a written message waits before it is flushed. A timer thread flushes the
+     * writer when no more messages are written. The default is 0, which does not flush by time.
+     * @param flushInterval the flush interval to set, or 0 to not flush by time
+     */
+    public synchronized void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+        cancelDue();
+        if (current != null && unflushed > 0) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Returns true if every flush forces the file to the disk.
+     * @return the sync flag
+     */
+    public boolean isSync() {
+        return sync;
+    }
+
+    /**
+     * Sets every flush to force the file to the disk, so messages survive a crash of the machine once they are flushed.
+     * Used with flushEvery or flushInterval, this commits many messages with one sync.
+     * @param sync true to force the file to the disk on every flush
+     */
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * Returns true if the file is written gzipped.
+     * @return the gzip flag
+     */
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * Sets the file to be written gzipped, each flush ending a gzip member. This takes effect when the file is next
+     * opened. Appending to a gzipped file adds members to it.
+     * <br />
+     * Every member starts compression afresh and adds 18 bytes of header and trailer, so with the default flushEvery of
+     * 1 each message is compressed on its own. Set flushEvery to 0 or a larger count, or flush by interval, when
+     * writing gzip; SparkRollingFileWriter does this for .gz files.
+     * @param gzip true to write gzip
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    //opens the output file with a buffer of its own
     private void prepFileStreams() throws IOException {
-        fw = new FileWriter(getOutputFile(), isAppendToFile());
+        current = new OpenFile(getOutputFile(), isAppendToFile(), Math.max(bufferSize, 16), gzip);
+        buffer = current.buffer;
+        encoder = newEncoder();
+        unflushed = 0;
+        bytesWritten = 0;
+        messagesWritten = 0;
+        opened = System.currentTimeMillis();
+        lastFlush = opened;
+    }
+
+    //replaces what can not be encoded, as FileWriter did
+    private CharsetEncoder newEncoder() {
+        return charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    //flushes when the first message written since the last flush has waited the flush interval, unless it is flushed
+    //sooner
+    private void scheduleFlush() {
+        if (flushInterval <= 0) {
+            return;
+        }
+        if (timer == null) {
+            timer = new Timer("spark-writer", true);
+        }
+        due = new FlushTask(this);
+        timer.schedule(due, Math.max(lastFlush + flushInterval - System.currentTimeMillis(), 0));
+    }
+
+    private void cancelDue() {
+        if (due != null) {
+            due.cancel();
+            due = null;
+        }
+    }
+
+    //flushes for the timer, unless the task has been replaced or cancelled since it was scheduled
+    private synchronized void flushIfDue(FlushTask task) {
+        if (task != due) {
+            return;
+        }
+        due = null;
+        if (current != null && unflushed > 0) {
+            try {
+                flush();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    //holds the writer weakly, so the timer does not keep an abandoned writer from being finalized and closed
+    private static class FlushTask extends TimerTask {
+        private final WeakReference<SparkFileWriter> writer;
+
+        FlushTask(SparkFileWriter writer) {
+            this.writer = new WeakReference<SparkFileWriter>(writer);
+        }
+
+        public void run() {
+            SparkFileWriter w = writer.get();
+            if (w == null) {
+                cancel();
+            } else {
+                w.flushIfDue(this);
+            }
+        }
+    }
+
+    //a file being written, with the buffer messages are encoded into. A gzip file keeps one raw deflater for all its
+    //members, reset between them, and writes each member's header and trailer itself.
+    private static class OpenFile {
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        final FileOutputStream stream;
+        final FileChannel channel;
+        final ByteBuffer buffer;
+        final boolean gzip;
+        private Deflater deflater;
+        private CRC32 crc;
+        private byte[] deflated;
+        private boolean inMember = false;
+        private int memberSize = 0;
+
+        OpenFile(File file, boolean append, int bufferSize, boolean gzip) throws IOException {
+            this.stream = new FileOutputStream(file, append);
+            this.channel = stream.getChannel();
+            this.buffer = ByteBuffer.allocate(bufferSize);
+            this.gzip = gzip;
+            if (gzip) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                crc = new CRC32();
+                deflated = new byte[bufferSize];
+            }
+        }
+
+        void drain() throws IOException {
+            ((Buffer) buffer).flip();
+            write(buffer);
+            ((Buffer) buffer).clear();
+        }
+
+        void write(ByteBuffer bytes) throws IOException {
+            if (gzip) {
+                if (!inMember) {
+                    stream.write(GZIP_HEADER);
+                    inMember = true;
+                }
+                byte[] array = bytes.array();
+                int offset = bytes.arrayOffset() + bytes.position();
+                int length = bytes.remaining();
+                crc.update(array, offset, length);
+                memberSize += length;
+                deflater.setInput(array, offset, length);
+                while (!deflater.needsInput()) {
+                    deflate();
+                }
+                ((Buffer) bytes).position(bytes.limit());
+                return;
+            }
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+
+        private void deflate() throws IOException {
+            int n = deflater.deflate(deflated, 0, deflated.length);
+            if (n > 0) {
+                stream.write(deflated, 0, n);
+            }
+        }
+
+        //ends the gzip member with its CRC-32 and size, and readies the deflater for the next one
+        private void finishMember() throws IOException {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            long value = crc.getValue();
+            byte[] trailer = new byte[8];
+            for(int i=0; i<4; i++) {
+                trailer[i] = (byte) (value >>> (8 * i));
+                trailer[i + 4] = (byte) (memberSize >>> (8 * i));
+            }
+            stream.write(trailer);
+            deflater.reset();
+            crc.reset();
+            memberSize = 0;
+            inMember = false;
+        }
+
+        //writes out the buffer, ending the gzip member if there is one
+        void flush(boolean sync) throws IOException {
+            drain();
+            if (inMember) {
+                finishMember();
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        }
+
+        void close(boolean sync) throws IOException {
+            try {
+                flush(sync);
+            } finally {
+                close();
+            }
+        }
+
+        void close() throws IOException {
+            try {
+                stream.close();
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
     }
 
     /**
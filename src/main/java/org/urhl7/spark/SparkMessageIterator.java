@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.urhl7.spark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import org.urhl7.igor.HL7Structure;
+import org.urhl7.igor.Igor;
+
+/**
+ * Iterates over the messages in a file, or in a range of bytes of a file, reading and parsing one message at a time as
+ * it is asked for, so a file of any size is read in constant memory. The file is opened on the first call to hasNext
+ * or next, and closed once the last message has been returned, when reading fails, or when close is called.
+ * <br />
+ * Reading the file can fail with an IOException, which Iterator does not allow for; it is thrown wrapped in a
+ * RuntimeException, after the file has been closed.
+ * <br />
+ * Before iteration starts, an iterator over a file that is not gzipped can be split in two at a message boundary with
+ * trySplit, so that separate threads can each iterate over part of the file. It is also a Spliterator, which is how
+ * SparkFileReader.stream() runs a parallel stream over the file; its size estimate is in bytes, not messages.
+ * @author dmorgan
+ */
+public class SparkMessageIterator implements Iterator<HL7Structure>, Spliterator<HL7Structure>, Closeable {
+    private final SparkFileReader reader;
+    private final Charset charset;
+    private final HL7MessageFilter filter;
+    private final boolean splittable;
+    private final long minSplit;
+    private long start;
+    private final long end;
+    //every iterator split from the same first one, so a stream can close those it abandoned
+    private final List<SparkMessageIterator> splits;
+
+    private MessageFramer framer;
+    private HL7Structure next;
+    private boolean finished = false;
+
+    //iterates over the messages that begin in [start, end); the reader's settings are read once, here
+    SparkMessageIterator(SparkFileReader reader, long start, long end, boolean splittable) {
+        this(reader, start, end, splittable, Collections.synchronizedList(new ArrayList<SparkMessageIterator>()));
+    }
+
+    private SparkMessageIterator(SparkFileReader reader, long start, long end, boolean splittable, List<SparkMessageIterator> splits) {
+        this.reader = reader;
+        this.splits = splits;
+        this.charset = reader.getCharset();
+        this.filter = reader.getFilter();
+        this.splittable = splittable;
+        this.minSplit = Math.max(reader.getInternalBufferSize(), 1);
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Returns true if there is another message, reading ahead to it if needed.
+     * @return true if there is another message
+     */
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            next = read();
+        }
+        return next != null;
+    }
+
+    /**
+     * Returns the next message.
+     * @return the next message
+     * @throws NoSuchElementException if there are no more messages
+     */
+    public HL7Structure next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        HL7Structure message = next;
+        next = null;
+        return message;
+    }
+
+    /**
+     * Hands the next message to an action, if there is one.
+     * @param action the action
+     * @return false if there are no more messages
+     */
+    public boolean tryAdvance(Consumer<? super HL7Structure> action) {
+        if (!hasNext()) {
+            return false;
+        }
+        action.accept(next());
+        return true;
+    }
+
+    /**
+     * Hands every remaining message to an action, in order.
+     * @param action the action
+     */
+    public void forEachRemaining(Consumer<? super HL7Structure> action) {
+        while (hasNext()) {
+            action.accept(next());
+        }
+    }
+
+    /**
+     * Returns the characteristics of this iterator as a Spliterator: messages come in file order, and are never null.
+     * @return ORDERED and NONNULL
+     */
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    private HL7Structure read() {
+        try {
+            if (framer == null) {
+                framer = reader.openRange(start, null);
+            }
+            while (framer.next() && framer.getOffset() < end) {
+                String message = framer.getMessage(charset);
+                if (filter == null || filter.accept(message)) {
+                    return Igor.structure(message);
+                }
+            }
+            close();
+            return null;
+        } catch (IOException e) {
+            closeQuietly();
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * Not supported, as messages can not be removed from the file.
+     * @throws UnsupportedOperationException always
+     */
+    public void remove() {
+        throw new UnsupportedOperationException("Messages can not be removed from a file");
+    }
+
+    /**
+     * Splits off the first half of the remaining range, at a message boundary, into an iterator of its own, leaving
+     * this iterator with the second half. Messages from the returned iterator all come before those left in this one.
+     * An iterator can only be split before iteration starts, when it is not over a gzipped file, and when its range is
+     * large enough to be worth splitting.
+     * @return an iterator over the first half of the range, or null if the range can not be split
+     */
+    public SparkMessageIterator trySplit() {
+        if (!splittable || framer != null || finished || estimateSize() < 2 * minSplit) {
+            return null;
+        }
+        long middle = start + estimateSize() / 2;
+        SparkMessageIterator prefix = new SparkMessageIterator(reader, start, middle, true, splits);
+        splits.add(prefix);
+        start = middle;
+        return prefix;
+    }
+
+    /**
+     * Returns the number of bytes left in the range, or Long.MAX_VALUE if it is not known, as with a gzipped file.
+     * Before iteration starts, this is the whole range.
+     * @return the estimated number of bytes left
+     */
+    public long estimateSize() {
+        if (!splittable) {
+            return Long.MAX_VALUE;
+        }
+        long from = framer == null ? start : Math.max(start, framer.getOffset());
+        return Math.max(0, end - from);
+    }
+
+    /**
+     * Stops iterating and closes the file. Further calls to hasNext return false.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        finished = true;
+        next = null;
+        if (framer != null) {
+            MessageFramer open = framer;
+            framer = null;
+            open.close();
+        }
+    }
+
+    //closes this iterator and every iterator split from the same first one
+    void closeAll() throws IOException {
+        close();
+        List<SparkMessageIterator> all;
+        synchronized(splits) {
+            all = new ArrayList<SparkMessageIterator>(splits);
+        }
+        for(SparkMessageIterator split : all) {
+            split.close();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            //already failing
+        }
+    }
+}
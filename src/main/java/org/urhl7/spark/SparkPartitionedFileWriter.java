@@ -0,0 +1,375 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.urhl7.spark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.urhl7.igor.HL7Structure;
+
+/**
+ * Splits messages into files by a partition key, such as one file per message type or per sending facility. Each
+ * partition's file is named by a pattern in which {key} is replaced by the partition key, with any character other
+ * than a letter, digit, '.', '-' or '_' replaced by '_'; so "{key}.hl7" writes ADT^A01 messages to ADT_A01.hl7. The
+ * rest of the pattern is as for SparkRollingFileWriter, so "{key}/{yyyyMMdd}_{n}.hl7.gz" rolls each partition daily.
+ * Messages with no key go to the partition "none".
+ * <br />
+ * At most a number of partition files are open at once. When another is needed, the one least recently written to is
+ * flushed and closed. If it is needed again, it is appended to, or with {n} in the pattern, continued in a new file.
+ * Every partition shares one flush policy, and one timer for it, and flush() and close() cover them all.
+ * <br />
+ * Buffers are not shared. Each open partition is a SparkRollingFileWriter with a buffer of its own, of bufferSize bytes,
+ * and a thread of its own to finish the files it rolls away from. The buffers in use are bounded by maxOpenFiles times
+ * bufferSize, plus the buffers of rolled files that are still being finished.
+ * @author dmorgan
+ */
+public class SparkPartitionedFileWriter {
+    private static final String NO_KEY = "none";
+
+    private final File directory;
+    private final String pattern;
+    private final HL7PartitionKey key;
+    private String delimiter;
+    private Charset charset = Charset.defaultCharset();
+    private int maxOpenFiles = 64;
+    private int bufferSize = 1 << 14;
+    private int flushEvery = 0;
+    private long flushInterval = 0;
+    private boolean sync = false;
+
+    //open partitions, least recently written first
+    private final LinkedHashMap<String, SparkRollingFileWriter> open = new LinkedHashMap<String, SparkRollingFileWriter>(16, 0.75f, true);
+    private int unflushed = 0;
+    private long evictions = 0;
+    private Timer timer;
+    private IOException failure;
+
+    /**
+     * Creates a partitioned writer, with the default delimiter.
+     * @param directory the directory to write files in
+     * @param pattern the pattern to name files by, with {key} for the partition key
+     * @param key the partition key
+     */
+    public SparkPartitionedFileWriter(File directory, String pattern, HL7PartitionKey key) {
+        this(directory, pattern, key, SparkFileWriter.DELIMITER_DEFAULT);
+    }
+
+    /**
+     * Creates a partitioned writer.
+     * @param directory the directory to write files in
+     * @param pattern the pattern to name files by, with {key} for the partition key
+     * @param key the partition key
+     * @param delimiter the delimiter that will be placed after every message.
+     */
+    public SparkPartitionedFileWriter(File directory, String pattern, HL7PartitionKey key, String delimiter) {
+        this.directory = directory;
+        this.pattern = pattern;
+        this.key = key;
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Writes a message to the file of its partition.
+     * @param message the message
+     * @throws IOException
+     */
+    public void write(HL7Structure message) throws IOException {
+        write(new HL7RawMessage(message.marshal(), charset));
+    }
+
+    /**
+     * Writes a raw message, unchanged, to the file of its partition.
+     * @param message the message
+     * @throws IOException
+     */
+    public synchronized void write(HL7RawMessage message) throws IOException {
+        rethrow();
+        partition(key.keyOf(message.getText())).write(message);
+        unflushed++;
+        if (flushEvery > 0 && unflushed >= flushEvery) {
+            flush();
+        }
+    }
+
+    //the open writer for a key, opening it, and closing the least recently used, if need be
+    private SparkRollingFileWriter partition(String value) throws IOException {
+        String name = value == null || value.length() == 0 ? NO_KEY : clean(value);
+        SparkRollingFileWriter writer = open.get(name);
+        if (writer != null) {
+            return writer;
+        }
+        while (open.size() >= Math.max(maxOpenFiles, 1)) {
+            Iterator<SparkRollingFileWriter> eldest = open.values().iterator();
+            SparkRollingFileWriter evicted = eldest.next();
+            eldest.remove();
+            evictions++;
+            evicted.close();
+        }
+        writer = new SparkRollingFileWriter(directory, pattern.replace("{key}", name), delimiter);
+        writer.setCharset(charset);
+        writer.setBufferSize(bufferSize);
+        writer.setSync(sync);
+        open.put(name, writer);
+        if (timer == null && flushInterval > 0) {
+            startTimer();
+        }
+        return writer;
+    }
+
+    //keeps keys to characters that are safe in a file name, and can not be read as part of the pattern
+    static String clean(String value) {
+        StringBuilder name = new StringBuilder(value.length());
+        for(int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '_';
+            name.append(safe && !(c == '.' && i == 0) ? c : '_');
+        }
+        return name.toString();
+    }
+
+    /**
+     * Flushes every open partition.
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        rethrow();
+        unflushed = 0;
+        IOException first = null;
+        for(SparkRollingFileWriter writer : open.values()) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                first = first == null ? e : first;
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    /**
+     * Flushes and closes every open partition.
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        IOException first = null;
+        for(Iterator<SparkRollingFileWriter> i = open.values().iterator(); i.hasNext(); ) {
+            SparkRollingFileWriter writer = i.next();
+            i.remove();
+            try {
+                writer.close();
+            } catch (IOException e) {
+                first = first == null ? e : first;
+            }
+        }
+        unflushed = 0;
+        if (first != null) {
+            throw first;
+        }
+        rethrow();
+    }
+
+    private void rethrow() throws IOException {
+        if (failure != null) {
+            IOException e = failure;
+            failure = null;
+            throw e;
+        }
+    }
+
+    private void startTimer() {
+        timer = new Timer("spark-partitions", true);
+        timer.schedule(new TimerTask() {
+            public void run() {
+                synchronized(SparkPartitionedFileWriter.this) {
+                    if (unflushed > 0) {
+                        try {
+                            flush();
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                    }
+                }
+            }
+        }, flushInterval, flushInterval);
+    }
+
+    /**
+     * Returns the files of the open partitions, by partition key.
+     * @return the open files
+     */
+    public synchronized Map<String, File> getOpenFiles() {
+        Map<String, File> files = new LinkedHashMap<String, File>();
+        for(Map.Entry<String, SparkRollingFileWriter> entry : open.entrySet()) {
+            files.put(entry.getKey(), entry.getValue().getCurrentFile());
+        }
+        return files;
+    }
+
+    /**
+     * Returns the number of times a partition was closed to make room for another.
+     * @return the evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the partition key.
+     * @return the key
+     */
+    public HL7PartitionKey getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the delimiters to use after each message.
+     * @return the delimiter
+     */
+    public String getDelimiter() {
+        return delimiter;
+    }
+
+    /**
+     * Sets the delimiter to use after each message, for partitions opened from now on.
+     * @param delimiter the delimiter to set
+     */
+    public void setDelimiter(String delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Returns the character set messages are encoded in.
+     * @return the charset
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Sets the character set messages are encoded in, for partitions opened from now on. Raw messages are written as
+     * they are.
+     * @param charset the charset to set
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Returns the most partition files open at once.
+     * @return the most open files
+     */
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    /**
+     * Sets the most partition files open at once. The default is 64.
+     * @param maxOpenFiles the most open files
+     */
+    public void setMaxOpenFiles(int maxOpenFiles) {
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * Returns the size in bytes of each open partition's buffer.
+     * @return the buffer size
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the size in bytes of each open partition's buffer, for partitions opened from now on. The default is 16 KB,
+     * so the most open files use 1 MB in all.
+     * @param bufferSize the buffer size
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Returns the number of messages, across every partition, between flushes of them all.
+     * @return the number of messages, or 0 if the writer does not flush by count
+     */
+    public int getFlushEvery() {
+        return flushEvery;
+    }
+
+    /**
+     * Sets every partition to be flushed after a number of messages, across every partition. The default is 0, which
+     * flushes partitions only as their buffers fill, when they are closed, and on flush().
+     * @param flushEvery the number of messages, or 0 to not flush by count
+     */
+    public void setFlushEvery(int flushEvery) {
+        this.flushEvery = flushEvery;
+    }
+
+    /**
+     * Returns the time in milliseconds between flushes of every partition.
+     * @return the flush interval, or 0 if the writer does not flush by time
+     */
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Sets every partition to be flushed, by one timer thread, at an interval. The default is 0, which does not flush
+     * by time. This takes effect when the next partition is opened.
+     * @param flushInterval the flush interval, or 0 to not flush by time
+     */
+    public synchronized void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * Returns true if every flush forces the partition files to the disk.
+     * @return the sync flag
+     */
+    public boolean isSync() {
+        return sync;
+    }
+
+    /**
+     * Sets every flush to force the partition files to the disk, for partitions opened from now on.
+     * @param sync true to force the files to the disk on every flush
+     */
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.urhl7.spark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.urhl7.igor.HL7Structure;
+
+/**
+ * A listener that runs each message through a chain of stages, each on threads of its own, so that a slow stage, such
+ * as a CPU heavy transform, does not hold up the others, such as one waiting on a database. Each stage takes messages
+ * from a bounded queue, and runs at most its parallelism at once, on its own pool of threads or on an executor it is
+ * given. When a stage's queue is full, the stage before it waits, and so on back to the reader.
+ * <br />
+ * In ordered mode, which is the default, each stage hands messages to the next in the order it received them, so the
+ * last stage sees messages in file order even if earlier stages ran them in parallel. Otherwise each message moves on
+ * as soon as it is done, and every stage must be thread safe.
+ * <pre>
+ * SparkPipeline pipeline = new SparkPipeline();
+ * pipeline.addStage("transform", transform, 4);
+ * pipeline.addListener("persist", persist, 1);
+ * reader.setListener(pipeline);
+ * reader.parse();
+ * pipeline.finish();
+ * </pre>
+ * Once a stage fails, or a listener stage returns false, messageReceived returns false, which stops the reader, and
+ * messages still in the pipeline are dropped. finish() throws the failure.
+ * @author dmorgan
+ */
+public class SparkPipeline implements HL7MessageListener {
+    private final List<Stage> stages = new ArrayList<Stage>();
+    private final List<ExecutorService> ownExecutors = new ArrayList<ExecutorService>();
+    private boolean ordered = true;
+    private int queueCapacity = 1024;
+    private volatile boolean started = false;
+
+    private final AtomicBoolean success = new AtomicBoolean(true);
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final AtomicLong pending = new AtomicLong();
+    private final Object idle = new Object();
+
+    /**
+     * Adds a stage that runs on a pool of threads of its own.
+     * @param name the name of the stage, for its metrics
+     * @param stage the stage
+     * @param parallelism the number of threads, and so the most messages the stage runs at once
+     * @return the stage, for its metrics
+     */
+    public Stage addStage(String name, HL7Stage stage, int parallelism) {
+        ExecutorService own = Executors.newFixedThreadPool(Math.max(parallelism, 1), new MessageDispatcher.WorkerThreadFactory());
+        ownExecutors.add(own);
+        return addStage(name, stage, own, parallelism);
+    }
+
+    /**
+     * Adds a stage that runs on an executor. The executor is not shut down by the pipeline, and should not be shared
+     * with another stage, as a stage waiting on a full queue holds its thread.
+     * @param name the name of the stage, for its metrics
+     * @param stage the stage
+     * @param executor the executor to run the stage on
+     * @param parallelism the most messages the stage runs at once
+     * @return the stage, for its metrics
+     */
+    public synchronized Stage addStage(String name, HL7Stage stage, Executor executor, int parallelism) {
+        if (started) {
+            throw new IllegalStateException("Stages can not be added once messages have been received");
+        }
+        Stage added = new Stage(name, stage, executor, Math.max(parallelism, 1), stages.size());
+        stages.add(added);
+        return added;
+    }
+
+    /**
+     * Adds a listener as a stage that runs on a pool of threads of its own. Every message is handed on to the next
+     * stage, if there is one; if the listener returns false, the pipeline stops, as the reader would.
+     * @param name the name of the stage, for its metrics
+     * @param listener the listener
+     * @param parallelism the number of threads, and so the most messages the listener is called with at once
+     * @return the stage, for its metrics
+     */
+    public Stage addListener(String name, HL7MessageListener listener, int parallelism) {
+        return addStage(name, new ListenerStage(listener), parallelism);
+    }
+
+    /**
+     * Adds a stage that runs each message on a thread of its own, for stages that spend most of their time blocked,
+     * on a database or a socket. On Java 21 and later these are virtual threads, so a large limit costs little; on
+     * older JVMs they are ordinary daemon threads. Messages still leave the stage in order if the pipeline is ordered.
+     * @param name the name of the stage, for its metrics
+     * @param stage the stage
+     * @param maxConcurrency the most messages the stage runs at once
+     * @return the stage, for its metrics
+     */
+    public Stage addVirtualStage(String name, HL7Stage stage, int maxConcurrency) {
+        ExecutorService own = VirtualThreads.newExecutor();
+        ownExecutors.add(own);
+        return addStage(name, stage, own, maxConcurrency);
+    }
+
+    /**
+     * Hands a message to the first stage, waiting while its queue is full.
+     * @param message the message
+     * @return false once the pipeline has failed or a listener stage has returned false
+     */
+    public boolean messageReceived(HL7Structure message) {
+        if (!started) {
+            synchronized(this) {
+                if (stages.isEmpty()) {
+                    throw new IllegalStateException("The pipeline has no stages");
+                }
+                started = true;
+            }
+        }
+        if (!isRunning()) {
+            return false;
+        }
+        pending.incrementAndGet();
+        try {
+            stages.get(0).submit(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            left();
+            return false;
+        }
+        return isRunning();
+    }
+
+    /**
+     * Waits for every message received to pass through the pipeline, and shuts down the threads the pipeline made. The
+     * pipeline can not be used after this.
+     * @return true unless a listener stage returned false
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean finish() throws InterruptedException {
+        try {
+            synchronized(idle) {
+                while (pending.get() > 0) {
+                    idle.wait(100);
+                }
+            }
+        } finally {
+            for(ExecutorService own : ownExecutors) {
+                own.shutdown();
+            }
+        }
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+        return success.get();
+    }
+
+    /**
+     * Stops the threads the pipeline made without waiting for messages in flight.
+     */
+    public void abort() {
+        success.set(false);
+        for(ExecutorService own : ownExecutors) {
+            own.shutdownNow();
+        }
+        pending.set(0);
+        synchronized(idle) {
+            idle.notifyAll();
+        }
+    }
+
+    private boolean isRunning() {
+        return success.get() && failure.get() == null;
+    }
+
+    //a message has left the pipeline, through the end or by being dropped
+    private void left() {
+        if (pending.decrementAndGet() <= 0) {
+            synchronized(idle) {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the stages, in order.
+     * @return the stages
+     */
+    public synchronized List<Stage> getStages() {
+        return Collections.unmodifiableList(new ArrayList<Stage>(stages));
+    }
+
+    /**
+     * Returns true if each stage hands messages on in the order it received them.
+     * @return the ordered flag
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Sets each stage to hand messages on in the order it received them. The default is true.
+     * @param ordered true to keep messages in order
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * Returns the number of messages that may wait for each stage.
+     * @return the queue capacity
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets the number of messages that may wait for each stage, for stages added from now on. The default is 1024.
+     * @param queueCapacity the queue capacity
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * A stage of the pipeline, with its metrics.
+     */
+    public class Stage {
+        private final String name;
+        private final HL7Stage stage;
+        private final Executor executor;
+        private final int parallelism;
+        private final int index;
+        private final int capacity;
+
+        //messages received but not yet handed on; bounds the queue and the reorder buffer together
+        private final Semaphore inFlight;
+        private final ConcurrentLinkedQueue<Work> queue = new ConcurrentLinkedQueue<Work>();
+        private final AtomicInteger running = new AtomicInteger();
+
+        //reorder buffer, guarded by this
+        private final Map<Long, Work> done = new HashMap<Long, Work>();
+        private long nextSequence = 0;
+        private long nextToHand = 0;
+        private boolean handing = false;
+
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+        Stage(String name, HL7Stage stage, Executor executor, int parallelism, int index) {
+            this.name = name;
+            this.stage = stage;
+            this.executor = executor;
+            this.parallelism = parallelism;
+            this.index = index;
+            this.capacity = Math.max(queueCapacity, 1) + parallelism;
+            this.inFlight = new Semaphore(capacity);
+        }
+
+        //queues a message, waiting for room, and starts another runner if the stage is below its parallelism
+        void submit(HL7Structure message) throws InterruptedException {
+            inFlight.acquire();
+            Work work;
+            synchronized(this) {
+                work = new Work(nextSequence++, message);
+            }
+            queue.add(work);
+            int depth = capacity - inFlight.availablePermits();
+            for(int max = maxQueueDepth.get(); depth > max && !maxQueueDepth.compareAndSet(max, depth); max = maxQueueDepth.get()) {
+                //retry
+            }
+            startRunner();
+        }
+
+        private void startRunner() {
+            if (!claimRunner()) {
+                return;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        runQueue();
+                    }
+                });
+            } catch (RuntimeException e) {
+                //rejected, so fail, and drop what is queued here
+                fail(e);
+                runQueue();
+            }
+        }
+
+        private boolean claimRunner() {
+            for(int now = running.get(); now < parallelism; now = running.get()) {
+                if (running.compareAndSet(now, now + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        //takes work until there is none. Work queued just as the runner stops, when every runner looked busy to its
+        //submitter, is picked up by claiming the runner again.
+        private void runQueue() {
+            do {
+                for(Work work = queue.poll(); work != null; work = queue.poll()) {
+                    run(work);
+                }
+                running.decrementAndGet();
+            } while (!queue.isEmpty() && claimRunner());
+        }
+
+        private void run(Work work) {
+            if (isRunning()) {
+                long start = System.nanoTime();
+                try {
+                    work.message = stage.process(work.message);
+                } catch (Throwable t) {
+                    work.message = null;
+                    fail(t);
+                }
+                busyNanos.addAndGet(System.nanoTime() - start);
+                processed.incrementAndGet();
+                if (work.message == null) {
+                    dropped.incrementAndGet();
+                }
+            } else {
+                work.message = null;
+            }
+            if (ordered) {
+                complete(work);
+            } else {
+                handOn(work);
+            }
+        }
+
+        //adds finished work to the reorder buffer, and hands on whatever is next in order, unless another runner is
+        //already doing so
+        private void complete(Work work) {
+            synchronized(this) {
+                done.put(work.sequence, work);
+                if (handing) {
+                    return;
+                }
+                handing = true;
+            }
+            while (true) {
+                Work next;
+                synchronized(this) {
+                    next = done.remove(nextToHand);
+                    if (next == null) {
+                        handing = false;
+                        return;
+                    }
+                    nextToHand++;
+                }
+                handOn(next);
+            }
+        }
+
+        private void handOn(Work work) {
+            try {
+                if (work.message != null && isRunning() && index + 1 < stages.size()) {
+                    try {
+                        stages.get(index + 1).submit(work.message);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        fail(e);
+                        left();
+                    }
+                } else {
+                    left();
+                }
+            } finally {
+                inFlight.release();
+            }
+        }
+
+        /**
+         * Returns the name of the stage.
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the most messages the stage runs at once.
+         * @return the parallelism
+         */
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        /**
+         * Returns the number of messages the stage has processed.
+         * @return the processed count
+         */
+        public long getProcessed() {
+            return processed.get();
+        }
+
+        /**
+         * Returns the number of messages the stage has dropped.
+         * @return the dropped count
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * Returns the total time in nanoseconds the stage has spent processing, across all its threads.
+         * @return the busy time
+         */
+        public long getBusyNanos() {
+            return busyNanos.get();
+        }
+
+        /**
+         * Returns the average time in nanoseconds the stage takes to process a message.
+         * @return the average time, or 0 if nothing has been processed
+         */
+        public long getAverageNanos() {
+            long count = processed.get();
+            return count == 0 ? 0 : busyNanos.get() / count;
+        }
+
+        /**
+         * Returns the number of messages received by the stage and not yet handed on, whether waiting, running or
+         * waiting to be put back in order.
+         * @return the queue depth
+         */
+        public int getQueueDepth() {
+            return capacity - inFlight.availablePermits();
+        }
+
+        /**
+         * Returns the largest queue depth seen.
+         * @return the largest queue depth
+         */
+        public int getMaxQueueDepth() {
+            return maxQueueDepth.get();
+        }
+    }
+
+    private void fail(Throwable t) {
+        failure.compareAndSet(null, t);
+    }
+
+    private static class Work {
+        final long sequence;
+        HL7Structure message;
+
+        Work(long sequence, HL7Structure message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+
+    //a listener as a stage, which stops the pipeline if it returns false
+    private class ListenerStage implements HL7Stage {
+        private final HL7MessageListener listener;
+
+        ListenerStage(HL7MessageListener listener) {
+            this.listener = listener;
+        }
+
+        public HL7Structure process(HL7Structure message) {
+            if (!listener.messageReceived(message)) {
+                success.set(false);
+            }
+            return message;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.urhl7.spark;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A SparkFileWriter that rolls over to a new file when the current one reaches a size, a number of messages or an age,
+ * or when the date in its name changes. Files are named by a pattern in which each part in braces is either {n}, a
+ * sequence number, or a SimpleDateFormat pattern for the time the file is opened; "ADT_{yyyyMMdd_HH}_{n}.hl7.gz" names
+ * a new file every hour, numbered from 0 within the hour. The pattern may name subdirectories, which are created.
+ * <br />
+ * Files roll between messages. The file being left is written out, flushed and closed on another thread, so a write
+ * that rolls waits no longer than it takes to start a new buffer. A pattern ending in ".gz" writes gzip directly, with
+ * no second pass to compress. The writer flushes only as its buffer fills and when files roll or close, unless a flush
+ * policy is set.
+ * <br />
+ * Without {n} in the pattern, a file whose name is taken is appended to, so only a change of date starts a new file.
+ * With {n}, numbers already taken are skipped, so a restarted writer does not overwrite what is there.
+ * @author dmorgan
+ */
+public class SparkRollingFileWriter extends SparkFileWriter {
+    private static final long DATE_CHECK_INTERVAL = 1000;
+
+    private final File directory;
+    private final List<Object> parts = new ArrayList<Object>();
+    private final boolean numbered;
+    private long maxBytes = 0;
+    private long maxMessages = 0;
+    private long maxAge = 0;
+
+    private String dated;
+    private long datedChecked;
+    private int sequence;
+
+    /**
+     * Creates a rolling writer, with the default delimiter.
+     * @param directory the directory to write files in
+     * @param pattern the pattern to name files by
+     */
+    public SparkRollingFileWriter(File directory, String pattern) {
+        this(directory, pattern, DELIMITER_DEFAULT);
+    }
+
+    /**
+     * Creates a rolling writer.
+     * @param directory the directory to write files in
+     * @param pattern the pattern to name files by
+     * @param delimiter the delimiter that will be placed after every message.
+     */
+    public SparkRollingFileWriter(File directory, String pattern, String delimiter) {
+        super(directory, delimiter, true);
+        this.directory = directory;
+        boolean hasSequence = false;
+        int at = 0;
+        while (at < pattern.length()) {
+            int open = pattern.indexOf('{', at);
+            int close = open < 0 ? -1 : pattern.indexOf('}', open);
+            if (close < 0) {
+                parts.add(pattern.substring(at));
+                break;
+            }
+            parts.add(pattern.substring(at, open));
+            String token = pattern.substring(open + 1, close);
+            if (token.equals("n")) {
+                hasSequence = true;
+                parts.add(null);
+            } else {
+                parts.add(new SimpleDateFormat(token));
+            }
+            at = close + 1;
+        }
+        this.numbered = hasSequence;
+        setFlushEvery(0);
+        setGzip(pattern.endsWith(".gz"));
+    }
+
+    @Override
+    void beforeWrite() throws IOException {
+        long now = System.currentTimeMillis();
+        boolean roll = !isOpen()
+                || (maxMessages > 0 && getMessagesWritten() >= maxMessages)
+                || (maxBytes > 0 && getBytesWritten() >= maxBytes)
+                || (maxAge > 0 && now - getOpened() >= maxAge);
+        if (!roll && now - datedChecked >= DATE_CHECK_INTERVAL) {
+            datedChecked = now;
+            roll = !name(now, -1).equals(dated);
+        }
+        if (roll) {
+            File next = nextFile(now);
+            //an unnumbered name that has not changed carries on in the same file
+            if (!isOpen() || !next.equals(getOutputFile())) {
+                roll(next);
+            }
+        }
+    }
+
+    //the next free name for the time, numbered on from the current file if the date has not changed
+    private File nextFile(long now) {
+        String date = name(now, -1);
+        sequence = date.equals(dated) ? sequence + 1 : 0;
+        dated = date;
+        datedChecked = now;
+        File next = new File(directory, name(now, sequence));
+        while (numbered && next.exists()) {
+            next = new File(directory, name(now, ++sequence));
+        }
+        File parent = next.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        return next;
+    }
+
+    //the name for a time and sequence number; with a sequence of -1, {n} is left in place
+    private String name(long time, int sequence) {
+        Date date = new Date(time);
+        StringBuilder name = new StringBuilder();
+        for(Object part : parts) {
+            if (part == null) {
+                name.append(sequence < 0 ? "{n}" : String.valueOf(sequence));
+            } else if (part instanceof SimpleDateFormat) {
+                name.append(((SimpleDateFormat) part).format(date));
+            } else {
+                name.append(part);
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * Returns the file being written to, or the last one if the writer is closed.
+     * @return the current file, or null if nothing has been written
+     */
+    public File getCurrentFile() {
+        return dated == null ? null : getOutputFile();
+    }
+
+    /**
+     * Returns the size in bytes, before compression, at which a file is rolled.
+     * @return the size, or 0 for no limit
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the size in bytes at which a file is rolled. The size counts the messages and delimiters written, before
+     * compression, so a gzipped file is smaller on disk. The default is 0, for no limit.
+     * @param maxBytes the size, or 0 for no limit
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the number of messages at which a file is rolled.
+     * @return the number of messages, or 0 for no limit
+     */
+    public long getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * Sets the number of messages at which a file is rolled. The default is 0, for no limit.
+     * @param maxMessages the number of messages, or 0 for no limit
+     */
+    public void setMaxMessages(long maxMessages) {
+        this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Returns the age in milliseconds at which a file is rolled.
+     * @return the age, or 0 for no limit
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Sets the age in milliseconds at which a file is rolled, counted from when it was opened. Files also roll when the
+     * date in their name changes. The default is 0, for no limit.
+     * @param maxAge the age, or 0 for no limit
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+}
@@ -24,12 +24,18 @@
 
 package org.urhl7.utils;
 
+import java.util.Arrays;
+
 /**
  * Class with static methods to escape/unescape HL7 messages
  * @author dmorgan
  */
 public class HL7Escape {
     private HL7Escape() {}
+
+    //escape codes, in the same order as the delimiter array (field, component, repetition, escape, subcomponent)
+    private static final String ESCAPE_CODES = "FSRET";
+
     /**
      * Returns the data, properly unencoded
      * @return unencoded data
@@ -96,4 +102,59 @@ public class HL7Escape {
             return inputData;
         } else {return data;}
     }
+
+    /**
+     * Converts data that is escaped for one delimiter set into data escaped for another delimiter set. This is
+     * equivalent to escape(to, unescape(from, data)), but is done in a single pass. If both delimiter sets are the
+     * same, the data is returned untouched.
+     * @param from the delimiters the data is currently escaped with
+     * @param to the delimiters the data should be escaped with
+     * @param data the escaped data
+     * @return the data escaped for the new delimiter set
+     */
+    public static String transcode(char[] from, char[] to, String data) {
+        if (data == null || from == to || Arrays.equals(from, to)) {
+            return data;
+        }
+        StringBuilder sb = new StringBuilder(data.length() + 8);
+        transcode(from, to, data, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Converts data that is escaped for one delimiter set into data escaped for another delimiter set, appending the
+     * result to the provided StringBuilder.
+     * @param from the delimiters the data is currently escaped with
+     * @param to the delimiters the data should be escaped with
+     * @param data the escaped data
+     * @param out the StringBuilder to append to
+     */
+    public static void transcode(char[] from, char[] to, String data, StringBuilder out) {
+        if (data == null || from == to || Arrays.equals(from, to)) {
+            out.append(data);
+            return;
+        }
+        int len = data.length();
+        for(int i=0; i<len; i++) {
+            char c = data.charAt(i);
+            if (c == from[3] && i+2 < len && data.charAt(i+2) == from[3]) {
+                int idx = ESCAPE_CODES.indexOf(data.charAt(i+1));
+                if (idx >= 0) {
+                    c = from[idx];
+                    i += 2;
+                }
+            }
+            appendEscaped(to, c, out);
+        }
+    }
+
+    private static void appendEscaped(char[] delimiters, char c, StringBuilder out) {
+        for(int i=0; i<ESCAPE_CODES.length(); i++) {
+            if (c == delimiters[i]) {
+                out.append(delimiters[3]).append(ESCAPE_CODES.charAt(i)).append(delimiters[3]);
+                return;
+            }
+        }
+        out.append(c);
+    }
 }
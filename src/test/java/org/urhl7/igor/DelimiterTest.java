@@ -75,4 +75,27 @@ public class DelimiterTest {
         assertEquals(s2.marshal(), finAdvMsg);
 
     }
+
+    @Test
+    public void testDelimiterSwappingBeforeAccess() {
+        String origMsg = "MSH|^~\\&|FLOWCAST|IDX|URMC\\S\\12|ENGINE|201001111101||ADT^A13|61234_22333_DC|P|2.3\r"+
+           "NK1|1|MORGAN^JOE^^^^|SP||(3*5)555-5555~(315)555-4444||NK&&KID||||\r";
+        HL7Structure struct = Igor.structure(origMsg);
+
+        char[] chars = {'|', '*', '~', '\\', '`'};
+        struct.changeDelims(chars);
+
+        String finMsg = "MSH|*~\\`|FLOWCAST|IDX|URMC^12|ENGINE|201001111101||ADT*A13|61234_22333_DC|P|2.3\r"+
+           "NK1|1|MORGAN*JOE****|SP||(3\\S\\5)555-5555~(315)555-4444||NK``KID||||\r";
+        assertEquals(struct.marshal(), finMsg);
+
+        assertEquals(struct.get("NK1-5[0]").getData(), "(3*5)555-5555");
+        struct.get("NK1-2.1").setData("SMITH*JONES");
+        struct.get("MSH-3").setData("A^B");
+
+        String editMsg = "MSH|*~\\`|A^B|IDX|URMC^12|ENGINE|201001111101||ADT*A13|61234_22333_DC|P|2.3\r"+
+           "NK1|1|SMITH\\S\\JONES*JOE****|SP||(3\\S\\5)555-5555~(315)555-4444||NK``KID||||\r";
+        assertEquals(struct.marshal(), editMsg);
+        assertEquals(Igor.structure(struct.marshal()).marshal(), editMsg);
+    }
 }
@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.igor;
+
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author David Morgan
+ */
+public class MarshalStringsTest {
+    private static final String MSG = "MSH|^~\\&|FLOWCAST|IDX|URMC|ENGINE|201001111101||ADT^A13|61234_22333_DC|P|2.3||||||\r"+
+           "PID|1||1133445^^^IDX^MRN||MORGAN^JESSICA^^^^||19871012|F||WH|123 MILL RD^^ROCHESTER^NY^14526&&^^^^||||\r"+
+           "NK1|1|MORGAN^JOE^^^^|SP||(315)555-5555~||NK&&||^^|\r";
+
+    @Test
+    public void testRoundTrip() {
+        assertEquals(Igor.structure(MSG).marshal(), MSG);
+    }
+
+    @Test
+    public void testCompactMarshal() {
+        HL7Structure struct = Igor.structure(MSG);
+        String compact = "MSH|^~\\&|FLOWCAST|IDX|URMC|ENGINE|201001111101||ADT^A13|61234_22333_DC|P|2.3\r"+
+           "PID|1||1133445^^^IDX^MRN||MORGAN^JESSICA||19871012|F||WH|123 MILL RD^^ROCHESTER^NY^14526\r"+
+           "NK1|1|MORGAN^JOE|SP||(315)555-5555||NK\r";
+        assertEquals(struct.marshal(true), compact);
+
+        //compact marshalling must not change the structure
+        assertEquals(struct.marshal(), MSG);
+    }
+
+    @Test
+    public void testCompress() {
+        HL7Structure struct = Igor.structure(MSG);
+        struct.compress();
+        String compressed = "MSH|^~\\&|FLOWCAST|IDX|URMC|ENGINE|201001111101||ADT^A13|61234_22333_DC|P|2.3\r"+
+           "PID|1||1133445^^^IDX^MRN||MORGAN^JESSICA^^^^||19871012|F||WH|123 MILL RD^^ROCHESTER^NY^14526&&^^^^\r"+
+           "NK1|1|MORGAN^JOE^^^^|SP||(315)555-5555~||NK&&||^^\r";
+        assertEquals(struct.marshal(), compressed);
+    }
+
+    @Test
+    public void testIsEmpty() {
+        HL7Structure struct = Igor.structure(MSG);
+        HL7Segment nk1 = struct.helper().getSegment("NK1");
+        assertFalse(nk1.getRepeatingField(5).isEmpty());
+        assertTrue(nk1.getRepeatingField(5).getField(1).isEmpty());
+        assertTrue(nk1.getRepeatingField(9).isEmpty());
+        assertFalse(nk1.getRepeatingField(7).getField(0).isEmpty());
+        assertTrue(nk1.getRepeatingField(7).getField(0).getFieldComponent(0).getFieldSubcomponent(2).isEmpty());
+        assertTrue(nk1.getRepeatingField(10).isEmpty());
+    }
+
+    @Test
+    public void testCopy() {
+        HL7Structure struct = Igor.structure(MSG);
+        HL7Structure copy = struct.copy();
+        assertEquals(copy.marshal(), MSG);
+
+        copy.get("PID-5.2").setData("JANE");
+        copy.getSegment(2).getRepeatingField(1).getField(0).setData("2");
+        assertEquals(copy.get("PID-5.2").getData(), "JANE");
+        assertEquals(copy.get("NK1-1").getData(), "2");
+        assertEquals(struct.marshal(), MSG);
+        assertSame(copy.getSegment(1).getParent(), copy);
+    }
+
+    @Test
+    public void testBlankCopy() {
+        HL7Structure struct = Igor.structure(MSG);
+        String blank = "MSH|^~\\&|||||||^|||||||||\r"+
+           "PID|||^^^^||^^^^^||||||^^^^&&^^^^||||\r"+
+           "NK1||^^^^^|||~||&&||^^|\r";
+        assertEquals(struct.copy(false).marshal(), blank);
+        assertEquals(struct.marshal(), MSG);
+    }
+
+    @Test
+    public void testCopyOnWrite() {
+        HL7Structure struct = Igor.structure(MSG);
+        HL7Structure view = struct.copyOnWrite();
+        assertEquals(view.marshal(), MSG);
+        assertSame(view.segmentList().get(1), struct.segmentList().get(1));
+
+        //reading copies nothing, and a field read before a write sees it
+        DataField name = view.get("PID-5.2");
+        assertEquals(name.getData(), "JESSICA");
+        assertEquals(view.getAll("NK1-5").size(), 2);
+        assertSame(view.segmentList().get(1), struct.segmentList().get(1));
+        assertSame(view.segmentList().get(2), struct.segmentList().get(2));
+
+        view.get("PID-5.2").setData("JANE");
+        assertEquals(name.getData(), "JANE");
+        for(DataField df : view.getAll("NK1-5")) {
+            df.setData("");
+        }
+        assertEquals(view.get("PID-5.2").getData(), "JANE");
+        assertTrue(view.has("MSH-3"));
+
+        String changed = MSG.replace("JESSICA", "JANE").replace("(315)555-5555~", "~");
+        assertEquals(view.marshal(), changed);
+        assertEquals(struct.marshal(), MSG);
+
+        //only the segments written to were copied
+        assertSame(view.segmentList().get(0), struct.segmentList().get(0));
+        assertNotSame(view.segmentList().get(1), struct.segmentList().get(1));
+        assertNotSame(view.segmentList().get(2), struct.segmentList().get(2));
+
+        HL7Structure other = struct.copyOnWrite();
+        other.changeDelims(new char[] {'|', '*', '~', '\\', '&'});
+        other.getSegment(0).getRepeatingField(2).getField(0).setData("IGOR");
+        assertEquals(other.marshal(), MSG.replace('^', '*').replace("FLOWCAST", "IGOR"));
+        assertEquals(struct.marshal(), MSG);
+    }
+
+    @Test
+    public void testTemplate() {
+        HL7Structure struct = Igor.structure(MSG);
+        HL7TemplateCache cache = new HL7TemplateCache();
+        HL7Structure blank = cache.blank(struct);
+        assertEquals(blank.marshal(), struct.copy(false).marshal());
+
+        HL7Structure other = Igor.structure(MSG.replace("JESSICA", "JANE"));
+        assertSame(cache.get(other), cache.get(struct));
+        assertEquals(cache.size(), 1);
+
+        HL7Structure second = cache.blank(other);
+        second.get("PID-5.1").setData("SMITH");
+        assertEquals(cache.blank(struct).marshal(), blank.marshal());
+        assertEquals(struct.marshal(), MSG);
+    }
+
+    @Test
+    public void testTemplateShape() {
+        HL7TemplateCache cache = new HL7TemplateCache();
+        HL7Structure struct = Igor.structure(MSG.replace("MORGAN^JESSICA^^^^", "SMITH^J"));
+        assertEquals(cache.blank(struct).get("PID-5").marshal(), "^");
+
+        //same segments and field counts, but more components in PID-5
+        HL7Structure components = Igor.structure(MSG.replace("MORGAN^JESSICA^^^^", "SMITH^J^Q^JR^DR"));
+        assertNotEquals(HL7Template.keyOf(components), HL7Template.keyOf(struct));
+        assertEquals(cache.blank(components).get("PID-5").marshal(), "^^^^");
+
+        //more repetitions in PID-3, and subcomponents in PID-3.4
+        HL7Structure repetitions = Igor.structure(MSG.replace("1133445^^^IDX^MRN", "1133445^^^IDX^MRN~99^^^EPI^MRN"));
+        assertEquals(cache.blank(repetitions).marshal(), repetitions.copy(false).marshal());
+        HL7Structure subcomponents = Igor.structure(MSG.replace("1133445^^^IDX^MRN", "1133445^^^IDX&1.2&ISO^MRN"));
+        assertEquals(cache.blank(subcomponents).marshal(), subcomponents.copy(false).marshal());
+        assertEquals(cache.blank(Igor.structure(MSG)).marshal(), Igor.structure(MSG).copy(false).marshal());
+        assertEquals(cache.size(), 5);
+    }
+}
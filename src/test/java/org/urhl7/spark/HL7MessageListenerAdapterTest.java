@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.urhl7.spark;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.urhl7.igor.HL7Structure;
+import org.urhl7.igor.Igor;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+import static org.urhl7.spark.SparkFileReaderTest.message;
+import static org.urhl7.spark.SparkFileReaderTest.writeMessages;
+
+/**
+ *
+ * @author David Morgan
+ */
+public class HL7MessageListenerAdapterTest {
+    @Test
+    public void testListenerAdapters() throws Exception {
+        File f = writeMessages(1000, "\r\n", false);
+
+        //two consumers draining a small queue while the file is read
+        final HL7MessageListenerQueueAdapter queue = new HL7MessageListenerQueueAdapter(8);
+        final Set<String> taken = Collections.synchronizedSet(new HashSet<String>());
+        Thread[] consumers = new Thread[2];
+        for(int c=0; c<consumers.length; c++) {
+            consumers[c] = new Thread() {
+                public void run() {
+                    try {
+                        for(HL7Structure message = queue.take(); message != null; message = queue.take()) {
+                            taken.add(message.marshal());
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            consumers[c].start();
+        }
+        SparkFileReader reader = new SparkFileReader(f, queue);
+        try {
+            assertTrue(reader.parse());
+        } finally {
+            queue.end();
+        }
+        for(Thread consumer : consumers) {
+            consumer.join(5000);
+            assertFalse(consumer.isAlive());
+        }
+        assertEquals(taken.size(), 1000);
+        assertTrue(queue.isDrained());
+
+        HL7MessageListenerConcurrentListAdapter collected = new HL7MessageListenerConcurrentListAdapter();
+        reader = new SparkFileReader(f, collected);
+        reader.setWorkerThreads(4);
+        reader.setOrdered(false);
+        assertTrue(reader.parse());
+        assertEquals(collected.size(), 1000);
+        assertEquals(new HashSet<HL7Structure>(collected.getList()).size(), 1000);
+        collected.clearList();
+        assertEquals(collected.size(), 0);
+
+        //a sample of 100 from 1000 holds each message about a tenth of the time
+        Map<HL7Structure, Integer> ordinals = new IdentityHashMap<HL7Structure, Integer>();
+        for(int i=0; i<1000; i++) {
+            ordinals.put(Igor.structure(message(i)), i);
+        }
+        int[] hits = new int[10];
+        for(int run=0; run<200; run++) {
+            HL7MessageListenerSampleAdapter sample = new HL7MessageListenerSampleAdapter(100, run);
+            for(HL7Structure message : ordinals.keySet()) {
+                sample.messageReceived(message);
+            }
+            assertEquals(sample.getSeen(), 1000);
+            List<HL7Structure> kept = sample.getSample();
+            assertEquals(kept.size(), 100);
+            for(HL7Structure message : kept) {
+                hits[ordinals.get(message) / 100]++;
+            }
+        }
+        //200 runs of 100 kept is 20000, so about 2000 from each tenth of the file
+        for(int hit : hits) {
+            assertTrue(hit > 1700 && hit < 2300, Arrays.toString(hits));
+        }
+    }
+
+    @Test
+    public void testQueueCancel() throws Exception {
+        //cancelled after end, the end is still there for a consumer to see
+        final HL7MessageListenerQueueAdapter queue = new HL7MessageListenerQueueAdapter(4);
+        HL7Structure message = Igor.structure(message(0));
+        assertTrue(queue.messageReceived(message));
+        queue.end();
+        queue.cancel();
+        final Object[] taken = { message };
+        Thread consumer = new Thread() {
+            public void run() {
+                try {
+                    taken[0] = queue.take();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        consumer.start();
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+        assertNull(taken[0]);
+        assertNull(queue.take());
+        assertFalse(queue.messageReceived(message));
+
+        //an end waiting on a full queue, with no consumers left, is released by cancel
+        final HL7MessageListenerQueueAdapter full = new HL7MessageListenerQueueAdapter(1);
+        assertTrue(full.messageReceived(message));
+        Thread ender = new Thread() {
+            public void run() {
+                full.end();
+            }
+        };
+        ender.start();
+        full.cancel();
+        ender.join(5000);
+        assertFalse(ender.isAlive());
+        assertNull(full.poll(10, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.*;
+import java.util.List;
+import java.util.Map;
+import org.urhl7.igor.Igor;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+import static org.urhl7.spark.SparkFileReaderTest.message;
+import static org.urhl7.spark.SparkFileReaderTest.writeMessages;
+
+/**
+ *
+ * @author David Morgan
+ */
+public class SparkDirectoryReaderTest {
+    private static File directory(File... files) throws IOException {
+        File dir = File.createTempFile("spark", "dir");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        for(File f : files) {
+            File moved = new File(dir, f.getName());
+            assertTrue(f.renameTo(moved));
+            moved.deleteOnExit();
+        }
+        return dir;
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        File small = writeMessages(20, "\r\n", false);
+        File big = writeMessages(300, "\r\n", false);
+        File zipped = writeMessages(100, "\r\n", true);
+        File dir = directory(small, big, zipped);
+        File sidecar = new File(dir, big.getName() + SparkFileIndex.SIDECAR_EXTENSION);
+        new FileOutputStream(sidecar).close();
+        sidecar.deleteOnExit();
+
+        HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+        SparkDirectoryReader reader = new SparkDirectoryReader(dir, adapter);
+        reader.setParallelism(3);
+        List<File> files = reader.getFiles();
+        assertEquals(files.size(), 3);
+        assertEquals(files.get(0).getName(), big.getName());
+        assertEquals(files.get(1).getName(), zipped.getName());
+
+        assertTrue(reader.parse());
+        assertEquals(adapter.getList().size(), 420);
+        Map<File, Boolean> results = reader.getResults();
+        assertEquals(results.size(), 3);
+        assertFalse(results.containsValue(Boolean.FALSE));
+        assertTrue(reader.getFailures().isEmpty());
+
+        reader.setGlob("*.{gz,zip}");
+        assertEquals(reader.getFiles().size(), 1);
+
+        //one set of batches across every file
+        final int[] counts = new int[2];
+        reader.setBatchListener(new HL7BatchListener() {
+            public boolean batchReceived(List<org.urhl7.igor.HL7Structure> messages) {
+                assertTrue(messages.size() <= 64);
+                counts[0]++;
+                counts[1] += messages.size();
+                return true;
+            }
+        });
+        reader.setBatchSize(64);
+        reader.setGlob("*");
+        assertTrue(reader.parse());
+        assertEquals(counts[1], 420);
+        assertTrue(counts[0] >= 7);
+    }
+
+    @Test
+    public void testGzipMembersSize() throws IOException {
+        File members = File.createTempFile("spark", ".hl7.gz");
+        members.deleteOnExit();
+        SparkFileWriter writer = new SparkFileWriter(members, false);
+        writer.setGzip(true);
+        writer.setFlushEvery(0);
+        for(int i=0; i<2000; i++) {
+            writer.write(Igor.structure(message(i)));
+        }
+        //a small last member, so the gzip trailer says little of the file
+        writer.flush();
+        writer.write(Igor.structure(message(0)));
+        writer.close();
+
+        //plain files of twice and eight times the compressed length
+        long compressed = members.length();
+        int each = message(1000).length() + 2;
+        File small = writeMessages((int) (2 * compressed / each), "\r\n", false);
+        File large = writeMessages((int) (8 * compressed / each), "\r\n", false);
+        File dir = directory(members, small, large);
+
+        SparkDirectoryReader reader = new SparkDirectoryReader(dir, new HL7MessageListenerListAdapter());
+        List<File> files = reader.getFiles();
+        assertEquals(files.get(0).getName(), large.getName());
+        assertEquals(files.get(1).getName(), members.getName());
+        assertEquals(files.get(2).getName(), small.getName());
+
+        //exact with a sidecar index
+        File moved = new File(dir, members.getName());
+        File sidecar = SparkFileIndex.sidecarFor(moved);
+        new SparkFileReader(moved).buildIndex(false).write(sidecar);
+        sidecar.deleteOnExit();
+        files = reader.getFiles();
+        assertEquals(files.get(0).getName(), members.getName());
+        assertEquals(files.get(1).getName(), large.getName());
+    }
+
+    @Test
+    public void testGlob() {
+        assertTrue(SparkDirectoryReader.globToPattern("ADT_*.hl7").matcher("ADT_2012.hl7").matches());
+        assertFalse(SparkDirectoryReader.globToPattern("ADT_*.hl7").matcher("ADT_2012xhl7").matches());
+        assertTrue(SparkDirectoryReader.globToPattern("day?.{hl7,txt}").matcher("day1.txt").matches());
+        assertTrue(SparkDirectoryReader.globToPattern("day[!0-4].hl7").matcher("day7.hl7").matches());
+        assertFalse(SparkDirectoryReader.globToPattern("day[!0-4].hl7").matcher("day3.hl7").matches());
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.*;
+import java.util.zip.GZIPOutputStream;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+import static org.urhl7.spark.SparkFileReaderTest.message;
+import static org.urhl7.spark.SparkFileReaderTest.writeMessages;
+
+/**
+ *
+ * @author David Morgan
+ */
+public class SparkFileIndexTest {
+    //writes one gzip member per group of messages
+    static File writeMembers(int count, int perMember) throws IOException {
+        File f = File.createTempFile("spark", ".hl7.gz");
+        f.deleteOnExit();
+        OutputStream file = new FileOutputStream(f);
+        for(int i=0; i<count; i+=perMember) {
+            GZIPOutputStream member = new GZIPOutputStream(file) {
+                public void close() throws IOException {
+                    finish();
+                }
+            };
+            for(int j=i; j<Math.min(count, i+perMember); j++) {
+                member.write((message(j) + "\r\n").getBytes("ISO-8859-1"));
+            }
+            member.close();
+        }
+        file.close();
+        return f;
+    }
+
+    //writes one BGZF block per group of messages, each with its size in the BC extra field
+    static File writeBgzf(int count, int perBlock) throws IOException {
+        File f = File.createTempFile("spark", ".hl7.gz");
+        f.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+        for(int i=0; i<count; i+=perBlock) {
+            StringBuilder sb = new StringBuilder();
+            for(int j=i; j<Math.min(count, i+perBlock); j++) {
+                sb.append(message(j)).append("\r\n");
+            }
+            byte[] data = sb.toString().getBytes("ISO-8859-1");
+            java.util.zip.Deflater deflater = new java.util.zip.Deflater(6, true);
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] deflated = new byte[data.length + 64];
+            int length = deflater.deflate(deflated);
+            deflater.end();
+            java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            crc.update(data);
+            int blockSize = 18 + length + 8;
+            out.write(new byte[] { 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+                    (byte) (blockSize - 1), (byte) ((blockSize - 1) >> 8) });
+            out.write(deflated, 0, length);
+            out.writeInt(Integer.reverseBytes((int) crc.getValue()));
+            out.writeInt(Integer.reverseBytes(data.length));
+        }
+        out.close();
+        return f;
+    }
+
+    @Test
+    public void testParallelGzip() throws IOException {
+        File[] files = { writeMembers(2000, 10), writeBgzf(2000, 10), writeMessages(2000, "\r\n", true) };
+        for(File f : files) {
+            HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+            SparkFileReader reader = new SparkFileReader(f, adapter);
+            reader.setGzipThreads(3);
+            reader.setGzipChunkSize(1024);
+            assertTrue(reader.parse());
+            assertEquals(adapter.getList().size(), 2000);
+            for(int i=0; i<2000; i++) {
+                assertEquals(adapter.getList().get(i).marshal(), message(i));
+            }
+
+            reader.setIndex(reader.buildIndex(false));
+            assertEquals(reader.readMessage(1234).marshal(), message(1234));
+        }
+    }
+
+    @Test
+    public void testSeek() throws IOException {
+        File f = writeMessages(100, "\r\n", false);
+        SparkFileReader reader = new SparkFileReader(f);
+        SparkFileIndex index = reader.buildIndex(true);
+        assertEquals(index.size(), 100);
+        assertEquals(index.getControlId(42), "CTRL42");
+        assertEquals(index.getLength(42), message(42).length());
+        reader.setIndex(index);
+        assertEquals(reader.readMessage(0).marshal(), message(0));
+        assertEquals(reader.readMessage(99).marshal(), message(99));
+        assertEquals(reader.readMessage("CTRL57").marshal(), message(57));
+        assertNull(reader.readMessage("CTRL1000"));
+
+        HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+        reader.setListener(adapter);
+        assertTrue(reader.parseMessages(10, 5));
+        assertEquals(adapter.getList().size(), 5);
+        assertEquals(adapter.getList().get(0).marshal(), message(10));
+        assertEquals(adapter.getList().get(4).marshal(), message(14));
+    }
+
+    @Test
+    public void testSidecar() throws IOException {
+        File f = writeMessages(30, "\r\n", false);
+        assertNull(SparkFileIndex.load(f));
+        new SparkFileReader(f).buildIndex(true).write(SparkFileIndex.sidecarFor(f));
+        SparkFileIndex.sidecarFor(f).deleteOnExit();
+        SparkFileIndex index = SparkFileIndex.load(f);
+        assertEquals(index.size(), 30);
+        assertEquals(index.ordinalOf("CTRL29"), 29);
+        assertEquals(index.getOffset(29), f.length() - message(29).length() - 2);
+    }
+
+    @Test
+    public void testGzipRestartPoints() throws IOException {
+        File f = writeMembers(100, 7);
+        SparkFileReader reader = new SparkFileReader(f);
+        SparkFileIndex index = SparkFileIndex.read(writeIndex(reader.buildIndex(false)));
+        assertEquals(index.size(), 100);
+        assertEquals(index.restartPointBefore(index.getOffset(50)).uncompressedOffset, index.getOffset(49));
+        reader.setIndex(index);
+        for(int i=0; i<100; i++) {
+            assertEquals(reader.readMessage(i).marshal(), message(i));
+        }
+
+        HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+        reader.setListener(adapter);
+        assertTrue(reader.parseMessages(90, 20));
+        assertEquals(adapter.getList().size(), 10);
+        assertEquals(adapter.getList().get(9).marshal(), message(99));
+    }
+
+    @Test
+    public void testCheckpointResume() throws IOException {
+        File[] files = { writeMessages(100, "\r\n", false), writeMembers(100, 9) };
+        for(File f : files) {
+            for(int threads=1; threads<=3; threads+=2) {
+                final HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+                SparkFileReader reader = new SparkFileReader(f, new HL7MessageListener() {
+                    public boolean messageReceived(org.urhl7.igor.HL7Structure message) {
+                        adapter.messageReceived(message);
+                        return adapter.getList().size() < 40;
+                    }
+                });
+                reader.setWorkerThreads(threads);
+                reader.setCheckpointInterval(15);
+                reader.setCheckpointListener(SparkCheckpoint.sidecarListener(f));
+                SparkCheckpoint.sidecarFor(f).deleteOnExit();
+                assertFalse(reader.parse());
+                assertEquals(adapter.getList().size(), 40);
+
+                SparkCheckpoint checkpoint = SparkCheckpoint.read(SparkCheckpoint.sidecarFor(f));
+                assertEquals(checkpoint.getOrdinal(), 39);
+                assertEquals(checkpoint.getRestartPoint() != null, f.getName().endsWith(".gz"));
+                assertEquals(reader.getLastCheckpoint().getOffset(), checkpoint.getOffset());
+
+                HL7MessageListenerListAdapter rest = new HL7MessageListenerListAdapter();
+                reader.setListener(rest);
+                assertTrue(reader.resume(checkpoint));
+                assertEquals(rest.getList().size(), 60);
+                assertEquals(rest.getList().get(0).marshal(), message(40));
+                assertEquals(rest.getList().get(59).marshal(), message(99));
+                assertEquals(reader.getLastCheckpoint().getOrdinal(), 99);
+            }
+        }
+    }
+
+    private static File writeIndex(SparkFileIndex index) throws IOException {
+        File f = File.createTempFile("spark", ".idx");
+        f.deleteOnExit();
+        index.write(f);
+        return f;
+    }
+}
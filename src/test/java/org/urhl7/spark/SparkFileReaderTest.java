@@ -0,0 +1,563 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.urhl7.spark;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import org.urhl7.igor.HL7Structure;
+import org.urhl7.igor.Igor;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author David Morgan
+ */
+public class SparkFileReaderTest {
+    static String message(int i) {
+        return "MSH|^~\\&|FLOWCAST|IDX|URMC|ENGINE|201001111101||ADT^A0" + (i % 9) + "|CTRL" + i + "|P|2.3\r" +
+               "PID|1||" + i + "^^^IDX^MRN||MORGAN^JESSICA||19871012|F\r";
+    }
+
+    static File writeMessages(int count, String delimiter, boolean gzip) throws IOException {
+        File f = File.createTempFile("spark", gzip ? ".hl7.gz" : ".hl7");
+        f.deleteOnExit();
+        OutputStream out = new FileOutputStream(f);
+        if (gzip) {
+            out = new GZIPOutputStream(out);
+        }
+        Writer w = new OutputStreamWriter(out, "ISO-8859-1");
+        for(int i=0; i<count; i++) {
+            w.write(message(i));
+            w.write(delimiter);
+        }
+        w.close();
+        return f;
+    }
+
+    @Test
+    public void testSmallBuffer() throws IOException {
+        File f = writeMessages(50, "\r\n", false);
+        for(int size=1; size<40; size+=7) {
+            HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+            SparkFileReader reader = new SparkFileReader(f, adapter);
+            reader.setInternalBufferSize(size);
+            assertTrue(reader.parse());
+            assertEquals(adapter.getList().size(), 50);
+            for(int i=0; i<50; i++) {
+                assertEquals(adapter.getList().get(i).marshal(), message(i));
+            }
+        }
+    }
+
+    @Test
+    public void testGzipAndDelimiter() throws IOException {
+        File f = writeMessages(20, "\r\r\n", true);
+        HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+        assertTrue(new SparkFileReader(f.getPath(), adapter, "\r\r\n").parse());
+        assertEquals(adapter.getList().size(), 20);
+        assertEquals(adapter.getList().get(19).marshal(), message(19));
+    }
+
+    @Test
+    public void testBlankAndUnterminated() throws IOException {
+        File f = File.createTempFile("spark", ".hl7");
+        f.deleteOnExit();
+        Writer w = new FileWriter(f);
+        w.write("\r\n" + message(0) + "\r\n\r\n  \r\n" + message(1));
+        w.close();
+        HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+        assertTrue(new SparkFileReader(f, adapter).parse());
+        assertEquals(adapter.getList().size(), 2);
+        assertEquals(adapter.getList().get(1).marshal(), message(1));
+    }
+
+    @Test
+    public void testListenerResult() throws IOException {
+        File f = writeMessages(5, "\r\n", false);
+        final int[] count = new int[1];
+        SparkFileReader reader = new SparkFileReader(f, new HL7MessageListener() {
+            public boolean messageReceived(HL7Structure message) {
+                count[0]++;
+                return count[0] != 3;
+            }
+        });
+        assertFalse(reader.parse());
+    }
+
+    @Test
+    public void testMemoryMapped() throws IOException {
+        File f = writeMessages(50, "\r\n", false);
+        for(int size=2; size<400; size+=37) {
+            HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+            SparkFileReader reader = new SparkFileReader(f, adapter);
+            reader.setMemoryMapped(true);
+            reader.setMappedWindowSize(size);
+            assertTrue(reader.parse());
+            assertEquals(adapter.getList().size(), 50);
+            for(int i=0; i<50; i++) {
+                assertEquals(adapter.getList().get(i).marshal(), message(i));
+            }
+        }
+    }
+
+    @Test
+    public void testWorkerThreadsOrdered() throws IOException {
+        File f = writeMessages(500, "\r\n", false);
+        HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+        SparkFileReader reader = new SparkFileReader(f, adapter);
+        reader.setWorkerThreads(4);
+        reader.setQueueCapacity(8);
+        assertTrue(reader.parse());
+        assertEquals(adapter.getList().size(), 500);
+        for(int i=0; i<500; i++) {
+            assertEquals(adapter.getList().get(i).marshal(), message(i));
+        }
+    }
+
+    @Test
+    public void testWorkerThreadsUnordered() throws IOException {
+        File f = writeMessages(500, "\r\n", false);
+        final Set<String> seen = Collections.synchronizedSet(new HashSet<String>());
+        SparkFileReader reader = new SparkFileReader(f, new HL7MessageListener() {
+            public boolean messageReceived(HL7Structure message) {
+                return seen.add(message.marshal());
+            }
+        });
+        assertTrue(reader.parse());
+        assertEquals(reader.getLastCheckpoint().getOrdinal(), 499);
+        seen.clear();
+        reader.setWorkerThreads(4);
+        reader.setOrdered(false);
+        assertTrue(reader.parse());
+        assertEquals(seen.size(), 500);
+        for(int i=0; i<500; i++) {
+            assertTrue(seen.contains(message(i)));
+        }
+        //split into byte ranges, which records no checkpoint, rather than leaving the last parse's
+        assertNull(reader.getLastCheckpoint());
+    }
+
+    @Test
+    public void testWorkerThreadsListenerResult() throws IOException {
+        File f = writeMessages(100, "\r\n", false);
+        final int[] count = new int[1];
+        SparkFileReader reader = new SparkFileReader(f, new HL7MessageListener() {
+            public boolean messageReceived(HL7Structure message) {
+                count[0]++;
+                return count[0] != 3;
+            }
+        });
+        reader.setWorkerThreads(4);
+        assertFalse(reader.parse());
+        assertEquals(count[0], 3);
+    }
+
+    @Test
+    public void testByteRanges() throws IOException {
+        File f = writeMessages(10, "\r\r\n", false);
+        for(long split=0; split<=f.length()+1; split++) {
+            HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+            SparkFileReader reader = new SparkFileReader(f, adapter, "\r\r\n");
+            assertTrue(reader.parse(0, split));
+            assertTrue(reader.parse(split, f.length()));
+            assertEquals(adapter.getList().size(), 10, "split at " + split);
+            for(int i=0; i<10; i++) {
+                assertEquals(adapter.getList().get(i).marshal(), message(i));
+            }
+        }
+    }
+
+    @Test
+    public void testFilter() throws IOException {
+        File f = writeMessages(90, "\r\n", false);
+        assertEquals(HL7RawHeader.getMessageType(message(3)), "ADT^A03");
+        assertEquals(HL7RawHeader.getSendingFacility(message(3)), "IDX");
+        assertEquals(HL7RawHeader.getControlId(message(3)), "CTRL3");
+        assertNull(HL7RawHeader.field("PID|1", 3));
+        for(int threads=1; threads<=3; threads+=2) {
+            HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+            SparkFileReader reader = new SparkFileReader(f, adapter);
+            reader.setWorkerThreads(threads);
+            reader.setFilter(new HL7HeaderFilter(HL7HeaderFilter.MESSAGE_TYPE, "ADT^A01", "ADT^A05"));
+            assertTrue(reader.parse());
+            assertEquals(adapter.getList().size(), 20);
+            assertEquals(adapter.getList().get(0).marshal(), message(1));
+            assertEquals(adapter.getList().get(1).marshal(), message(5));
+            assertEquals(reader.getLastCheckpoint().getOrdinal(), 89);
+        }
+
+        HL7MessageListenerListAdapter adapter = new HL7MessageListenerListAdapter();
+        SparkFileReader reader = new SparkFileReader(f, adapter);
+        reader.setFilter(new HL7HeaderFilter(HL7HeaderFilter.MESSAGE_TYPE, "ADT"));
+        assertTrue(reader.parse());
+        assertEquals(adapter.getList().size(), 90);
+    }
+
+    @Test
+    public void testFollow() throws Exception {
+        final File f = writeMessages(5, "\r\n", false);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final SparkFileReader reader = new SparkFileReader(f, new HL7MessageListener() {
+            public boolean messageReceived(HL7Structure message) {
+                return received.add(message.marshal());
+            }
+        });
+        reader.setMaxPollInterval(20);
+        final boolean[] result = new boolean[1];
+        Thread follower = new Thread() {
+            public void run() {
+                try {
+                    result[0] = reader.follow();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        follower.start();
+        awaitCount(received, 5);
+
+        //the end of message 7 is not handed out on its own; the messages are all checked below
+        append(f, message(5) + "\r\n" + message(6) + "\r\n" + message(7).substring(0, 20));
+        awaitCount(received, 7);
+        append(f, message(7).substring(20) + "\r\n");
+        awaitCount(received, 8);
+
+        //truncated in place
+        new FileOutputStream(f).close();
+        append(f, message(8) + "\r\n");
+        awaitCount(received, 9);
+
+        //truncated and written past where reading had got to, whenever the poll comes
+        OutputStream out = new FileOutputStream(f);
+        out.write((message(9) + "\r\n" + message(10) + "\r\n").getBytes("ISO-8859-1"));
+        out.close();
+        awaitCount(received, 11);
+
+        //rotated, with one last message written to the old file
+        File rotated = new File(f.getPath() + ".1");
+        rotated.deleteOnExit();
+        assertTrue(f.renameTo(rotated));
+        append(rotated, message(11) + "\r\n");
+        append(f, message(12) + "\r\n" + message(13) + "\r\n");
+        awaitCount(received, 14);
+
+        reader.stopFollowing();
+        follower.join(5000);
+        assertFalse(follower.isAlive());
+        assertTrue(result[0]);
+        for(int i=0; i<14; i++) {
+            assertEquals(received.get(i), message(i));
+        }
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        File f = writeMessages(250, "\r\n", false);
+        //no threads stands for a thread per message
+        for(int threads : new int[] { 1, 3, 0 }) {
+            final List<List<HL7Structure>> batches = new ArrayList<List<HL7Structure>>();
+            final List<SparkCheckpoint> checkpoints = new ArrayList<SparkCheckpoint>();
+            SparkFileReader reader = new SparkFileReader(f, (HL7MessageListener) null);
+            reader.setWorkerThreads(Math.max(threads, 1));
+            reader.setVirtualThreads(threads == 0);
+            reader.setBatchListener(new HL7BatchListener() {
+                public boolean batchReceived(List<HL7Structure> messages) {
+                    return batches.add(messages);
+                }
+            });
+            reader.setBatchSize(100);
+            reader.setCheckpointInterval(1);
+            reader.setCheckpointListener(new SparkCheckpointListener() {
+                public void checkpointReached(SparkCheckpoint checkpoint) {
+                    //every checkpoint falls at the end of a delivered batch
+                    int delivered = 0;
+                    for(List<HL7Structure> batch : batches) {
+                        delivered += batch.size();
+                    }
+                    assertEquals(checkpoint.getOrdinal(), delivered - 1);
+                    checkpoints.add(checkpoint);
+                }
+            });
+            assertTrue(reader.parse());
+            assertEquals(batches.size(), 3);
+            assertEquals(batches.get(0).size(), 100);
+            assertEquals(batches.get(2).size(), 50);
+            assertEquals(batches.get(1).get(0).marshal(), message(100));
+            assertEquals(checkpoints.size(), 3);
+            assertEquals(reader.getLastCheckpoint().getOrdinal(), 249);
+        }
+
+        //by bytes, and stopping once the batch listener returns false
+        final int[] calls = new int[1];
+        SparkFileReader reader = new SparkFileReader(f, (HL7MessageListener) null);
+        reader.setBatchListener(new HL7BatchListener() {
+            public boolean batchReceived(List<HL7Structure> messages) {
+                assertEquals(messages.size(), 10);
+                return ++calls[0] < 2;
+            }
+        });
+        reader.setBatchBytes(10 * message(0).length());
+        assertFalse(reader.parse());
+        assertEquals(calls[0], 2);
+    }
+
+    @Test
+    public void testBatchDelay() throws Exception {
+        final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+        HL7MessageBatcher batcher = new HL7MessageBatcher(new HL7BatchListener() {
+            public boolean batchReceived(List<HL7Structure> messages) {
+                return sizes.add(messages.size());
+            }
+        }, 1000, 0, 50);
+        assertTrue(batcher.messageReceived(null));
+        assertTrue(batcher.messageReceived(null));
+        long until = System.currentTimeMillis() + 5000;
+        while (sizes.isEmpty() && System.currentTimeMillis() < until) {
+            Thread.sleep(5);
+        }
+        assertEquals(sizes, Arrays.asList(2));
+        assertTrue(batcher.messageReceived(null));
+        assertTrue(batcher.close());
+        assertEquals(sizes, Arrays.asList(2, 1));
+    }
+
+    @Test
+    public void testIterator() throws IOException {
+        File f = writeMessages(500, "\r\n", false);
+        SparkFileReader reader = new SparkFileReader(f);
+        reader.setInternalBufferSize(1024);
+        SparkMessageIterator it = reader.iterator();
+        for(int i=0; i<500; i++) {
+            assertTrue(it.hasNext());
+            assertEquals(it.next().marshal(), message(i));
+        }
+        assertFalse(it.hasNext());
+
+        //split until the pieces are small, and every message comes out once, in order
+        List<SparkMessageIterator> pieces = new ArrayList<SparkMessageIterator>();
+        pieces.add(reader.iterator());
+        for(int i=0; i<pieces.size();) {
+            SparkMessageIterator prefix = pieces.get(i).trySplit();
+            if (prefix == null) {
+                i++;
+            } else {
+                pieces.add(i, prefix);
+            }
+        }
+        assertTrue(pieces.size() > 8);
+        int count = 0;
+        for(SparkMessageIterator piece : pieces) {
+            while (piece.hasNext()) {
+                assertEquals(piece.next().marshal(), message(count++));
+            }
+        }
+        assertEquals(count, 500);
+
+        reader.setFilter(new HL7HeaderFilter(HL7HeaderFilter.MESSAGE_TYPE, "ADT^A01"));
+        it = reader.iterator();
+        assertEquals(it.next().marshal(), message(1));
+        assertEquals(it.next().marshal(), message(10));
+        it.close();
+        assertFalse(it.hasNext());
+
+        SparkMessageIterator zipped = new SparkFileReader(writeMessages(20, "\r\n", true)).iterator();
+        assertNull(zipped.trySplit());
+        count = 0;
+        while (zipped.hasNext()) {
+            assertEquals(zipped.next().marshal(), message(count++));
+        }
+        assertEquals(count, 20);
+
+        it = new SparkFileReader(new File(f.getPath() + ".missing")).iterator();
+        try {
+            it.hasNext();
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof FileNotFoundException);
+        }
+    }
+
+    @Test
+    public void testStream() throws IOException {
+        File f = writeMessages(500, "\r\n", false);
+        SparkFileReader reader = new SparkFileReader(f);
+        reader.setInternalBufferSize(1024);
+        for(boolean parallel : new boolean[] { false, true }) {
+            Stream<HL7Structure> stream = reader.stream(parallel);
+            assertEquals(stream.isParallel(), parallel);
+            List<String> messages = stream.map(new Function<HL7Structure, String>() {
+                public String apply(HL7Structure message) {
+                    return message.marshal();
+                }
+            }).collect(Collectors.<String>toList());
+            stream.close();
+            assertEquals(messages.size(), 500);
+            for(int i=0; i<500; i++) {
+                assertEquals(messages.get(i), message(i));
+            }
+        }
+        SparkMessageIterator it = reader.iterator();
+        assertEquals(it.characteristics(), Spliterator.ORDERED | Spliterator.NONNULL);
+        it.close();
+
+        //a stream that stops early closes every range when it is closed
+        Stream<HL7Structure> stream = reader.stream(true);
+        assertEquals(stream.count(), 500);
+        stream.close();
+        stream = reader.stream();
+        assertEquals(stream.findFirst().get().marshal(), message(0));
+        stream.close();
+
+        reader = new SparkFileReader(writeMessages(20, "\r\n", true));
+        stream = reader.stream(true);
+        assertEquals(stream.count(), 20);
+        stream.close();
+    }
+
+    @Test
+    public void testRawMessages() throws IOException {
+        File f = writeMessages(100, "\r\n", false);
+        File copy = File.createTempFile("spark", ".hl7");
+        copy.deleteOnExit();
+        final SparkFileWriter writer = new SparkFileWriter(copy, false);
+        final List<HL7RawMessage> promoted = new ArrayList<HL7RawMessage>();
+        SparkFileReader reader = new SparkFileReader(f);
+        reader.setRawListener(new HL7RawMessageListener() {
+            public boolean rawMessageReceived(HL7RawMessage message) {
+                try {
+                    writer.write(message);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                if (message.getOrdinal() == 42) {
+                    assertEquals(message.toStructure().marshal(), message(42));
+                    promoted.add(message);
+                }
+                return true;
+            }
+        });
+        assertTrue(reader.parse());
+        writer.close();
+        assertEquals(copy.length(), f.length());
+        assertEquals(readAll(copy), readAll(f));
+        assertEquals(promoted.size(), 1);
+        assertTrue(promoted.get(0).isParsed());
+        long offset = 0;
+        for(int i=0; i<42; i++) {
+            offset += message(i).length() + 2;
+        }
+        assertEquals(promoted.get(0).getOffset(), offset);
+        assertEquals(reader.getLastCheckpoint().getOrdinal(), 99);
+
+        final List<String> kept = new ArrayList<String>();
+        reader.setFilter(new HL7HeaderFilter(HL7HeaderFilter.MESSAGE_TYPE, "ADT^A02"));
+        reader.setRawListener(new HL7RawMessageListener() {
+            public boolean rawMessageReceived(HL7RawMessage message) {
+                assertFalse(message.isParsed());
+                kept.add(message.getText());
+                return kept.size() < 5;
+            }
+        });
+        assertFalse(reader.parse());
+        assertEquals(kept.size(), 5);
+        assertEquals(kept.get(1), message(11));
+    }
+
+    private static String readAll(File f) throws IOException {
+        byte[] bytes = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        in.readFully(bytes);
+        in.close();
+        return new String(bytes, "ISO-8859-1");
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        File f = writeMessages(300, "\r\n", false);
+        final Set<String> seen = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final List<Long> checkpoints = Collections.synchronizedList(new ArrayList<Long>());
+        //blocks like a database call would, so messages overlap
+        SparkFileReader reader = new SparkFileReader(f, new HL7MessageListener() {
+            public boolean messageReceived(HL7Structure message) {
+                int now = running.incrementAndGet();
+                for(int max = maxRunning.get(); now > max && !maxRunning.compareAndSet(max, now); max = maxRunning.get()) {
+                    //retry
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                running.decrementAndGet();
+                return seen.add(message.marshal());
+            }
+        });
+        reader.setVirtualThreads(true);
+        reader.setMaxConcurrency(16);
+        reader.setCheckpointInterval(1);
+        reader.setCheckpointListener(new SparkCheckpointListener() {
+            public void checkpointReached(SparkCheckpoint checkpoint) {
+                checkpoints.add(checkpoint.getOrdinal());
+            }
+        });
+        assertTrue(reader.parse());
+        assertEquals(seen.size(), 300);
+        assertTrue(maxRunning.get() > 1);
+        assertTrue(maxRunning.get() <= 16);
+        //checkpoints only move forward, over messages that have all finished
+        assertEquals(checkpoints.size(), 300);
+        for(int i=0; i<300; i++) {
+            assertEquals(checkpoints.get(i).longValue(), i);
+        }
+    }
+
+    private static void awaitCount(List<String> received, int count) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (received.size() < count && System.currentTimeMillis() < until) {
+            Thread.sleep(5);
+        }
+        assertEquals(received.size(), count);
+    }
+
+    private static void append(File f, String data) throws IOException {
+        OutputStream out = new FileOutputStream(f, true);
+        out.write(data.getBytes("ISO-8859-1"));
+        out.close();
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.urhl7.spark;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import org.urhl7.igor.Igor;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+import static org.urhl7.spark.SparkFileReaderTest.message;
+
+/**
+ *
+ * @author David Morgan
+ */
+public class SparkFileWriterTest {
+    static File tempFile() throws IOException {
+        File f = File.createTempFile("spark", ".hl7");
+        f.deleteOnExit();
+        return f;
+    }
+
+    private static long size(int count) {
+        long size = 0;
+        for(int i=0; i<count; i++) {
+            size += message(i).length() + 2;
+        }
+        return size;
+    }
+
+    @Test
+    public void testFlushPolicies() throws Exception {
+        File f = tempFile();
+        SparkFileWriter writer = new SparkFileWriter(f, false);
+        writer.write(Igor.structure(message(0)));
+        assertEquals(f.length(), size(1));
+        writer.close();
+
+        writer = new SparkFileWriter(f, false);
+        writer.setFlushEvery(0);
+        writer.setSync(true);
+        for(int i=0; i<10; i++) {
+            writer.write(Igor.structure(message(i)));
+        }
+        assertEquals(f.length(), 0);
+        writer.flush();
+        assertEquals(f.length(), size(10));
+        writer.close();
+
+        writer = new SparkFileWriter(f, false);
+        writer.setFlushEvery(3);
+        for(int i=0; i<5; i++) {
+            writer.write(Igor.structure(message(i)));
+        }
+        assertEquals(f.length(), size(3));
+        writer.close();
+        assertEquals(f.length(), size(5));
+
+        //by time, with no more writes
+        writer = new SparkFileWriter(f, false);
+        writer.setFlushEvery(0);
+        writer.setFlushInterval(40);
+        writer.write(Igor.structure(message(0)));
+        long until = System.currentTimeMillis() + 5000;
+        while (f.length() == 0 && System.currentTimeMillis() < until) {
+            Thread.sleep(5);
+        }
+        assertEquals(f.length(), size(1));
+
+        //the old file is finished when moving to a new one
+        File other = tempFile();
+        writer.write(Igor.structure(message(1)));
+        writer.setOutputFile(other);
+        assertEquals(f.length(), size(2));
+        writer.setAppendToFile(true);
+        writer.write(Igor.structure(message(2)));
+        writer.close();
+        assertEquals(other.length(), message(2).length() + 2);
+    }
+
+    @Test
+    public void testTimerFailure() throws Exception {
+        File f = tempFile();
+        final AtomicInteger failed = new AtomicInteger();
+        SparkFileWriter writer = new SparkFileWriter(f, false) {
+            @Override
+            public synchronized void flush() throws IOException {
+                failed.incrementAndGet();
+                throw new IOException("timed flush failed");
+            }
+        };
+        writer.setFlushEvery(0);
+        writer.setFlushInterval(20);
+        writer.write(Igor.structure(message(0)));
+        long until = System.currentTimeMillis() + 5000;
+        while (failed.get() == 0 && System.currentTimeMillis() < until) {
+            Thread.sleep(5);
+        }
+        assertTrue(failed.get() > 0);
+
+        //the failure is thrown, but only after the buffered message is in the file
+        try {
+            writer.close();
+            fail("expected the timer's failure");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "timed flush failed");
+        }
+        assertEquals(f.length(), size(1));
+    }
+
+    @Test
+    public void testTimerReleasesWriter() throws Exception {
+        SparkFileWriter writer = new SparkFileWriter(tempFile(), false);
+        writer.setFlushEvery(0);
+        writer.setFlushInterval(20);
+        writer.write(Igor.structure(message(0)));
+        WeakReference<SparkFileWriter> ref = new WeakReference<SparkFileWriter>(writer);
+        writer = null;
+        long until = System.currentTimeMillis() + 5000;
+        while (ref.get() != null && System.currentTimeMillis() < until) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+    }
+
+    @Test
+    public void testBuffer() throws IOException {
+        File f = tempFile();
+        SparkFileWriter writer = new SparkFileWriter(f, false);
+        writer.setFlushEvery(0);
+        writer.setBufferSize(100);
+        writer.setCharset(Charset.forName("UTF-8"));
+        StringBuilder big = new StringBuilder("MSH|^~\\&|A|B\rNTE|1||");
+        for(int i=0; i<50; i++) {
+            big.append("\u00e9t\u00e9 ");
+        }
+        String text = big.append("END\r").toString();
+        writer.write(new HL7RawMessage(text, Charset.forName("UTF-8")));
+        writer.write(Igor.structure(text));
+        writer.write(Igor.structure(message(7)));
+        writer.close();
+
+        SparkFileReader reader = new SparkFileReader(f);
+        reader.setCharset(Charset.forName("UTF-8"));
+        SparkMessageIterator it = reader.iterator();
+        assertEquals(it.next().marshal(), text);
+        assertEquals(it.next().marshal(), text);
+        assertEquals(it.next().marshal(), message(7));
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        File f = tempFile();
+        SparkFileWriter writer = new SparkFileWriter(f, false);
+        writer.setGzip(true);
+        writer.setFlushEvery(7);
+        writer.setBufferSize(100);
+        StringBuilder expected = new StringBuilder();
+        for(int i=0; i<20; i++) {
+            writer.write(Igor.structure(message(i)));
+            expected.append(message(i)).append("\r\n");
+        }
+        writer.close();
+
+        //appending adds members after the ones already there
+        writer.setAppendToFile(true);
+        writer.write(Igor.structure(message(20)));
+        writer.close();
+        expected.append(message(20)).append("\r\n");
+
+        assertTrue(SparkFileReader.isGZipped(f));
+        InputStream in = new GZIPInputStream(new FileInputStream(f));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[4096];
+        int n;
+        while ((n = in.read(b)) != -1) {
+            out.write(b, 0, n);
+        }
+        in.close();
+        assertEquals(out.toString("ISO-8859-1"), expected.toString());
+
+        SparkMessageIterator it = new SparkFileReader(f).iterator();
+        for(int i=0; i<=20; i++) {
+            assertEquals(it.next().marshal(), message(i));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        File source = SparkFileReaderTest.writeMessages(2000, "\r\n", false);
+        File f = tempFile();
+        final AtomicInteger flushes = new AtomicInteger();
+        SparkFileWriter target = new SparkFileWriter(f, false) {
+            @Override
+            public synchronized void flush() throws IOException {
+                flushes.incrementAndGet();
+                super.flush();
+            }
+        };
+        final SparkAsyncFileWriter writer = new SparkAsyncFileWriter(target, 64);
+        assertEquals(writer.getCapacity(), 64);
+
+        //producers on several threads, parsed and raw
+        Thread[] producers = new Thread[4];
+        for(int p=0; p<producers.length; p++) {
+            final int first = p * 500;
+            producers[p] = new Thread() {
+                public void run() {
+                    try {
+                        for(int i=first; i<first+500; i++) {
+                            if (i % 2 == 0) {
+                                assertTrue(writer.write(Igor.structure(message(i))));
+                            } else {
+                                assertTrue(writer.write(new HL7RawMessage(message(i), Charset.forName("ISO-8859-1"))));
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            producers[p].start();
+        }
+        for(Thread producer : producers) {
+            producer.join();
+        }
+        writer.flush();
+        assertEquals(f.length(), source.length());
+        assertEquals(writer.getWrittenCount(), 2000);
+        assertEquals(writer.getQueueDepth(), 0);
+        assertTrue(writer.getBatchCount() > 0);
+        //one flush per batch, not per message
+        assertEquals(target.getFlushEvery(), 0);
+        assertEquals(flushes.get(), writer.getBatchCount());
+        assertTrue(writer.getMaxLatency() >= writer.getAverageLatency());
+        writer.close();
+
+        Set<String> seen = new HashSet<String>();
+        SparkMessageIterator it = new SparkFileReader(f).iterator();
+        while (it.hasNext()) {
+            seen.add(it.next().marshal());
+        }
+        assertEquals(seen.size(), 2000);
+        assertTrue(seen.contains(message(1999)));
+
+        //copying a file, reading and writing on separate threads
+        SparkAsyncFileWriter copier = new SparkAsyncFileWriter(new SparkFileWriter(f, false), 256);
+        SparkFileReader reader = new SparkFileReader(source);
+        reader.setRawListener(copier);
+        assertTrue(reader.parse());
+        copier.close();
+        assertEquals(f.length(), source.length());
+        try {
+            copier.write(Igor.structure(message(0)));
+            fail();
+        } catch (IOException e) {
+            //closed
+        }
+    }
+
+    @Test
+    public void testAsyncClose() throws Exception {
+        //every write that returns true before close is in the file after it, however the two race
+        for(int round=0; round<20; round++) {
+            File f = tempFile();
+            final SparkAsyncFileWriter writer = new SparkAsyncFileWriter(new SparkFileWriter(f, false), 8);
+            final HL7RawMessage raw = new HL7RawMessage(message(0), Charset.forName("ISO-8859-1"));
+            final AtomicInteger accepted = new AtomicInteger();
+            Thread[] producers = new Thread[3];
+            for(int p=0; p<producers.length; p++) {
+                producers[p] = new Thread() {
+                    public void run() {
+                        try {
+                            while (writer.write(raw)) {
+                                accepted.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            //closed
+                        }
+                    }
+                };
+                producers[p].start();
+            }
+            while (accepted.get() < round * 10) {
+                Thread.yield();
+            }
+            writer.close();
+            for(Thread producer : producers) {
+                producer.join();
+            }
+            assertEquals(writer.getWrittenCount(), accepted.get());
+            assertEquals(f.length(), accepted.get() * (long) (message(0).length() + 2));
+        }
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        //a writer thread stuck on a full pipe stands in for a slow disk
+        final Object gate = new Object();
+        final boolean[] open = new boolean[1];
+        SparkFileWriter slow = new SparkFileWriter(tempFile(), false) {
+            @Override
+            public synchronized void write(HL7RawMessage message) throws IOException {
+                synchronized(gate) {
+                    while (!open[0]) {
+                        try {
+                            gate.wait();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                }
+                super.write(message);
+            }
+        };
+        HL7RawMessage raw = new HL7RawMessage(message(0), Charset.forName("ISO-8859-1"));
+        SparkAsyncFileWriter dropping = new SparkAsyncFileWriter(slow, 4, SparkAsyncFileWriter.Backpressure.DROP);
+        int accepted = 0;
+        for(int i=0; i<20; i++) {
+            if (dropping.write(raw)) {
+                accepted++;
+            }
+        }
+        //the writer thread may hold one message
+        assertTrue(accepted == 4 || accepted == 5);
+        assertEquals(dropping.getDroppedCount(), 20 - accepted);
+
+        SparkAsyncFileWriter failing = new SparkAsyncFileWriter(slow, 2, SparkAsyncFileWriter.Backpressure.FAIL);
+        try {
+            for(int i=0; i<10; i++) {
+                failing.write(raw);
+            }
+            fail();
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "The write buffer is full");
+        }
+
+        synchronized(gate) {
+            open[0] = true;
+            gate.notifyAll();
+        }
+        dropping.close();
+        failing.close();
+        assertEquals(dropping.getWrittenCount(), accepted);
+    }
+
+    @Test
+    public void testRolling() throws IOException {
+        File dir = File.createTempFile("spark", "roll");
+        dir.delete();
+        String day = new java.text.SimpleDateFormat("yyyyMMdd").format(new java.util.Date());
+        //deleted last to first
+        dir.deleteOnExit();
+        new File(dir, day).deleteOnExit();
+
+        SparkRollingFileWriter writer = new SparkRollingFileWriter(dir, "{yyyyMMdd}/ADT_{n}.hl7.gz");
+        assertTrue(writer.isGzip());
+        writer.setMaxMessages(40);
+        for(int i=0; i<100; i++) {
+            writer.write(Igor.structure(message(i)));
+        }
+        assertEquals(writer.getCurrentFile(), new File(dir, day + "/ADT_2.hl7.gz"));
+        writer.close();
+
+        int count = 0;
+        for(int n=0; n<3; n++) {
+            File f = new File(dir, day + "/ADT_" + n + ".hl7.gz");
+            f.deleteOnExit();
+            assertTrue(SparkFileReader.isGZipped(f));
+            SparkMessageIterator it = new SparkFileReader(f).iterator();
+            while (it.hasNext()) {
+                assertEquals(it.next().marshal(), message(count++));
+            }
+            assertEquals(count, Math.min(40 * (n + 1), 100));
+        }
+
+        //by size, numbering on past the files already there
+        for(int n=0; n<2; n++) {
+            File taken = new File(dir, day + "/ADT_" + n + ".hl7");
+            new FileOutputStream(taken).close();
+            taken.deleteOnExit();
+        }
+        writer = new SparkRollingFileWriter(dir, "{yyyyMMdd}/ADT_{n}.hl7");
+        writer.setMaxBytes(10 * (message(0).length() + 2));
+        for(int i=0; i<25; i++) {
+            writer.write(new HL7RawMessage(message(i), Charset.forName("ISO-8859-1")));
+        }
+        writer.close();
+        assertEquals(writer.getCurrentFile(), new File(dir, day + "/ADT_4.hl7"));
+        assertEquals(new File(dir, day + "/ADT_0.hl7").length(), 0);
+        assertEquals(new File(dir, day + "/ADT_2.hl7").length(), size(10));
+        new File(dir, day + "/ADT_3.hl7").deleteOnExit();
+        new File(dir, day + "/ADT_4.hl7").deleteOnExit();
+        new File(dir, day + "/ADT_2.hl7").deleteOnExit();
+
+        //no number, so a size limit can not start a new file
+        writer = new SparkRollingFileWriter(dir, "ADT_{yyyyMMdd}.hl7");
+        writer.setMaxMessages(1);
+        for(int i=0; i<3; i++) {
+            writer.write(Igor.structure(message(i)));
+        }
+        writer.close();
+        File single = new File(dir, "ADT_" + day + ".hl7");
+        single.deleteOnExit();
+        assertEquals(single.length(), size(3));
+    }
+
+    @Test
+    public void testPartitioned() throws IOException {
+        assertEquals(HL7RawHeader.field(message(12), "PID", 3), "12^^^IDX^MRN");
+        assertEquals(HL7RawHeader.field(message(12), "PID", 5), "MORGAN^JESSICA");
+        assertNull(HL7RawHeader.field(message(12), "PV1", 1));
+        assertEquals(HL7RawHeader.field(message(12), "MSH", 9), "ADT^A03");
+        assertEquals(SparkPartitionedFileWriter.clean("ADT^A01"), "ADT_A01");
+        assertEquals(SparkPartitionedFileWriter.clean("../x"), "_._x");
+
+        File dir = File.createTempFile("spark", "parts");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        SparkPartitionedFileWriter writer = new SparkPartitionedFileWriter(dir, "{key}.hl7",
+                new HL7FieldKey("MSH", HL7HeaderFilter.MESSAGE_TYPE));
+        writer.setMaxOpenFiles(3);
+        for(int i=0; i<90; i++) {
+            if (i % 2 == 0) {
+                writer.write(Igor.structure(message(i)));
+            } else {
+                writer.write(new HL7RawMessage(message(i), Charset.forName("ISO-8859-1")));
+            }
+            assertTrue(writer.getOpenFiles().size() <= 3);
+        }
+        assertEquals(writer.getEvictions(), 87);
+        writer.close();
+        for(int type=0; type<9; type++) {
+            File f = new File(dir, "ADT_A0" + type + ".hl7");
+            f.deleteOnExit();
+            SparkMessageIterator it = new SparkFileReader(f).iterator();
+            for(int i=type; i<90; i+=9) {
+                assertEquals(it.next().marshal(), message(i));
+            }
+            assertFalse(it.hasNext());
+        }
+
+        //the same patient always lands in the same bucket
+        HL7FieldKey hashed = new HL7FieldKey("PID", 3, 4);
+        writer = new SparkPartitionedFileWriter(dir, "patients-{key}.hl7", hashed);
+        writer.setFlushEvery(10);
+        for(int i=0; i<40; i++) {
+            writer.write(Igor.structure(message(i % 20)));
+        }
+        writer.write(new HL7RawMessage("MSH|^~\\&|X\r", Charset.forName("ISO-8859-1")));
+        writer.close();
+        int total = 0;
+        for(String bucket : new String[] { "0", "1", "2", "3", "none" }) {
+            File f = new File(dir, "patients-" + bucket + ".hl7");
+            f.deleteOnExit();
+            SparkMessageIterator it = new SparkFileReader(f).iterator();
+            while (it.hasNext()) {
+                String text = it.next().marshal();
+                assertEquals(bucket, text.startsWith("MSH|^~\\&|X") ? "none" : hashed.keyOf(text));
+                total++;
+            }
+        }
+        assertEquals(total, 41);
+    }
+}
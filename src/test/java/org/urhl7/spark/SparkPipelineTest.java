@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2012 David Morgan, University of Rochester Medical Center
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.urhl7.spark;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.urhl7.igor.HL7Structure;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+import static org.urhl7.spark.SparkFileReaderTest.message;
+import static org.urhl7.spark.SparkFileReaderTest.writeMessages;
+
+/**
+ *
+ * @author David Morgan
+ */
+public class SparkPipelineTest {
+    @Test
+    public void testPipeline() throws Exception {
+        File f = writeMessages(300, "\r\n", false);
+        for(boolean ordered : new boolean[] { true, false }) {
+            final List<String> persisted = Collections.synchronizedList(new ArrayList<String>());
+            ExecutorService filterThreads = Executors.newCachedThreadPool();
+            SparkPipeline pipeline = new SparkPipeline();
+            pipeline.setOrdered(ordered);
+            pipeline.setQueueCapacity(4);
+            //finishes out of order: later messages are quicker
+            pipeline.addStage("transform", new HL7Stage() {
+                public HL7Structure process(HL7Structure message) {
+                    int i = Integer.parseInt(HL7RawHeader.getControlId(message.marshal()).substring(4));
+                    if (i % 7 == 0) {
+                        try {
+                            Thread.sleep(2);
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return message;
+                }
+            }, 4);
+            pipeline.addStage("filter", new HL7Stage() {
+                public HL7Structure process(HL7Structure message) {
+                    return HL7RawHeader.getMessageType(message.marshal()).equals("ADT^A00") ? null : message;
+                }
+            }, filterThreads, 2);
+            pipeline.addListener("persist", new HL7MessageListener() {
+                public boolean messageReceived(HL7Structure message) {
+                    return persisted.add(message.marshal());
+                }
+            }, 1);
+
+            SparkFileReader reader = new SparkFileReader(f, pipeline);
+            assertTrue(reader.parse());
+            assertTrue(pipeline.finish());
+            filterThreads.shutdown();
+            assertEquals(persisted.size(), 300 - 34);
+            if (ordered) {
+                for(int i=0, n=0; i<300; i++) {
+                    if (i % 9 != 0) {
+                        assertEquals(persisted.get(n++), message(i));
+                    }
+                }
+            }
+            List<SparkPipeline.Stage> stages = pipeline.getStages();
+            assertEquals(stages.get(0).getProcessed(), 300);
+            assertEquals(stages.get(1).getDropped(), 34);
+            assertEquals(stages.get(2).getProcessed(), 266);
+            assertTrue(stages.get(0).getMaxQueueDepth() <= 4 + 4);
+            assertTrue(stages.get(0).getBusyNanos() > 0);
+            assertEquals(stages.get(2).getQueueDepth(), 0);
+        }
+
+        //a failing stage stops the reader, and finish throws what it threw
+        SparkPipeline pipeline = new SparkPipeline();
+        pipeline.setQueueCapacity(4);
+        pipeline.addStage("validate", new HL7Stage() {
+            public HL7Structure process(HL7Structure message) {
+                throw new IllegalArgumentException("invalid");
+            }
+        }, 2);
+        SparkFileReader reader = new SparkFileReader(f, pipeline);
+        assertFalse(reader.parse());
+        try {
+            pipeline.finish();
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "invalid");
+        }
+    }
+
+    @Test
+    public void testVirtualStage() throws Exception {
+        //a virtual stage runs messages at once, and still hands them on in order
+        File f = writeMessages(300, "\r\n", false);
+        final List<String> persisted = Collections.synchronizedList(new ArrayList<String>());
+        SparkPipeline pipeline = new SparkPipeline();
+        SparkPipeline.Stage lookup = pipeline.addVirtualStage("lookup", new HL7Stage() {
+            public HL7Structure process(HL7Structure message) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return message;
+            }
+        }, 32);
+        pipeline.addListener("persist", new HL7MessageListener() {
+            public boolean messageReceived(HL7Structure message) {
+                return persisted.add(message.marshal());
+            }
+        }, 1);
+        assertTrue(new SparkFileReader(f, pipeline).parse());
+        assertTrue(pipeline.finish());
+        assertEquals(lookup.getProcessed(), 300);
+        assertEquals(persisted.size(), 300);
+        for(int i=0; i<300; i++) {
+            assertEquals(persisted.get(i), message(i));
+        }
+    }
+}